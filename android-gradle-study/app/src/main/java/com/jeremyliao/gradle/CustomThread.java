@@ -1,9 +1,13 @@
 package com.jeremyliao.gradle;
 
-import android.util.Log;
-
+/**
+ * 插桩时 new Thread 都会换成这个类，运行情况记进 {@link ThreadTelemetry}。
+ * 这个类自己不会被插桩，见 ASMCode.TraceClassAdapter
+ */
 public class CustomThread extends Thread {
-    private static final String TAG = "CustomThread";
+    // 创建这个线程的方法id，插桩代码在构造完之后调用 setCallSiteId 写进来
+    private int callSiteId = ThreadTelemetry.UNKNOWN_CALL_SITE;
+
     public CustomThread() {
         super();
     }
@@ -31,10 +35,22 @@ public class CustomThread extends Thread {
         super(runnable, name);
     }
 
+    public void setCallSiteId(int callSiteId) {
+        this.callSiteId = callSiteId;
+    }
+
+    public int getCallSiteId() {
+        return callSiteId;
+    }
+
     @Override
     public void run() {
-        long start = System.currentTimeMillis();
-        super.run();
-        Log.e(TAG,"thread name:" + getName() + ", run time:" + (System.currentTimeMillis() - start));
+        long start = System.nanoTime();
+        int slot = ThreadTelemetry.onStart(this, callSiteId, start);
+        try {
+            super.run();
+        } finally {
+            ThreadTelemetry.onExit(callSiteId, slot, System.nanoTime() - start);
+        }
     }
 }
@@ -0,0 +1,33 @@
+package com.jeremyliao.gradle;
+
+import android.os.HandlerThread;
+
+/**
+ * studyTransform.threadMode = 'pool' 时，new HandlerThread(name[, priority]) 会被换成这个类，见 ThreadPoolingMethodNode。
+ * <p>
+ * HandlerThread的Looper要一直占着自己的线程，没法和别人共用，这里只登记到 {@link ThreadPoolRegistry}，
+ * 在 ThreadPoolRegistry.dump() 里能看到还活着的HandlerThread。
+ * </p>
+ * 这个类自己不会被插桩，见 ASMCode.TraceClassAdapter
+ */
+public class GovernedHandlerThread extends HandlerThread implements ThreadPoolRegistry.Tracked {
+
+    public GovernedHandlerThread(String name) {
+        super(name);
+        ThreadPoolRegistry.register(this);
+    }
+
+    public GovernedHandlerThread(String name, int priority) {
+        super(name, priority);
+        ThreadPoolRegistry.register(this);
+    }
+
+    @Override
+    public ThreadPoolRegistry.Stats stats() {
+        // 还没start或者已经quit的不算；MessageQueue没有公开的长度，排队数拿不到
+        if (!isAlive()) {
+            return null;
+        }
+        return new ThreadPoolRegistry.Stats(getName(), "HandlerThread", 1, -1);
+    }
+}
@@ -0,0 +1,56 @@
+package com.jeremyliao.gradle;
+
+import java.util.Timer;
+
+/**
+ * studyTransform.threadMode = 'pool' 时，new Timer(...) 会被换成这个类，见 ThreadPoolingMethodNode。
+ * <p>
+ * Timer在构造方法里就起了自己的线程，任务的取消状态也只有Timer自己知道，没法挪到共享线程上，
+ * 这里只登记到 {@link ThreadPoolRegistry}，cancel之前算一个线程。
+ * </p>
+ * 这个类自己不会被插桩，见 ASMCode.TraceClassAdapter
+ */
+public class GovernedTimer extends Timer implements ThreadPoolRegistry.Tracked {
+
+    private final String name;
+    private volatile boolean cancelled;
+
+    public GovernedTimer() {
+        super();
+        // 没有名字的Timer线程名是Timer-序号，拿不到，统一记成Timer
+        this.name = "Timer";
+        ThreadPoolRegistry.register(this);
+    }
+
+    public GovernedTimer(boolean isDaemon) {
+        super(isDaemon);
+        this.name = "Timer";
+        ThreadPoolRegistry.register(this);
+    }
+
+    public GovernedTimer(String name) {
+        super(name);
+        this.name = name;
+        ThreadPoolRegistry.register(this);
+    }
+
+    public GovernedTimer(String name, boolean isDaemon) {
+        super(name, isDaemon);
+        this.name = name;
+        ThreadPoolRegistry.register(this);
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        super.cancel();
+    }
+
+    @Override
+    public ThreadPoolRegistry.Stats stats() {
+        if (cancelled) {
+            return null;
+        }
+        return new ThreadPoolRegistry.Stats(name, "Timer", 1, -1);
+    }
+}
@@ -0,0 +1,143 @@
+package com.jeremyliao.gradle;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 一个方法的耗时分布，桶的个数固定，记录时只有一次原子加，不分配对象、不格式化。
+ * <p>
+ * 1. 按2的幂分段，每段再均分成4个桶，相对误差不超过25%，覆盖 1us ~ 137s，更小的算进第一个桶，更大的算进最后一个桶；
+ * 2. 计数按线程id分成几组(stripe)，不同线程大多落在不同的组里，互相不争抢同一个计数器，读的时候再把各组加起来。
+ * </p>
+ */
+public final class LatencyHistogram {
+
+    // 1024ns以下都算进第0个桶
+    private static final int MIN_SHIFT = 10;
+    // 2^37ns(约137s)以上都算进最后一个桶
+    private static final int MAX_SHIFT = 36;
+    private static final int SUB_BUCKETS = 4;
+    static final int BUCKETS = 1 + (MAX_SHIFT - MIN_SHIFT + 1) * SUB_BUCKETS + 1;
+
+    private static final int STRIPES = stripes();
+
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(STRIPES * BUCKETS);
+    private final AtomicLongArray max = new AtomicLongArray(STRIPES);
+
+    private static int stripes() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < cpus && stripes < 8) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /**
+     * @param nanos 一次调用的耗时
+     */
+    public void record(long nanos) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucketOf(nanos));
+        long current = max.get(stripe);
+        while (nanos > current && !max.compareAndSet(stripe, current, nanos)) {
+            current = max.get(stripe);
+        }
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < (1L << MIN_SHIFT)) {
+            return 0;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(nanos);
+        if (shift > MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (nanos >>> (shift - 2)) & (SUB_BUCKETS - 1);
+        return 1 + (shift - MIN_SHIFT) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return 桶的上界，统计分位数时用
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket == 0) {
+            return 1L << MIN_SHIFT;
+        }
+        if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int shift = (bucket - 1) / SUB_BUCKETS + MIN_SHIFT;
+        int sub = (bucket - 1) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << (shift - 2);
+    }
+
+    /**
+     * @param reset 是否清零，定时dump时清零，每次看到的就是这一个周期内的分布
+     */
+    public Snapshot snapshot(boolean reset) {
+        long[] merged = new long[BUCKETS];
+        long total = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                int index = stripe * BUCKETS + bucket;
+                int count = reset ? counts.getAndSet(index, 0) : counts.get(index);
+                merged[bucket] += count;
+                total += count;
+            }
+        }
+        long maxNanos = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            maxNanos = Math.max(maxNanos, reset ? max.getAndSet(stripe, 0) : max.get(stripe));
+        }
+        return new Snapshot(total, percentile(merged, total, 0.5, maxNanos), percentile(merged, total, 0.9, maxNanos),
+                percentile(merged, total, 0.99, maxNanos), maxNanos);
+    }
+
+    private static long percentile(long[] buckets, long total, double percentile, long maxNanos) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) {
+                // 桶的上界可能比实际的最大值还大
+                return Math.min(upperBoundOf(bucket), maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+
+    /**
+     * 某一时刻的分布，单位都是纳秒
+     */
+    public static final class Snapshot {
+        public final long count;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long max;
+
+        Snapshot(long count, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d p50=%s p90=%s p99=%s max=%s", count, format(p50), format(p90), format(p99), format(max));
+        }
+
+        private static String format(long nanos) {
+            if (nanos >= 1000000) {
+                return String.format("%.1fms", nanos / 1000000.0);
+            }
+            return String.format("%.1fus", nanos / 1000.0);
+        }
+    }
+}
@@ -15,6 +15,8 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        // methodTiming 是 histogram 模式时，每10秒打印一次各方法耗时的分位数
+        MethodHistograms.startPeriodicDump(10);
         startThread();
         AsmCodeTest.methodEnter();
     }
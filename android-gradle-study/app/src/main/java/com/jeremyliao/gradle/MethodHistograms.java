@@ -0,0 +1,156 @@
+package com.jeremyliao.gradle;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * methodTiming 的 histogram 模式下，每个方法一个 {@link LatencyHistogram}，插桩代码只往里记数，不打日志、不格式化。
+ * <p>
+ * 以方法id为key的开放寻址表，槽位用CAS占用，不加锁；每个方法只在第一次调用时分配一次，之后记录不分配对象、也不装箱。
+ * 方法数超过容量时多出来的方法不统计，计数见 {@link #getOverflowCount()}。
+ * dump出来的是方法id，用构建产物 outputs/trace/&lt;variant&gt;/methodIds.txt 翻译成方法名。
+ * </p>
+ * 这个类自己不会被插桩，见 ASMCode.TraceClassAdapter
+ */
+public final class MethodHistograms {
+
+    private static final String TAG = "MethodHistograms";
+
+    // 必须是2的幂
+    private static final int CAPACITY = 1 << 14;
+    private static final int MAX_PROBES = 32;
+
+    private static final AtomicReferenceArray<Entry> table = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicInteger overflow = new AtomicInteger();
+
+    private static ScheduledExecutorService scheduler;
+    private static ScheduledFuture<?> periodicDump;
+
+    private MethodHistograms() {
+    }
+
+    private static final class Entry {
+        final int methodId;
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        Entry(int methodId) {
+            this.methodId = methodId;
+        }
+    }
+
+    public static void record(int methodId, long nanos) {
+        // 方法id本身就是hash，再打散一下低位
+        int index = (methodId ^ (methodId >>> 16)) & (CAPACITY - 1);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            Entry entry = table.get(index);
+            if (entry == null) {
+                Entry created = new Entry(methodId);
+                if (table.compareAndSet(index, null, created)) {
+                    created.histogram.record(nanos);
+                    return;
+                }
+                // 被别的线程抢先占了，重新看这个槽位
+                entry = table.get(index);
+            }
+            if (entry.methodId == methodId) {
+                entry.histogram.record(nanos);
+                return;
+            }
+            index = (index + 1) & (CAPACITY - 1);
+        }
+        overflow.incrementAndGet();
+    }
+
+    /**
+     * 每个方法一行，按p99从大到小排
+     *
+     * @param reset 是否清零，清零后下次dump只包含之后的调用
+     */
+    public static String dump(boolean reset) {
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < CAPACITY; i++) {
+            Entry entry = table.get(i);
+            if (entry == null) {
+                continue;
+            }
+            LatencyHistogram.Snapshot snapshot = entry.histogram.snapshot(reset);
+            if (snapshot.count > 0) {
+                rows.add(new Row(entry.methodId, snapshot));
+            }
+        }
+        Collections.sort(rows, new Comparator<Row>() {
+            @Override
+            public int compare(Row o1, Row o2) {
+                long p1 = o1.snapshot.p99;
+                long p2 = o2.snapshot.p99;
+                return p1 == p2 ? 0 : (p1 > p2 ? -1 : 1);
+            }
+        });
+        StringBuilder builder = new StringBuilder();
+        for (Row row : rows) {
+            builder.append(row.methodId).append(": ").append(row.snapshot).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static final class Row {
+        final int methodId;
+        final LatencyHistogram.Snapshot snapshot;
+
+        Row(int methodId, LatencyHistogram.Snapshot snapshot) {
+            this.methodId = methodId;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * 每隔period秒把这段时间内的分布打到logcat，重复调用时按新的周期重新开始
+     */
+    public static synchronized void startPeriodicDump(long periodSeconds) {
+        stopPeriodicDump();
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "method-histograms-dump");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        periodicDump = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                String dump = dump(true);
+                if (!dump.isEmpty()) {
+                    Log.i(TAG, dump);
+                }
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopPeriodicDump() {
+        if (periodicDump != null) {
+            periodicDump.cancel(false);
+            periodicDump = null;
+        }
+    }
+
+    /**
+     * @return 因为表满了没有统计的调用次数
+     */
+    public static int getOverflowCount() {
+        return overflow.get();
+    }
+}
@@ -0,0 +1,69 @@
+package com.jeremyliao.gradle;
+
+/**
+ * methodTiming 的 slow、histogram 模式下插桩代码调用的计时。
+ * <p>
+ * 方法进入时调用 {@link #start(int)} 决定这次要不要采样，退出时 slow 模式调用 {@link #end(int, long, long)}，
+ * 只把超过阈值的调用交给 {@link TraceRecorder}；histogram 模式调用 {@link #aggregate(int, long)}，记进 {@link MethodHistograms}。
+ * 采样计数按线程id分槽，同一个线程总是落在同一个槽里，不需要ThreadLocal也不需要CAS；
+ * 两个线程偶尔分到同一个槽时计数会有误差，只影响采样的均匀程度。
+ * </p>
+ * 这个类自己不会被插桩，见 ASMCode.TraceClassAdapter
+ */
+public final class MethodTimer {
+
+    /**
+     * 没有采样到，end里直接返回
+     */
+    public static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private static final int SLOTS = 64;
+    // 每个槽占16个int(64字节)，不同线程的计数不在同一个缓存行上
+    private static final int STRIDE = 16;
+    private static final int[] counters = new int[SLOTS * STRIDE];
+
+    private MethodTimer() {
+    }
+
+    /**
+     * @param sampleRate 每个线程每sampleRate次调用采样一次
+     * @return 采样到时返回 System.nanoTime()，否则返回 {@link #NOT_SAMPLED}
+     */
+    public static long start(int sampleRate) {
+        int slot = ((int) Thread.currentThread().getId() & (SLOTS - 1)) * STRIDE;
+        int count = counters[slot] + 1;
+        if (count < sampleRate) {
+            counters[slot] = count;
+            return NOT_SAMPLED;
+        }
+        counters[slot] = 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * @param start          {@link #start(int)} 或 System.nanoTime() 的返回值
+     * @param thresholdNanos 编译期按包名算好的阈值，耗时不低于它才记录
+     */
+    public static void end(int methodId, long start, long thresholdNanos) {
+        if (start == NOT_SAMPLED) {
+            return;
+        }
+        long end = System.nanoTime();
+        if (end - start < thresholdNanos) {
+            return;
+        }
+        // 进入、退出两个事件一起写，drain时按线程成对取出
+        TraceRecorder.record(methodId, start, true);
+        TraceRecorder.record(methodId, end, false);
+    }
+
+    /**
+     * @param start {@link #start(int)} 或 System.nanoTime() 的返回值
+     */
+    public static void aggregate(int methodId, long start) {
+        if (start == NOT_SAMPLED) {
+            return;
+        }
+        MethodHistograms.record(methodId, System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,415 @@
+package com.jeremyliao.gradle;
+
+import android.os.Looper;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * studyTransform.threadMode = 'pool' 时，没有逃逸的 new Thread(r[, name]).start() 会被换成这个类，见 ThreadPoolingMethodNode。
+ * <p>
+ * 构造时只是一个普通的Thread对象，不会创建系统线程；{@link #start()} 把任务提交到进程内共享的线程池，
+ * 执行时把工作线程临时改成这个线程的名字和优先级，执行完再改回来，线程里打出来的日志、trace看到的还是原来的名字。
+ * 在有虚拟线程的JVM上(Java 21+)默认每个任务一个虚拟线程(虚拟线程没有优先级，只保留名字)；
+ * Android上交给空闲的工作线程，工作线程有上限，满了就直接给这个任务起一个不复用的线程，任务不排队，见 {@link Pool}，
+ * 工作线程复用前会清掉上一个任务留下的ThreadLocal、Looper，见 {@link Worker}。
+ * 工作线程都是daemon的，非daemon的PooledThread执行完之前由 {@link KeepAlive} 让进程不退出，和真线程一样。
+ * </p>
+ * 插桩只换那些线程对象只被配置和start的调用点，所以不会有人join、interrupt它。
+ * 这个类自己不会被插桩，见 ASMCode.TraceClassAdapter
+ */
+public class PooledThread extends Thread {
+
+    private static volatile boolean enabled = true;
+    private static volatile boolean useVirtualThreads = true;
+
+    private boolean submitted;
+    // start时的daemon状态，start之后再setDaemon不影响已经提交的任务
+    private boolean daemonAtStart;
+    // 同 CustomThread，插桩代码在构造完之后写进来
+    private int callSiteId = ThreadTelemetry.UNKNOWN_CALL_SITE;
+
+    public PooledThread(Runnable target) {
+        super(target);
+    }
+
+    public PooledThread(Runnable target, String name) {
+        super(target, name);
+    }
+
+    public void setCallSiteId(int callSiteId) {
+        this.callSiteId = callSiteId;
+    }
+
+    public int getCallSiteId() {
+        return callSiteId;
+    }
+
+    /**
+     * @param enable false时start照常起一个线程，线上出问题时可以直接关掉
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * 要在第一次start之前设置
+     */
+    public static void setUseVirtualThreads(boolean use) {
+        useVirtualThreads = use;
+    }
+
+    /**
+     * setEnabled(false) 之后start的线程自己执行，同样记进 {@link ThreadTelemetry}
+     */
+    @Override
+    public void run() {
+        if (Thread.currentThread() != this) {
+            super.run();
+            return;
+        }
+        long start = System.nanoTime();
+        int slot = ThreadTelemetry.onStart(this, callSiteId, start);
+        try {
+            super.run();
+        } finally {
+            ThreadTelemetry.onExit(callSiteId, slot, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!enabled) {
+            super.start();
+            return;
+        }
+        // 和Thread一样，同一个对象只能start一次
+        if (submitted) {
+            throw new IllegalThreadStateException();
+        }
+        submitted = true;
+        daemonAtStart = isDaemon();
+        Pool.execute(this);
+    }
+
+    private static void runAs(PooledThread thread) {
+        Thread worker = Thread.currentThread();
+        String workerName = worker.getName();
+        int workerPriority = worker.getPriority();
+        worker.setName(thread.getName());
+        if (thread.getPriority() != workerPriority) {
+            worker.setPriority(thread.getPriority());
+        }
+        long start = System.nanoTime();
+        int slot = ThreadTelemetry.onStart(thread, thread.callSiteId, start);
+        try {
+            thread.run();
+        } finally {
+            ThreadTelemetry.onExit(thread.callSiteId, slot, System.nanoTime() - start);
+            worker.setName(workerName);
+            if (worker.getPriority() != workerPriority) {
+                worker.setPriority(workerPriority);
+            }
+            if (KeepAlive.needed(thread)) {
+                KeepAlive.leave();
+            }
+        }
+    }
+
+    /**
+     * 第一次start时才创建。
+     * <p>
+     * 任务从不排队：有空闲的工作线程就交给它；没有的话工作线程总数没到 {@link #MAX_WORKERS} 就新起一个，
+     * 到了上限就直接给这个任务起一个不进池子的线程，执行完就退出(直接移交，和原来的 new Thread 一样)。
+     * 所以一直阻塞的任务只占住自己那个线程，不会让后面的任务饿死，也不会因为互相等待死锁，
+     * 常驻的工作线程又不会超过上限；空闲超过30秒的工作线程退出，复用只是省掉短任务创建线程的开销。
+     * </p>
+     */
+    private static final class Pool {
+
+        private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(30);
+        static final int MAX_WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+        static final ExecutorService VIRTUAL = createVirtual();
+
+        // 最近空闲的在前面，优先复用，多出来的线程自然超时退出
+        private static final ArrayDeque<Worker> IDLE = new ArrayDeque<>();
+        private static final AtomicInteger COUNT = new AtomicInteger();
+        // 池子里的工作线程数，包括正在执行的和空闲的，不包括满了之后直接起的线程；在IDLE的锁里读写
+        private static int workers;
+
+        private static ExecutorService createVirtual() {
+            if (!useVirtualThreads) {
+                return null;
+            }
+            try {
+                // Java 21+ 的 Executors.newVirtualThreadPerTaskExecutor()，Android上没有这个方法
+                Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (Exception ignored) {
+                // 用下面的工作线程
+                return null;
+            }
+        }
+
+        static void execute(final PooledThread thread) {
+            // 和 Thread.start 一样，返回之前进程就要等这个任务
+            boolean keepAlive = KeepAlive.needed(thread);
+            if (keepAlive) {
+                KeepAlive.enter();
+            }
+            try {
+                dispatch(thread);
+            } catch (RuntimeException | Error e) {
+                if (keepAlive) {
+                    KeepAlive.leave();
+                }
+                throw e;
+            }
+        }
+
+        private static void dispatch(final PooledThread thread) {
+            if (VIRTUAL != null) {
+                // 每个任务一个新的虚拟线程，不用清理状态
+                VIRTUAL.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runAs(thread);
+                    }
+                });
+                return;
+            }
+            boolean pooled;
+            synchronized (IDLE) {
+                Worker worker = IDLE.pollFirst();
+                if (worker != null) {
+                    worker.next = thread;
+                    IDLE.notifyAll();
+                    return;
+                }
+                pooled = workers < MAX_WORKERS;
+                if (pooled) {
+                    workers++;
+                }
+            }
+            try {
+                new Worker(thread, pooled).start();
+            } catch (RuntimeException | Error e) {
+                if (pooled) {
+                    retire();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * @return 空闲超时返回null，这时已经不在 {@link #IDLE} 里
+         */
+        static PooledThread awaitNext(Worker worker) {
+            synchronized (IDLE) {
+                IDLE.addFirst(worker);
+                long deadline = System.nanoTime() + KEEP_ALIVE_NANOS;
+                while (worker.next == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        IDLE.remove(worker);
+                        return null;
+                    }
+                    try {
+                        IDLE.wait(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+                    } catch (InterruptedException e) {
+                        // 空闲时没人会中断工作线程，真被中断了就退出
+                        IDLE.remove(worker);
+                        return null;
+                    }
+                }
+                PooledThread next = worker.next;
+                worker.next = null;
+                return next;
+            }
+        }
+
+        /**
+         * 池子里的工作线程退出
+         */
+        static void retire() {
+            synchronized (IDLE) {
+                workers--;
+            }
+        }
+    }
+
+    /**
+     * 工作线程、虚拟线程都是daemon的，非daemon的任务还没执行完时进程不能退出：
+     * 这样的任务从0变成1个时起一个非daemon线程等着，全部执行完它就退出，JVM看到的和真线程一样。
+     * Android的进程不会因为线程都结束而退出(主线程一直在Looper里)，有主线程Looper时不需要。
+     */
+    private static final class KeepAlive extends Thread {
+
+        private static final boolean ENABLED = !hasMainLooper();
+        private static final Object LOCK = new Object();
+        // 还没执行完的非daemon任务数，在LOCK里读写
+        private static int pending;
+        private static boolean running;
+
+        private KeepAlive() {
+            super("pooled-thread-keepalive");
+            setDaemon(false);
+        }
+
+        private static boolean hasMainLooper() {
+            try {
+                return Looper.getMainLooper() != null;
+            } catch (RuntimeException | LinkageError e) {
+                // 不在Android上
+                return false;
+            }
+        }
+
+        static boolean needed(PooledThread thread) {
+            return ENABLED && !thread.daemonAtStart;
+        }
+
+        static void enter() {
+            synchronized (LOCK) {
+                pending++;
+                if (!running) {
+                    new KeepAlive().start();
+                    running = true;
+                }
+            }
+        }
+
+        static void leave() {
+            synchronized (LOCK) {
+                if (--pending == 0) {
+                    LOCK.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (LOCK) {
+                while (pending > 0) {
+                    try {
+                        LOCK.wait();
+                    } catch (InterruptedException ignored) {
+                        // 任务没执行完之前不能退出
+                    }
+                }
+                running = false;
+            }
+        }
+    }
+
+    /**
+     * 执行 PooledThread 的工作线程。
+     * <p>
+     * 每个任务都应该看到一个新线程：执行前把PooledThread构造时继承的 InheritableThreadLocal、context classloader 搬过来，
+     * 执行完清掉所有ThreadLocal(Looper.prepare() 的Looper也存在ThreadLocal里)和中断状态再复用；
+     * 任务建了Looper、抛了异常，或者这个系统上清不掉ThreadLocal的，工作线程不再复用，执行完就退出。
+     * 任务抛出的异常和真线程一样交给 PooledThread 的 UncaughtExceptionHandler。
+     * </p>
+     */
+    private static final class Worker extends Thread {
+
+        private static final Field THREAD_LOCALS = threadField("threadLocals");
+        private static final Field INHERITABLE_THREAD_LOCALS = threadField("inheritableThreadLocals");
+
+        // false是池子满了之后直接起的线程，只执行一个任务
+        private final boolean pooled;
+        // 在Pool.IDLE的锁里读写
+        PooledThread next;
+
+        Worker(PooledThread first, boolean pooled) {
+            super("pooled-thread-" + Pool.COUNT.incrementAndGet());
+            setDaemon(true);
+            this.pooled = pooled;
+            this.next = first;
+        }
+
+        private static Field threadField(String name) {
+            try {
+                Field field = Thread.class.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (Exception e) {
+                // 拿不到就不复用工作线程
+                return null;
+            }
+        }
+
+        @Override
+        public void run() {
+            PooledThread thread;
+            synchronized (Pool.IDLE) {
+                thread = next;
+                next = null;
+            }
+            try {
+                while (thread != null && runTask(thread) && pooled) {
+                    thread = Pool.awaitNext(this);
+                }
+            } finally {
+                if (pooled) {
+                    Pool.retire();
+                }
+            }
+        }
+
+        /**
+         * @return 执行完状态清干净了，可以接着复用
+         */
+        private boolean runTask(PooledThread thread) {
+            boolean reusable = prepare(thread);
+            try {
+                runAs(thread);
+            } catch (Throwable e) {
+                reusable = false;
+                Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+                if (handler != null) {
+                    handler.uncaughtException(thread, e);
+                }
+            }
+            return reset() && reusable;
+        }
+
+        private boolean prepare(PooledThread thread) {
+            setContextClassLoader(thread.getContextClassLoader());
+            if (THREAD_LOCALS == null || INHERITABLE_THREAD_LOCALS == null) {
+                return false;
+            }
+            try {
+                // PooledThread不会真的start，它继承下来的值直接给工作线程用
+                INHERITABLE_THREAD_LOCALS.set(this, INHERITABLE_THREAD_LOCALS.get(thread));
+                return true;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        private boolean reset() {
+            Thread.interrupted();
+            if (Looper.myLooper() != null) {
+                // Looper.prepare() 过的线程不能再prepare，换一个线程
+                Looper.myLooper().quit();
+                return false;
+            }
+            if (THREAD_LOCALS == null || INHERITABLE_THREAD_LOCALS == null) {
+                return false;
+            }
+            try {
+                THREAD_LOCALS.set(this, null);
+                INHERITABLE_THREAD_LOCALS.set(this, null);
+                return true;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package com.jeremyliao.gradle;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * studyTransform.threadMode = 'pool' 时，Executors.newFixedThreadPool / newCachedThreadPool / newSingleThreadExecutor
+ * 的调用会被换成这里同名同参数的方法，new HandlerThread、new Timer 换成 {@link GovernedHandlerThread}、{@link GovernedTimer}，
+ * 见 ThreadPoolingMethodNode。
+ * <p>
+ * 1. 每次调用都返回一个新的executor，shutdown、awaitTermination 只影响它自己；fixed、cached 返回 {@link ThreadPoolExecutor}，
+ * 强转没问题，single 和 Executors 一样包一层，不能强转、不能改线程数；
+ * 2. fixed、single、带ThreadFactory的cached 有自己的线程，core、max、keepAlive、队列和 Executors 里的一样，
+ * 线程都由调用方传的ThreadFactory创建，任务顺序、并发数和不插桩时相同；
+ * 3. 不带ThreadFactory的 newCachedThreadPool() 之间是兼容的：都是默认的线程设置、没有并发上限、任务直接移交，
+ * 所以共用一组工作线程，见 {@link SharedCachedExecutor}；
+ * 4. 这里创建的所有线程加起来不超过 {@link #setMaxThreads(int)}：到了上限，fixed、single 的任务在自己的队列里等
+ * (每个executor至少保留一个线程，排队的任务总有线程执行)，cached 的任务直接给它起一个执行完就退出的线程，不排队，
+ * 所以上限不会让cached的任务互相等待死锁，只是不再保留这些线程；
+ * 5. {@link #snapshot()}、{@link #dump()} 看每个executor的线程数、排队数，以及HandlerThread、Timer的线程数。
+ * </p>
+ * 这个类自己不会被插桩，见 ASMCode.TraceClassAdapter
+ */
+public final class ThreadPoolRegistry {
+
+    private static final long CACHED_KEEP_ALIVE_SECONDS = 60;
+
+    private static volatile int maxThreads = Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+
+    // 上限以内的线程数，上限之外直接起的线程不算
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final AtomicInteger executorCount = new AtomicInteger();
+    private static final CopyOnWriteArrayList<WeakReference<Tracked>> tracked = new CopyOnWriteArrayList<>();
+
+    private ThreadPoolRegistry() {
+    }
+
+    /**
+     * 所有executor线程加起来的上限，已经超过的线程空闲后自然退出
+     */
+    public static void setMaxThreads(int max) {
+        maxThreads = Math.max(1, max);
+    }
+
+    /**
+     * 上限以内的线程数
+     */
+    public static int getThreadCount() {
+        return threadCount.get();
+    }
+
+    public static ExecutorService newFixedThreadPool(int nThreads) {
+        return newFixedThreadPool(nThreads, Executors.defaultThreadFactory());
+    }
+
+    public static ExecutorService newFixedThreadPool(int nThreads, ThreadFactory threadFactory) {
+        return track(new GovernedExecutor("fixed(" + nThreads + ")", nThreads, nThreads, 0L,
+                new LinkedBlockingQueue<Runnable>(), threadFactory));
+    }
+
+    public static ExecutorService newCachedThreadPool() {
+        return track(new SharedCachedExecutor());
+    }
+
+    public static ExecutorService newCachedThreadPool(ThreadFactory threadFactory) {
+        return track(new GovernedExecutor("cached", 0, Integer.MAX_VALUE, CACHED_KEEP_ALIVE_SECONDS,
+                new SynchronousQueue<Runnable>(), threadFactory));
+    }
+
+    public static ExecutorService newSingleThreadExecutor() {
+        return newSingleThreadExecutor(Executors.defaultThreadFactory());
+    }
+
+    public static ExecutorService newSingleThreadExecutor(ThreadFactory threadFactory) {
+        return new SingleThreadExecutor(track(new GovernedExecutor("single", 1, 1, 0L,
+                new LinkedBlockingQueue<Runnable>(), threadFactory)));
+    }
+
+    private static <T extends Tracked> T track(T executor) {
+        register(executor);
+        return executor;
+    }
+
+    /**
+     * 只保存弱引用，没人用的executor、结束的线程会被回收
+     */
+    static void register(Tracked item) {
+        tracked.add(new WeakReference<>(item));
+    }
+
+    /**
+     * 在 {@link #snapshot()} 里出现的一项
+     */
+    interface Tracked {
+        /**
+         * @return 已经结束的返回null
+         */
+        Stats stats();
+    }
+
+    /**
+     * 某一时刻一个executor、HandlerThread或Timer的状态
+     */
+    public static final class Stats {
+        public final String name;
+        public final String kind;
+        // 持有的线程数，共用工作线程的executor是正在占用的线程数
+        public final int threads;
+        // 排队等待执行的任务数，HandlerThread和Timer拿不到，是-1
+        public final int queued;
+
+        Stats(String name, String kind, int threads, int queued) {
+            this.name = name;
+            this.kind = kind;
+            this.threads = threads;
+            this.queued = queued;
+        }
+
+        @Override
+        public String toString() {
+            return name + " [" + kind + "] threads=" + threads + (queued >= 0 ? " queued=" + queued : "");
+        }
+    }
+
+    /**
+     * @return 还活着的executor、HandlerThread、Timer，被回收的会顺便清掉
+     */
+    public static List<Stats> snapshot() {
+        List<Stats> result = new ArrayList<>();
+        List<WeakReference<Tracked>> cleared = new ArrayList<>();
+        for (WeakReference<Tracked> reference : tracked) {
+            Tracked item = reference.get();
+            if (item == null) {
+                cleared.add(reference);
+                continue;
+            }
+            Stats stats = item.stats();
+            if (stats != null) {
+                result.add(stats);
+            }
+        }
+        tracked.removeAll(cleared);
+        return result;
+    }
+
+    public static String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("threads ").append(threadCount.get()).append('/').append(maxThreads)
+                .append(", shared cached workers ").append(SharedCachedExecutor.WORKERS.getPoolSize()).append('\n');
+        for (Stats stats : snapshot()) {
+            builder.append("  ").append(stats).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 包一层调用方的ThreadFactory，统计总线程数；到了上限不再给线程(返回null)，
+     * 只有这个executor一个线程都没有的时候例外，保证它排队的任务有线程执行
+     */
+    private static final class CappedThreadFactory implements ThreadFactory {
+        private final ThreadFactory delegate;
+        private final AtomicInteger live = new AtomicInteger();
+
+        CappedThreadFactory(ThreadFactory delegate) {
+            if (delegate == null) {
+                throw new NullPointerException();
+            }
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            if (live.get() > 0 && threadCount.get() >= maxThreads) {
+                return null;
+            }
+            live.incrementAndGet();
+            threadCount.incrementAndGet();
+            Thread thread = delegate.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        release();
+                    }
+                }
+            });
+            if (thread == null) {
+                release();
+            }
+            return thread;
+        }
+
+        private void release() {
+            live.decrementAndGet();
+            threadCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * 线程到了上限时cached的任务不排队，用调用方的ThreadFactory直接起一个线程执行，执行完就退出
+     */
+    private static final class DirectHandOff implements RejectedExecutionHandler {
+        private final ThreadFactory factory;
+
+        DirectHandOff(ThreadFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException(executor + " has been shut down");
+            }
+            Thread thread = factory.newThread(r);
+            if (thread == null) {
+                throw new RejectedExecutionException("no thread for " + executor);
+            }
+            thread.start();
+        }
+    }
+
+    /**
+     * 插桩后 Executors.newXxx 返回的executor，有自己的线程，除了线程总数受上限控制、登记到registry，和 Executors 创建的一样
+     */
+    static final class GovernedExecutor extends ThreadPoolExecutor implements Tracked {
+        private final String name;
+        private final String kind;
+
+        GovernedExecutor(String kind, int corePoolSize, int maximumPoolSize, long keepAliveSeconds,
+                         BlockingQueue<Runnable> workQueue, ThreadFactory threadFactory) {
+            super(corePoolSize, maximumPoolSize, keepAliveSeconds, TimeUnit.SECONDS, workQueue,
+                    new CappedThreadFactory(threadFactory), new DirectHandOff(threadFactory));
+            this.name = "pool-" + executorCount.incrementAndGet();
+            this.kind = kind;
+        }
+
+        @Override
+        public Stats stats() {
+            if (isTerminated()) {
+                return null;
+            }
+            return new Stats(name, kind, getPoolSize(), getQueue().size());
+        }
+
+        @Override
+        public String toString() {
+            return "GovernedExecutor{" + name + ", " + kind + ", " + super.toString() + "}";
+        }
+    }
+
+    /**
+     * 不带ThreadFactory的 newCachedThreadPool() 返回的executor。
+     * <p>
+     * 任务交给所有这样的executor共用的 {@link #WORKERS}，和自己建线程一样是直接移交、不排队、没有并发上限，
+     * 所以共用线程不会改变任务的执行顺序，也不会互相等待；线程是 Executors.defaultThreadFactory() 的设置(非daemon、普通优先级)，
+     * 执行任务时临时改成这个executor的名字。
+     * shutdown、shutdownNow、awaitTermination 只管自己提交的任务，shutdownNow 中断的也只是正在执行自己任务的线程；
+     * 共用的线程不会因为某个executor shutdown就退出，空闲60秒后自己退出。
+     * 继承 ThreadPoolExecutor 只是为了强转不出错，core、max这些设置对共用的线程没有作用。
+     * </p>
+     */
+    static final class SharedCachedExecutor extends ThreadPoolExecutor implements Tracked {
+
+        static final ThreadPoolExecutor WORKERS = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                CACHED_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new CappedThreadFactory(Executors.defaultThreadFactory()), new DirectHandOff(Executors.defaultThreadFactory()));
+
+        private final String name;
+        // 正在执行这个executor的任务的线程
+        private final Set<Thread> running = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        // 已经提交还没执行完的任务数，包括刚交给WORKERS还没开始的
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean shutdown;
+
+        SharedCachedExecutor() {
+            super(0, 1, CACHED_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+            this.name = "pool-" + executorCount.incrementAndGet();
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            if (command == null) {
+                throw new NullPointerException();
+            }
+            pending.incrementAndGet();
+            // 先计数再检查，和shutdown同时发生时 awaitTermination 不会漏掉这个任务
+            if (shutdown) {
+                finish();
+                throw new RejectedExecutionException(name + " has been shut down");
+            }
+            try {
+                WORKERS.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runTask(command);
+                    }
+                });
+            } catch (RuntimeException | Error e) {
+                finish();
+                throw e;
+            }
+        }
+
+        private void runTask(Runnable command) {
+            Thread worker = Thread.currentThread();
+            String workerName = worker.getName();
+            worker.setName(name);
+            running.add(worker);
+            try {
+                command.run();
+            } finally {
+                running.remove(worker);
+                // shutdownNow 的中断只针对这个任务，不能留给共用线程上的下一个任务
+                Thread.interrupted();
+                worker.setName(workerName);
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (pending.decrementAndGet() == 0 && shutdown) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * 任务是直接移交的，没有排队的任务可以返回
+         */
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown();
+            for (Thread thread : running) {
+                thread.interrupt();
+            }
+            return new ArrayList<>();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminating() {
+            return shutdown && pending.get() > 0;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown && pending.get() == 0;
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+
+        @Override
+        public int getPoolSize() {
+            return running.size();
+        }
+
+        @Override
+        public int getActiveCount() {
+            return running.size();
+        }
+
+        @Override
+        public Stats stats() {
+            if (isTerminated()) {
+                return null;
+            }
+            return new Stats(name, "cached(shared)", running.size(), 0);
+        }
+
+        @Override
+        public String toString() {
+            return "SharedCachedExecutor{" + name + ", pending=" + pending.get() + ", shutdown=" + shutdown + "}";
+        }
+    }
+
+    /**
+     * 和 Executors.newSingleThreadExecutor 返回的一样包一层：不是 ThreadPoolExecutor，调用方没法强转了改线程数；
+     * 没人引用时关掉，线程不会一直留着
+     */
+    static final class SingleThreadExecutor extends AbstractExecutorService {
+        private final ExecutorService executor;
+
+        SingleThreadExecutor(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            executor.execute(command);
+        }
+
+        @Override
+        public Future<?> submit(Runnable task) {
+            return executor.submit(task);
+        }
+
+        @Override
+        public <T> Future<T> submit(Runnable task, T result) {
+            return executor.submit(task, result);
+        }
+
+        @Override
+        public <T> Future<T> submit(Callable<T> task) {
+            return executor.submit(task);
+        }
+
+        @Override
+        public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+            return executor.invokeAll(tasks);
+        }
+
+        @Override
+        public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+                throws InterruptedException {
+            return executor.invokeAll(tasks, timeout, unit);
+        }
+
+        @Override
+        public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+            return executor.invokeAny(tasks);
+        }
+
+        @Override
+        public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            return executor.invokeAny(tasks, timeout, unit);
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executor.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executor.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return executor.awaitTermination(timeout, unit);
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                executor.shutdown();
+            } finally {
+                super.finalize();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "SingleThreadExecutor{" + executor + "}";
+        }
+    }
+}
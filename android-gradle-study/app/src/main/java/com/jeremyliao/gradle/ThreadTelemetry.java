@@ -0,0 +1,257 @@
+package com.jeremyliao.gradle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link CustomThread}、{@link PooledThread} 的运行统计：当前线程数、峰值、每个创建位置起了多少线程、运行时长分布，以及活得太久的线程。
+ * <p>
+ * 1. 线程开始、结束时只有几次原子加和CAS，不加锁、不打日志，不会拖慢线程启动；
+ * 2. 创建位置是插桩时注入的方法id(new Thread 所在的方法)，和方法耗时用同一张表，
+ * 用构建产物 outputs/trace/&lt;variant&gt;/methodIds.txt 翻译成方法名，没有注入的记成 {@link #UNKNOWN_CALL_SITE}；
+ * 3. 正在运行的线程占一个槽位，结束时让出，{@link #snapshot(long)} 扫一遍槽位就能找出活了超过N秒的线程，
+ * 比如一直sleep的线程；同时运行的线程超过槽位数时，多出来的只计数，不出现在这个列表里。
+ * </p>
+ * 这个类自己不会被插桩，见 ASMCode.TraceClassAdapter
+ */
+public final class ThreadTelemetry {
+
+    public static final int UNKNOWN_CALL_SITE = 0;
+
+    // 都必须是2的幂
+    private static final int CALL_SITE_CAPACITY = 1 << 10;
+    private static final int LIVE_CAPACITY = 1 << 10;
+    private static final int MAX_PROBES = 32;
+
+    private static final AtomicInteger live = new AtomicInteger();
+    private static final AtomicInteger peak = new AtomicInteger();
+    private static final AtomicLong started = new AtomicLong();
+    private static final LatencyHistogram runTimes = new LatencyHistogram();
+    private static final AtomicReferenceArray<CallSite> callSites = new AtomicReferenceArray<>(CALL_SITE_CAPACITY);
+    private static final AtomicReferenceArray<Running> running = new AtomicReferenceArray<>(LIVE_CAPACITY);
+    private static final AtomicInteger overflow = new AtomicInteger();
+
+    private ThreadTelemetry() {
+    }
+
+    private static final class CallSite {
+        final int id;
+        final AtomicLong started = new AtomicLong();
+        final AtomicInteger live = new AtomicInteger();
+
+        CallSite(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * 占着槽位的线程，每个线程开始时分配一次
+     */
+    private static final class Running {
+        final Thread thread;
+        final int callSiteId;
+        final long startNanos;
+
+        Running(Thread thread, int callSiteId, long startNanos) {
+            this.thread = thread;
+            this.callSiteId = callSiteId;
+            this.startNanos = startNanos;
+        }
+    }
+
+    /**
+     * 在执行任务的线程上、执行之前调用
+     *
+     * @param thread     PooledThread 是被执行的那个线程对象，不是当前的工作线程
+     * @param startNanos System.nanoTime()
+     * @return 占到的槽位，交给 {@link #onExit(int, int, long)}；没占到是-1
+     */
+    static int onStart(Thread thread, int callSiteId, long startNanos) {
+        started.incrementAndGet();
+        int current = live.incrementAndGet();
+        int max = peak.get();
+        while (current > max && !peak.compareAndSet(max, current)) {
+            max = peak.get();
+        }
+        CallSite site = callSiteOf(callSiteId);
+        if (site != null) {
+            site.started.incrementAndGet();
+            site.live.incrementAndGet();
+        }
+        return claimSlot(new Running(thread, callSiteId, startNanos));
+    }
+
+    static void onExit(int callSiteId, int slot, long runNanos) {
+        if (slot >= 0) {
+            running.set(slot, null);
+        }
+        live.decrementAndGet();
+        CallSite site = callSiteOf(callSiteId);
+        if (site != null) {
+            site.live.decrementAndGet();
+        }
+        runTimes.record(runNanos);
+    }
+
+    private static int claimSlot(Running item) {
+        long id = Thread.currentThread().getId();
+        int index = (int) (id ^ (id >>> 16)) & (LIVE_CAPACITY - 1);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            if (running.get(index) == null && running.compareAndSet(index, null, item)) {
+                return index;
+            }
+            index = (index + 1) & (LIVE_CAPACITY - 1);
+        }
+        overflow.incrementAndGet();
+        return -1;
+    }
+
+    /**
+     * 和 MethodHistograms 一样的开放寻址表，每个创建位置只在第一次起线程时分配一次
+     */
+    private static CallSite callSiteOf(int id) {
+        int index = (id ^ (id >>> 16)) & (CALL_SITE_CAPACITY - 1);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            CallSite site = callSites.get(index);
+            if (site == null) {
+                CallSite created = new CallSite(id);
+                if (callSites.compareAndSet(index, null, created)) {
+                    return created;
+                }
+                site = callSites.get(index);
+            }
+            if (site.id == id) {
+                return site;
+            }
+            index = (index + 1) & (CALL_SITE_CAPACITY - 1);
+        }
+        return null;
+    }
+
+    /**
+     * @param longLivedSeconds 活得比这个时间长的线程会列在 {@link Snapshot#longLived} 里
+     */
+    public static Snapshot snapshot(long longLivedSeconds) {
+        List<CallSiteStats> sites = new ArrayList<>();
+        for (int i = 0; i < CALL_SITE_CAPACITY; i++) {
+            CallSite site = callSites.get(i);
+            if (site != null) {
+                sites.add(new CallSiteStats(site.id, site.started.get(), site.live.get()));
+            }
+        }
+        Collections.sort(sites, new Comparator<CallSiteStats>() {
+            @Override
+            public int compare(CallSiteStats o1, CallSiteStats o2) {
+                return o1.started == o2.started ? 0 : (o1.started > o2.started ? -1 : 1);
+            }
+        });
+        long now = System.nanoTime();
+        long minNanos = TimeUnit.SECONDS.toNanos(longLivedSeconds);
+        List<LongLivedThread> longLived = new ArrayList<>();
+        for (int i = 0; i < LIVE_CAPACITY; i++) {
+            Running item = running.get(i);
+            if (item == null) {
+                continue;
+            }
+            long aliveNanos = now - item.startNanos;
+            if (aliveNanos >= minNanos) {
+                longLived.add(new LongLivedThread(item.thread.getName(), item.callSiteId,
+                        TimeUnit.NANOSECONDS.toMillis(aliveNanos)));
+            }
+        }
+        Collections.sort(longLived, new Comparator<LongLivedThread>() {
+            @Override
+            public int compare(LongLivedThread o1, LongLivedThread o2) {
+                return o1.aliveMillis == o2.aliveMillis ? 0 : (o1.aliveMillis > o2.aliveMillis ? -1 : 1);
+            }
+        });
+        return new Snapshot(live.get(), peak.get(), started.get(), runTimes.snapshot(false), sites, longLived,
+                overflow.get());
+    }
+
+    /**
+     * 一个创建位置的统计
+     */
+    public static final class CallSiteStats {
+        public final int callSiteId;
+        public final long started;
+        public final int live;
+
+        CallSiteStats(int callSiteId, long started, int live) {
+            this.callSiteId = callSiteId;
+            this.started = started;
+            this.live = live;
+        }
+
+        @Override
+        public String toString() {
+            return callSiteId + ": started=" + started + " live=" + live;
+        }
+    }
+
+    public static final class LongLivedThread {
+        public final String name;
+        public final int callSiteId;
+        public final long aliveMillis;
+
+        LongLivedThread(String name, int callSiteId, long aliveMillis) {
+            this.name = name;
+            this.callSiteId = callSiteId;
+            this.aliveMillis = aliveMillis;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + callSiteId + ") alive " + aliveMillis + "ms";
+        }
+    }
+
+    /**
+     * 某一时刻的统计，各项是分别读的，彼此之间不保证严格一致
+     */
+    public static final class Snapshot {
+        public final int live;
+        public final int peak;
+        public final long started;
+        // 已经结束的线程的运行时长
+        public final LatencyHistogram.Snapshot runTimes;
+        // 按起的线程数从多到少排
+        public final List<CallSiteStats> callSites;
+        // 按活的时间从长到短排
+        public final List<LongLivedThread> longLived;
+        // 因为同时运行的线程太多、没占到槽位的线程数(累计)，这些线程不会出现在longLived里
+        public final int untracked;
+
+        Snapshot(int live, int peak, long started, LatencyHistogram.Snapshot runTimes, List<CallSiteStats> callSites,
+                 List<LongLivedThread> longLived, int untracked) {
+            this.live = live;
+            this.peak = peak;
+            this.started = started;
+            this.runTimes = runTimes;
+            this.callSites = callSites;
+            this.longLived = longLived;
+            this.untracked = untracked;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("threads live=").append(live).append(" peak=").append(peak).append(" started=").append(started)
+                    .append(" untracked=").append(untracked).append('\n');
+            builder.append("run time ").append(runTimes).append('\n');
+            for (CallSiteStats site : callSites) {
+                builder.append("  site ").append(site).append('\n');
+            }
+            for (LongLivedThread thread : longLived) {
+                builder.append("  long lived ").append(thread).append('\n');
+            }
+            return builder.toString();
+        }
+    }
+}
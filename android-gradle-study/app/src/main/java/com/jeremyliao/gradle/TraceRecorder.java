@@ -0,0 +1,113 @@
+package com.jeremyliao.gradle;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 方法耗时的记录器，StudyTransform 插桩后每个方法进入、退出时调用 {@link #record(int, long, boolean)}。
+ * <p>
+ * 原来插桩的代码在每个方法退出时 new StringBuilder、拼字符串再 Log.d，统计出来的耗时大部分是统计本身的开销。
+ * 现在插桩代码只传基本类型，写到预先分配好的环形数组里：
+ * 1. 所有线程共用一个buffer，用 AtomicLong 的自增分配槽位，不加锁；
+ * 2. 热路径上不分配对象，也不做任何IO；
+ * 3. 由其他线程调用 {@link #drain(Visitor)} 取出事件再统计、上报，取得太慢被覆盖的事件会被丢弃并计数。
+ * </p>
+ * 这个类自己不会被插桩，见 ASMCode.TraceClassAdapter
+ */
+public final class TraceRecorder {
+
+    // 必须是2的幂，槽位用 & MASK 计算
+    public static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final int[] methodIds = new int[CAPACITY];
+    private static final long[] timestamps = new long[CAPACITY];
+    private static final long[] threadIds = new long[CAPACITY];
+    private static final boolean[] enters = new boolean[CAPACITY];
+    // 槽位写完后存 seq + 1，读的时候以此判断这个槽位是不是已经写完、是不是还是要读的那一个事件
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    // 下一个要分配的序号
+    private static final AtomicLong cursor = new AtomicLong();
+
+    // 以下只有drain的线程访问，drain是synchronized的
+    private static long readSeq;
+    private static long dropped;
+
+    private static volatile boolean enabled = true;
+
+    private TraceRecorder() {
+    }
+
+    /**
+     * 插桩代码调用，不要手动调用
+     *
+     * @param methodId  编译期分配的方法id
+     * @param timestamp System.nanoTime()
+     * @param enter     true是方法进入，false是方法退出(包括抛异常)
+     */
+    public static void record(int methodId, long timestamp, boolean enter) {
+        if (!enabled) {
+            return;
+        }
+        long seq = cursor.getAndIncrement();
+        int slot = (int) (seq & MASK);
+        methodIds[slot] = methodId;
+        timestamps[slot] = timestamp;
+        threadIds[slot] = Thread.currentThread().getId();
+        enters[slot] = enter;
+        // 有序写，保证上面几个字段先于序号对drain线程可见
+        published.lazySet(slot, seq + 1);
+    }
+
+    public static void setEnabled(boolean enabled) {
+        TraceRecorder.enabled = enabled;
+    }
+
+    /**
+     * 取出目前已经写完的事件，按写入顺序回调
+     *
+     * @return 本次取出的事件个数
+     */
+    public static synchronized int drain(Visitor visitor) {
+        long end = cursor.get();
+        if (end - readSeq > CAPACITY) {
+            // 落后超过一圈，最老的那些已经被覆盖了
+            dropped += end - readSeq - CAPACITY;
+            readSeq = end - CAPACITY;
+        }
+        int count = 0;
+        while (readSeq < end) {
+            long seq = readSeq;
+            int slot = (int) (seq & MASK);
+            long flag = published.get(slot);
+            if (flag < seq + 1) {
+                // 槽位已经分配但还没写完，下次再取
+                break;
+            }
+            int methodId = methodIds[slot];
+            long timestamp = timestamps[slot];
+            long threadId = threadIds[slot];
+            boolean enter = enters[slot];
+            readSeq++;
+            // 读的过程中被下一圈的写入覆盖了
+            if (flag != seq + 1 || cursor.get() - seq > CAPACITY) {
+                dropped++;
+                continue;
+            }
+            visitor.onEvent(threadId, methodId, timestamp, enter);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return 因为没有及时drain被覆盖掉的事件个数
+     */
+    public static synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    public interface Visitor {
+        void onEvent(long threadId, int methodId, long timestamp, boolean enter);
+    }
+}
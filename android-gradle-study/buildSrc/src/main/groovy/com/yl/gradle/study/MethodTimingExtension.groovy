@@ -0,0 +1,19 @@
+package com.yl.gradle.study
+
+/**
+ * ASMCode 插桩耗时代码的配置，在build.gradle里通过 methodTiming {} 声明，见 {@link TimingConfig}
+ */
+class MethodTimingExtension {
+    // trace：每次进入、退出都记录；slow：只记录超过阈值的调用；histogram：记进每个方法的耗时分布，定时dump分位数
+    String mode = TimingConfig.MODE_TRACE
+    // slow模式下的默认阈值，单位微秒
+    long thresholdMicros = 16000
+    // slow模式下按包名配置的阈值，单位微秒，比如 ['com.jeremyliao.gradle': 2000]，最长匹配的生效
+    Map<String, Long> packageThresholdMicros = [:]
+    // slow、histogram模式下每个线程每N次调用采样一次，1表示每次都统计
+    int sampleRate = 1
+
+    TimingConfig toConfig() {
+        return new TimingConfig(mode, thresholdMicros, packageThresholdMicros, sampleRate)
+    }
+}
@@ -12,6 +12,12 @@ class StudyGradlePlugin implements Plugin<Project> {
         println "Hello plugin..." + target.name
         // 这个name就是在gralde文件里声明的key值
         target.extensions.create("studyInfo", StudyPluginInfoExtension.class)
+        target.extensions.create("studyTransform", StudyTransformExtension.class)
+        target.extensions.create("methodTiming", MethodTimingExtension.class)
+        // 插桩总线，其他插件往这里注册自己的ClassVisitor，和线程替换、耗时统计一起在StudyTransform里一趟处理完
+        def bus = target.extensions.create("instrumentationBus", InstrumentationBus.class)
+        bus.register(StudyTransform.newThreadFactory(null))
+        bus.register(StudyTransform.newTraceFactory(null, TimingConfig.DEFAULT))
 
         // 配置阶段extensions是没有注入的，在task执行阶段才会执行，so why
         println "Hello plugin...  findByName extensions is " + target.extensions.findByName("studyInfo").properties
@@ -34,7 +40,31 @@ class StudyGradlePlugin implements Plugin<Project> {
 
         // 注册我们自定义的 Transform
         def appExtension = target.extensions.findByType(AppExtension.class)
-        appExtension.registerTransform(new StudyTransform());
+        appExtension.registerTransform(new StudyTransform(target));
+
+        // 开了混淆的variant，混淆结束后把 proguard/R8 的混淆名合并到方法id映射文件里
+        appExtension.applicationVariants.all { variant ->
+            if (!variant.buildType.minifyEnabled) {
+                return
+            }
+            def variantName = variant.name.capitalize()
+            def mergeTask = target.tasks.create("merge${variantName}MethodIdMapping", {
+                doLast {
+                    def idMapping = StudyTransform.methodIdMappingFile(target, variant.name)
+                    def proguardMapping = variant.mappingFile
+                    if (idMapping.isFile() && proguardMapping != null && proguardMapping.isFile()) {
+                        def output = new File(idMapping.parentFile, StudyTransform.OBFUSCATED_MAPPING_NAME)
+                        MethodIdRegistry.mergeProguardMapping(idMapping, proguardMapping, output)
+                        println "merge method id mapping to ${output.absolutePath}"
+                    }
+                }
+            })
+            target.tasks.matching {
+                it.name == "minify${variantName}WithR8" || it.name == "minify${variantName}WithProguard"
+            }.all {
+                it.finalizedBy(mergeTask)
+            }
+        }
 
     }
 }
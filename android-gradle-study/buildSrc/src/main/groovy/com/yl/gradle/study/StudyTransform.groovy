@@ -4,21 +4,50 @@ import com.android.build.api.transform.*
 import com.android.build.gradle.internal.pipeline.TransformManager
 import groovy.io.FileType
 import org.apache.commons.io.FileUtils
-import org.apache.commons.io.IOUtils
+import org.gradle.api.Project
 import org.gradle.util.GFileUtils
 import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassVisitor
 import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Opcodes
 
-import java.util.jar.JarEntry
-import java.util.jar.JarFile
-import java.util.jar.JarOutputStream
-import java.util.zip.ZipEntry
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.TimeUnit
 
 /**
  * @author yulun* @sinice 2021-10-13 17:58
+ * <p>
+ * 也是 {@link InstrumentationBus} 的宿主：所有注册到总线上的插桩步骤都在这一个transform里完成，
+ * 每个class只读、解析、写出一次。自己的线程替换、耗时统计是两个步骤，见 {@link #newThreadFactory()}、{@link #newTraceFactory()}。
+ * </p>
  */
 class StudyTransform extends Transform {
 
+    // checkClassFile 过滤规则的版本号，参与缓存key，改了过滤规则要加1
+    static final int FILTER_VERSION = 2
+    // ASMCode在总线上的位置，其他插件可以用更小或更大的order排在它前面或后面
+    static final int TRACE_ORDER = 100
+    // 线程替换排在耗时统计前面，和以前在同一个visitor里时的顺序一样
+    static final int THREAD_ORDER = 90
+    static final String METHOD_ID_MAPPING_NAME = "methodIds.txt"
+    static final String OBFUSCATED_MAPPING_NAME = "methodIds.obfuscated.txt"
+    // 缓存jar时一起存下这个jar里插桩方法的id表，命中时不跑ASM也能把它们登记进映射文件
+    static final String METHOD_IDS_EXTRA = "methodIds"
+    // 还有重新计算栈帧时查过的公共父类，命中时按这次的继承关系检查，见 ResolvedTypes
+    static final String FRAME_TYPES_EXTRA = "frameTypes"
+    static final String CLASS_HIERARCHY_NAME = "classHierarchy.txt"
+    // 整个transform重新计算栈帧时查过的公共父类，增量编译时检查没重新处理的输出，见 ResolvedTypes
+    static final String FRAME_TYPES_NAME = "frameTypes.txt"
+
+    final Project project
+
+    StudyTransform(Project project) {
+        this.project = project
+    }
+
     /**
      * 名称
      * @return
@@ -76,78 +105,451 @@ class StudyTransform extends Transform {
         def inputs = transformInvocation.inputs
         def outputProvider = transformInvocation.outputProvider
 
-        // 当前transform是否支持增量
-        if (!transformInvocation.isIncremental()) {
-            outputProvider.deleteAll()
-        }
+        // 当前transform是否增量；继承关系变了时会退回全量，所以先不删输出，等下面扫描完再决定
+        boolean incremental = transformInvocation.incremental
 
-        // Transform 的 inputs 有两种类型，一种是目录，一种是 jar 包，要分开遍历
-        inputs.each { TransformInput input ->
-            // 遍历 directoryInputs（本地 project 编译成的多个 class ⽂件存放的目录）
-            input.directoryInputs.each { DirectoryInput directoryInput ->
-                try {
-                    handleDirectory(directoryInput, transformInvocation)
-                } catch (Exception e) {
-                    e.printStackTrace()
+        def config = project.extensions.findByType(StudyTransformExtension.class) ?: new StudyTransformExtension()
+        def timing = (project.extensions.findByType(MethodTimingExtension.class) ?: new MethodTimingExtension()).toConfig()
+        println "MyTransform $timing"
+        def bus = project.extensions.findByType(InstrumentationBus.class)
+        if (bus == null) {
+            bus = new InstrumentationBus()
+            bus.register(newThreadFactory(null))
+            bus.register(newTraceFactory(null, TimingConfig.DEFAULT))
+        }
+        // jar内的entry交给线程池并行插桩，写入仍保持原顺序
+        def jarRewriter = new ParallelJarRewriter(config.parallelism, config.maxInFlightEntries)
+        // 插桩方法的id表，增量编译时先读入上次的，没有被重新处理的class也要留在表里；退回全量时也读，没变的方法id不变
+        def mappingFile = methodIdMappingFile(project, transformInvocation.context.variantName)
+        def registry = new MethodIdRegistry()
+        if (incremental) {
+            registry.load(mappingFile)
+        }
+        // 插桩之前先把所有输入的继承关系准备好，步骤可以按子类型插桩；增量编译时只更新变化的jar和文件
+        def hierarchyFile = classHierarchyFile(project, transformInvocation.context.variantName)
+        def frameTypesFile = new File(hierarchyFile.parentFile, FRAME_TYPES_NAME)
+        List<String> previousFrameTypes = null
+        def hierarchy = new ClassHierarchy()
+        def hierarchyStart = System.currentTimeMillis()
+        boolean hierarchyLoaded = incremental && hierarchy.load(hierarchyFile)
+        def previous = hierarchyLoaded ? hierarchy.copy() : null
+        // 扫描的同时收集要插桩的方法，插桩前按签名排序登记，id不受并行任务先后的影响
+        def bootJars = bootClasspath(project)
+        Set<String> methods = collectMethodsWhileScanning(hierarchy, bootJars)
+        updateHierarchy(hierarchy, inputs, bootJars, hierarchyLoaded, config.parallelism)
+        hierarchy.classListener = null
+        registry.registerAll(methods)
+        println "MyTransform class hierarchy ${hierarchy.size()} classes, ${hierarchyLoaded ? 'incremental' : 'full scan'}, ${System.currentTimeMillis() - hierarchyStart} ms"
+        if (incremental && !hierarchyLoaded) {
+            // 没有上次的存档，不知道哪些没变的类受影响
+            println "MyTransform no class hierarchy archive, fall back to full transform"
+            incremental = false
+        } else if (incremental) {
+            // 没变的类的父类、接口变了：按子类型插桩的步骤、重新计算的栈帧都可能跟着变，只处理变化的文件不够
+            def affected = hierarchy.subtypesOf(hierarchy.changedSince(previous))
+            if (!affected.isEmpty()) {
+                println "MyTransform supertypes of ${affected.size()} classes changed, e.g. ${affected.iterator().next()}, fall back to full transform"
+                incremental = false
+            } else {
+                // 父类没变也可能两个类的公共父类变了，没重新处理的jar、class里的栈帧就是按原来的答案算的
+                previousFrameTypes = ResolvedTypes.read(frameTypesFile)
+                if (previousFrameTypes == null || !ResolvedTypes.stillValid(previousFrameTypes, hierarchy)) {
+                    println "MyTransform common super classes used by frames changed, fall back to full transform"
+                    incremental = false
                 }
             }
+        }
+        if (!incremental) {
+            outputProvider.deleteAll()
+        }
+        def cache = createCache(config, bus, timing)
+        // 总线上所有步骤融合成一趟；每个步骤有自己的常量池预过滤，都不需要插桩的类原样输出
+        def pass = bus.newPass(config.profileVisitors, hierarchy, newThreadFactory(registry, config.poolThreads),
+                newTraceFactory(registry, timing, config.computeFrames))
+        println "MyTransform visitors: ${bus.factories}"
 
-            // 遍历 jarInputs（各个依赖所编译成的 jar 文件）
-            input.jarInputs.each { JarInput jarInput ->
-                try {
-                    // 遍历每个jar文件
-                    handleJar(jarInput, transformInvocation)
-                } catch (Exception e) {
-                    e.printStackTrace()
+        try {
+            // Transform 的 inputs 有两种类型，一种是目录，一种是 jar 包，每个都是一个fork-join任务
+            List<Callable<Void>> tasks = []
+            // 遍历 jarInputs（各个依赖所编译成的 jar 文件），按大小降序提交，最大的jar最先开始，不会拖在最后
+            List<JarInput> jarInputs = inputs.collectMany { it.jarInputs }
+            jarInputs.sort { JarInput a, JarInput b -> Long.compare(b.file.length(), a.file.length()) }
+            jarInputs.each { JarInput jarInput ->
+                tasks.add({
+                    try {
+                        handleJar(jarInput, transformInvocation, incremental, jarRewriter, cache, pass, registry, config.singlePass)
+                    } catch (Exception e) {
+                        e.printStackTrace()
+                    }
+                    null
+                } as Callable<Void>)
+            }
+            // 遍历 directoryInputs（本地 project 编译成的多个 class ⽂件存放的目录），单趟全量时每个class再拆成子任务
+            inputs.each { TransformInput input ->
+                input.directoryInputs.each { DirectoryInput directoryInput ->
+                    tasks.add({
+                        try {
+                            if (config.singlePass) {
+                                handleDirectorySinglePass(directoryInput, transformInvocation, incremental, pass)
+                            } else {
+                                handleDirectory(directoryInput, transformInvocation, incremental, pass)
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace()
+                        }
+                        null
+                    } as Callable<Void>)
                 }
             }
+            runWorkStealing(tasks, config.parallelism)
+        } finally {
+            jarRewriter.close()
         }
 
         def cost = (System.currentTimeMillis() - startTime) / 1000
         println '--------------- MyTransform visit end --------------- '
+        print pass.report()
+        registry.write(mappingFile)
+        println "MyTransform ${registry.size()} method ids written to ${mappingFile.absolutePath}"
+        hierarchy.write(hierarchyFile)
+        // 增量编译时没重新处理的输出还依赖上次的查询，一起留着；已经过时的只会让以后多退回一次全量
+        def frameTypes = pass.resolvedTypes
+        if (incremental) {
+            frameTypes.addAll(previousFrameTypes)
+        }
+        frameTypes.write(frameTypesFile)
+        registry.collisions.each {
+            project.logger.info("MyTransform method id probed $it")
+        }
+        if (cache != null) {
+            println "MyTransform jar cache hit ${cache.hitCount}, miss ${cache.missCount}"
+            // 这次用到的项刚刷新过修改时间，不会被淘汰
+            cache.trim(config.cacheMaxSizeMb * 1024L * 1024L, TimeUnit.DAYS.toMillis(config.cacheMaxAgeDays))
+        }
         println "MyTransform cost ： $cost s"
     }
 
-    // 本地依赖的lib也是当做jar处理
-    static void handleJar(JarInput jarInput, TransformInvocation transformInvocation) {
+    /**
+     * 在work-stealing线程池里执行所有任务，空闲的线程会去拿别的线程拆出来的子任务；
+     * 任务在同一个线程池里可以用 {@link #forEachParallel} 继续拆分。parallelism小于等于1时在当前线程按顺序执行
+     */
+    static void runWorkStealing(List<Callable<Void>> tasks, int parallelism) {
+        if (parallelism <= 1) {
+            tasks.each { it.call() }
+            return
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism)
+        try {
+            // 按提交顺序开始；任务自己处理了异常，这里get只是把意外的错误抛出来
+            pool.invokeAll(tasks).each { it.get() }
+        } finally {
+            pool.shutdown()
+        }
+    }
+
+    /**
+     * 在fork-join线程池里时每个元素一个子任务，否则按顺序执行
+     */
+    static <T> void forEachParallel(Collection<T> items, Closure action) {
+        if (!ForkJoinTask.inForkJoinPool()) {
+            items.each(action)
+            return
+        }
+        ForkJoinTask.invokeAll(items.collect { T item ->
+            ForkJoinTask.adapt({ action.call(item); null } as Callable<Void>)
+        })
+    }
+
+    /**
+     * 方法id映射文件，每个variant一个，混淆后会在同一个目录生成带混淆名的 {@link #OBFUSCATED_MAPPING_NAME}
+     */
+    static File methodIdMappingFile(Project project, String variantName) {
+        return new File(project.buildDir, "outputs/trace/${variantName}/${METHOD_ID_MAPPING_NAME}")
+    }
+
+    /**
+     * 类继承关系的存档，每个variant一个，和transform的输出一样放在构建目录里，clean之后全量扫描
+     */
+    static File classHierarchyFile(Project project, String variantName) {
+        return new File(project.buildDir, "intermediates/study-transform/${variantName}/${CLASS_HIERARCHY_NAME}")
+    }
+
+    /**
+     * android.jar 不是transform的输入，但是app里的类大多继承自它，也要扫描；它不会变，已经扫描过就跳过
+     */
+    static List<File> bootClasspath(Project project) {
+        def android = project.extensions.findByName('android')
+        return android != null ? android.bootClasspath : []
+    }
+
+    /**
+     * 扫描到的类里会被 {@link #newThreadFactory}、{@link #newTraceFactory} 登记id的方法：
+     * 过滤规则和这两个步骤一样，android.jar 不插桩，不收集
+     */
+    static Set<String> collectMethodsWhileScanning(ClassHierarchy hierarchy, List<File> bootClasspath) {
+        Set<String> methods = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>())
+        Set<String> bootSources = bootClasspath.collect { it.absolutePath } as Set<String>
+        hierarchy.classListener = { String source, ClassReader reader ->
+            if (!bootSources.contains(source) && checkClassFile(reader.className + ".class")
+                    && !ASMCode.RUNTIME_CLASSES.contains(reader.className)) {
+                MethodIdRegistry.collectMethods(reader, methods)
+            }
+        } as ClassHierarchy.ClassListener
+        return methods
+    }
+
+    /**
+     * 更新类继承关系，每个jar、目录一个任务并行扫描，只读class头
+     *
+     * @param incremental 是否在上次的结果上更新；为false时 hierarchy 是空的，所有输入都要扫描
+     */
+    static void updateHierarchy(ClassHierarchy hierarchy, Collection<TransformInput> inputs, List<File> bootClasspath,
+                                boolean incremental, int parallelism) {
+        List<Callable<Void>> tasks = []
+        def scanJar = { File jar ->
+            tasks.add({ hierarchy.scanJar(jar); null } as Callable<Void>)
+        }
+        bootClasspath.each { File jar ->
+            if (jar.isFile() && !hierarchy.hasSource(jar.absolutePath)) {
+                scanJar(jar)
+            }
+        }
+        inputs.each { TransformInput input ->
+            input.jarInputs.each { JarInput jarInput ->
+                def source = jarInput.file.absolutePath
+                if (!incremental) {
+                    // 没有存档的增量编译，输入里还有这次删除的jar
+                    if (jarInput.file.isFile()) {
+                        scanJar(jarInput.file)
+                    }
+                    return
+                }
+                switch (jarInput.status) {
+                    case Status.ADDED:
+                    case Status.CHANGED:
+                        hierarchy.removeSource(source)
+                        scanJar(jarInput.file)
+                        break
+                    case Status.REMOVED:
+                        hierarchy.removeSource(source)
+                        break
+                    default:
+                        // 没变化，但上次的存档里没有它，比如存档是别的配置写的
+                        if (!hierarchy.hasSource(source)) {
+                            scanJar(jarInput.file)
+                        }
+                }
+            }
+            input.directoryInputs.each { DirectoryInput directoryInput ->
+                def inputDir = directoryInput.file
+                def source = inputDir.absolutePath
+                if (!incremental || !hierarchy.hasSource(source)) {
+                    tasks.add({ hierarchy.scanDirectory(inputDir); null } as Callable<Void>)
+                    return
+                }
+                // 增量编译时变化的文件一般很少，直接在当前线程更新
+                directoryInput.changedFiles.each { File file, Status status ->
+                    switch (status) {
+                        case Status.ADDED:
+                        case Status.CHANGED:
+                            hierarchy.scanFile(source, file)
+                            break
+                        case Status.REMOVED:
+                            def entryName = entryNameOf(file, inputDir)
+                            if (entryName.endsWith(".class")) {
+                                hierarchy.removeClass(source, entryName.substring(0, entryName.length() - ".class".length()))
+                            }
+                            break
+                    }
+                }
+            }
+        }
+        ClassHierarchy.runAll(tasks, parallelism)
+    }
+
+    /**
+     * 线程替换，作为总线上的一个步骤，只处理常量池里有Thread(pool模式还有线程池、HandlerThread、Timer)的类
+     *
+     * @param registry 和 {@link #newTraceFactory} 用同一个，setCallSiteId 的参数就是创建线程的方法的id
+     * @param poolThreads 没有逃逸的 new Thread(r).start() 换成 PooledThread，见 ThreadPoolingMethodNode
+     */
+    static ClassVisitorFactory newThreadFactory(MethodIdRegistry registry, boolean poolThreads = false) {
+        return new ClassVisitorFactory("ASMCode.ThreadClassAdapter", THREAD_ORDER) {
+            @Override
+            boolean accept(String entryName) {
+                return checkClassFile(entryName)
+            }
+
+            @Override
+            ClassPrefilter newPrefilter() {
+                return ThreadClassAdapter.newPrefilter(poolThreads)
+            }
+
+            @Override
+            int getVersion() {
+                return ASMCode.VERSION
+            }
+
+            @Override
+            int getWriterFlags() {
+                // setCallSiteId 多压了两个栈；只改类型、不加分支，原来的栈帧仍然成立
+                return ClassWriter.COMPUTE_MAXS
+            }
+
+            @Override
+            ClassVisitor create(ClassVisitor next) {
+                return new ThreadClassAdapter(Opcodes.ASM7, next, registry, poolThreads)
+            }
+        }
+    }
+
+    /**
+     * ASMCode的耗时统计，作为总线上的一个步骤
+     *
+     * @param registry 登记插桩的方法，为null时只计算id；插件注册时用来占位、参与指纹，transform时换成带id表的
+     * @param timing 插桩耗时代码的方式
+     * @param computeFrames 插桩过的方法是否按类继承关系重新计算栈帧
+     */
+    static ClassVisitorFactory newTraceFactory(MethodIdRegistry registry, TimingConfig timing, boolean computeFrames = false) {
+        return new ClassVisitorFactory("ASMCode.TraceClassAdapter", TRACE_ORDER) {
+            @Override
+            boolean accept(String entryName) {
+                return checkClassFile(entryName)
+            }
+
+            @Override
+            ClassPrefilter newPrefilter() {
+                return ASMCode.newPrefilter()
+            }
+
+            @Override
+            int getVersion() {
+                return ASMCode.VERSION
+            }
+
+            @Override
+            int getReaderFlags() {
+                // TraceMethodAdapter是AdviceAdapter，需要展开的栈帧；重新计算栈帧时总线会换成 SKIP_FRAMES
+                return ClassReader.EXPAND_FRAMES
+            }
+
+            @Override
+            int getWriterFlags() {
+                // 不插分支和异常处理，只在入口和每条return/athrow前插调用、多一个long局部变量，
+                // COMPUTE_MAXS 时沿用原来的栈帧也是对的；重新计算只是为了不依赖EXPAND_FRAMES展开原来的栈帧
+                return computeFrames ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS
+            }
+
+            @Override
+            ClassVisitor create(ClassVisitor next) {
+                return new ASMCode.TraceClassAdapter(Opcodes.ASM7, next, registry, timing)
+            }
+        }
+    }
+
+    TransformCache createCache(StudyTransformExtension config, InstrumentationBus bus, TimingConfig timing) {
+        if (!config.cacheEnabled) {
+            return null
+        }
+        def dir = config.cacheDir ?: new File(project.gradle.gradleUserHomeDir, "caches/study-transform")
+        // 影响插桩结果的配置都要放进指纹；栈帧依赖的别的jar的继承关系不放，命中时按 FRAME_TYPES_EXTRA 逐项检查
+        def fingerprint = TransformCache.fingerprint("StudyTransform", FILTER_VERSION, bus.fingerprint(), timing.fingerprint(),
+                config.threadMode, config.computeFrames)
+        return new TransformCache(dir, fingerprint)
+    }
+
+    /**
+     * 本地依赖的lib也是当做jar处理
+     *
+     * @param incremental 这次是否增量，退回全量时和 transformInvocation.incremental 不一样
+     */
+    static void handleJar(JarInput jarInput, TransformInvocation transformInvocation, boolean incremental, ParallelJarRewriter jarRewriter,
+                          TransformCache cache, InstrumentationBus.Pass pass, MethodIdRegistry registry, boolean singlePass) {
         // 如果文件名不是以jar结尾，略过
         if (!jarInput.file.getAbsolutePath().endsWith(".jar")) {
             return
         }
         // 输出路径
-        def dest = transformInvocation.outputProvider.getContentLocation(jarInput.name,
-                jarInput.contentTypes, jarInput.scopes, Format.JAR)
+        def dest = contentLocation(transformInvocation.outputProvider, jarInput, Format.JAR)
         // 看一个简单的例子：
         // StudyTransform handleJar1 Begin /Users/yulun/.gradle/caches/transforms-2/files-2.1/c0a80215c58e30f67ea8f44ccf29736a/jetified-animal-sniffer-annotations-1.14.jar ，
         // 输出路径为39.jar , 下一个transform不会出问题吗？？？
         // dest is /Users/yulun/android-gradle-study/android-gradle-study/app/build/intermediates/transforms/StudyTransform/debug/39.jar
         println("StudyTransform handleJar1 Begin ${jarInput.file.absolutePath} ， dest is $dest")
-        if (transformInvocation.incremental) {
+        if (incremental) {
             // 增量状态
             switch (jarInput.status) {
                 case Status.ADDED:
                 case Status.CHANGED:
                     println("StudyTransform incremental true Status ${jarInput.status}  file is ${jarInput.file.absolutePath}")
                     // 新增或修改。处理input字节码
-                    asmProcessJar(jarInput.file)
-                    // 必须copy,
-                    FileUtils.copyFile(jarInput.file, dest)
+                    processJarWithCache(jarInput.file, dest, jarRewriter, cache, pass, registry, singlePass)
                     break
                 case Status.REMOVED:
                     println("StudyTransform incremental true Status REMOVED  file is ${jarInput.file.absolutePath}")
                     GFileUtils.deleteFileQuietly(dest)
                     break
             }
-        } else {
+        } else if (jarInput.file.isFile()) {
+            // 退回全量时输入里还有这次删除的jar，输出已经全部删掉，跳过
             println("StudyTransform incremental false handleJar file is ${jarInput.file.absolutePath}")
             // 其实这一步做的就是把源文件(.class)处理完后，重命名成源文件的名称
-            asmProcessJar(jarInput.file)
+            processJarWithCache(jarInput.file, dest, jarRewriter, cache, pass, registry, singlePass)
+        }
+    }
+
+    /**
+     * 先查缓存，命中就直接把上次的插桩结果拷贝到dest，跳过ASM；没命中再插桩，并把结果存进缓存
+     */
+    static void processJarWithCache(File input, File dest, ParallelJarRewriter jarRewriter, TransformCache cache,
+                                    InstrumentationBus.Pass pass, MethodIdRegistry registry, boolean singlePass) {
+        // key要在input被原地修改之前算
+        def cacheKey = cache != null ? cache.key(input) : null
+        if (cacheKey != null) {
+            // 栈帧查过的公共父类按这次的继承关系算出来不一样，说明依赖的类变了，缓存的栈帧不能用
+            def frameTypes = cache.restoreExtra(cacheKey, FRAME_TYPES_EXTRA)
+            // 没有id表的缓存当作没命中，否则映射文件里会缺这个jar的方法；
+            // 缓存里的id和这次已经分配的冲突时也不能用，重新插桩，冲突的方法会分到空闲的id
+            def methodIds = frameTypes != null ? cache.restoreExtra(cacheKey, METHOD_IDS_EXTRA) : null
+            // 只有走到restore才由它记命中、未命中，前面这几种情况不调用restore，未命中要自己记
+            if (methodIds == null) {
+                cache.recordMiss()
+            } else if (!ResolvedTypes.stillValid(frameTypes, pass.hierarchy)) {
+                cache.recordMiss()
+                println("StudyTransform jar cache ${input.absolutePath} depends on changed class hierarchy, transform again")
+            } else if (!registry.addLines(methodIds)) {
+                cache.recordMiss()
+                println("StudyTransform jar cache ${input.absolutePath} has conflicting method ids, transform again")
+            } else if (cache.restore(cacheKey, dest)) {
+                println("StudyTransform jar cache hit ${input.absolutePath}")
+                // 没经过总线，这个jar的查询要补进整个transform的记录，下次增量编译时检查
+                pass.resolvedTypes.addAll(frameTypes)
+                return
+            }
+        }
+        // 删掉上次的输出，老版本从缓存硬链接出来的只读文件也不能在上面原地写
+        GFileUtils.deleteQuietly(dest)
+        // 这个jar里被插桩的类，用来从id表里取出这个jar的部分
+        Set<String> transformedClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>())
+        def resolved = cacheKey != null ? new ResolvedTypes() : null
+        if (singlePass) {
+            // 直接从input插桩写到dest，input保持不变，增量编译时不会对已经插过桩的类重复插桩
+            dest.parentFile.mkdirs()
+            jarRewriter.rewrite(input, dest, newEntryTransformer(pass, transformedClasses, resolved))
+        } else {
+            asmProcessJar(input, jarRewriter, pass, transformedClasses, resolved)
             // 处理input字节码，必须要拷贝
-            FileUtils.copyFile(jarInput.file, dest)
+            FileUtils.copyFile(input, dest)
+        }
+        if (cacheKey != null) {
+            cache.store(cacheKey, dest)
+            cache.storeExtra(cacheKey, METHOD_IDS_EXTRA, registry.linesOf(transformedClasses))
+            cache.storeExtra(cacheKey, FRAME_TYPES_EXTRA, resolved.lines())
         }
     }
 
-    static void asmProcessJar(File file) {
+    static void asmProcessJar(File file, ParallelJarRewriter jarRewriter, InstrumentationBus.Pass pass, Set<String> transformedClasses,
+                              ResolvedTypes resolved) {
         // 注意此时
         // 文件不存在，就返回
         if (file == null || !file.exists()) {
@@ -160,36 +562,8 @@ class StudyTransform extends Transform {
         if (tmpFile.exists()) {
             tmpFile.delete()
         }
-        // 建立输出流，注意是 JarOutput
-        JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(tmpFile))
-
-        // 从当前的file里构建一个JarFile
-        def jarFile = new JarFile(file)
-        // 以下是标准模板代码
-        Enumeration enumeration = jarFile.entries()
-        while (enumeration.hasMoreElements()) {
-            JarEntry jarEntry = (JarEntry) enumeration.nextElement()
-            // jar里每个元素的名称，对于java来说，就是类名(文件名)
-            String entryName = jarEntry.getName()
-            // 封装成zipEntry why？
-            ZipEntry zipEntry = new ZipEntry(entryName)
-            // 针对jarEntry构建输入流
-            InputStream inputStream = jarFile.getInputStream(jarEntry)
-            if (checkClassFile(entryName)) {
-//                println '----------- deal with "jar" class file <' + entryName + '> -----------'
-                jarOutputStream.putNextEntry(zipEntry)
-                // 使用 ASM 对 class 文件进行操控
-                jarOutputStream.write(ASMCode.run(inputStream).toByteArray())
-            } else {
-//                println '----------- undeal with "jar" class file <' + entryName + '> -----------'
-                // 如果命中黑名单，不做处理，直接输入
-                jarOutputStream.putNextEntry(zipEntry)
-                jarOutputStream.write(IOUtils.toByteArray(inputStream))
-            }
-            jarOutputStream.closeEntry()
-        }
-        jarOutputStream.close()
-        jarFile.close()
+        // 读取、插桩在线程池里并行，写入按原entry顺序；没有插桩的entry直接拷贝原始压缩数据，不解压也不重新压缩
+        jarRewriter.rewrite(file, tmpFile, newEntryTransformer(pass, transformedClasses, resolved))
 
         if (file.exists()) {
             file.delete()
@@ -199,26 +573,54 @@ class StudyTransform extends Transform {
         tmpFile.renameTo(file)
     }
 
+    /**
+     * @param transformedClasses 记录被改写的类名，'/'分隔、不带.class
+     * @param resolved 记录重新计算栈帧时查过的公共父类，不进缓存时为null
+     */
+    static ParallelJarRewriter.EntryTransformer newEntryTransformer(InstrumentationBus.Pass pass, Set<String> transformedClasses,
+                                                                    ResolvedTypes resolved) {
+        return new ParallelJarRewriter.EntryTransformer() {
+            @Override
+            boolean accept(String entryName) {
+                // 总线上没有步骤要处理，不做处理，直接输入
+                return pass.accept(entryName)
+            }
+
+            @Override
+            byte[] transform(String entryName, byte[] bytes) {
+                // 没有适用的步骤时返回原数组，写入时直接拷贝压缩数据
+                byte[] result = pass.transform(entryName, bytes, resolved)
+                if (!result.is(bytes)) {
+                    transformedClasses.add(entryName.substring(0, entryName.length() - ".class".length()))
+                }
+                return result
+            }
+        }
+    }
+
     /**
      * 疑问：为什么即使不做操作也要做一次copy呢，猜测是每个transform是独立的，而且他的output也是固定的，对于
      * 每个transform，output里必须有内容，才能将处理的数据一级级的传递下去，对于下一级来说的，上一级的output就是下一级的input,一直传递下去，直到结束
      * transform的模板写法
      * @param directoryInput 输入流封装
      * @param transformInvocation
+     * @param incremental 这次是否增量，退回全量时和 transformInvocation.incremental 不一样
+     * @param pass 总线上的插桩步骤，没有需要插桩内容的类不做改动
      */
-    static void handleDirectory(DirectoryInput directoryInput, TransformInvocation transformInvocation) {
+    static void handleDirectory(DirectoryInput directoryInput, TransformInvocation transformInvocation, boolean incremental,
+                                InstrumentationBus.Pass pass) {
         // 当前项目里是 inputDir /Users/yulun/android-gradle-study/android-gradle-study/app/build/intermediates/javac/debug/classes
         // 注意这里是个directory
         def inputDir = directoryInput.getFile()
 
         //输出的路径，某次编译是  /Users/yulun/android-gradle-study/android-gradle-study/app/build/intermediates/transforms/StudyTransform/debug/42
-        def outputDir = transformInvocation.outputProvider.getContentLocation(directoryInput.name, directoryInput.contentTypes, directoryInput.scopes, Format.DIRECTORY)
+        def outputDir = contentLocation(transformInvocation.outputProvider, directoryInput, Format.DIRECTORY)
         println("[StudyTransform] handleDirectory1: inputDir ${inputDir.absolutePath}")
         println("[StudyTransform] handleDirectory1: outputDir ${outputDir.absolutePath}")
-        println("[StudyTransform] handleDirectory1: incremental ${transformInvocation.incremental}")
+        println("[StudyTransform] handleDirectory1: incremental ${incremental}")
         // 执行注入逻辑
         // 当前是否为增量
-        if (transformInvocation.incremental) {
+        if (incremental) {
             // 进入增量逻辑，对已修改的文件做遍历
             directoryInput.changedFiles.each {
                 // 针对当前file，构建输出的文件名
@@ -232,16 +634,12 @@ class StudyTransform extends Transform {
                         // 先删除之前的目录，如果存在的话
                         GFileUtils.deleteQuietly(outputFile)
                         //在这里做字节码修改操作，对input做操作
-                        if (checkClassFile(it.key.name)) {
-                            println '----------- deal with "class" file <' + name + '> -----------'
-                            // 下面是套路代码
-                            def classReader = new ClassReader(it.key.bytes)
-                            def classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_MAXS)
-                            // ASMCode里就是我们实际操作修改字节码的地方
-                            def classVisitor = new ASMCode.TraceClassAdapter(org.objectweb.asm.Opcodes.ASM5, classWriter)
-                            classReader.accept(classVisitor, ClassReader.EXPAND_FRAMES)
-                            // 保存修改后的字节码
-                            byte[] codeBytes = classWriter.toByteArray()
+                        def entryName = entryNameOf(it.key, inputDir)
+                        def classBytes = pass.accept(entryName) ? it.key.bytes : null
+                        // 总线上适用的步骤串成一条链，一次解析、一次写出
+                        byte[] codeBytes = classBytes != null ? pass.transform(entryName, classBytes) : null
+                        if (codeBytes != null && !codeBytes.is(classBytes)) {
+                            println '----------- deal with "class" file <' + entryName + '> -----------'
                             // 构建输出流，这里是当前目录的原文件；也可以新建个临时文件，写完后再覆盖
                             FileOutputStream fileOutputStream = new FileOutputStream(
                                     it.key.parentFile.absolutePath + File.separator + it.key.name
@@ -265,15 +663,17 @@ class StudyTransform extends Transform {
             println("[StudyTransform] incremental false and  file is : ${inputDir.absolutePath}")
             // 还是先删除，这里多一次操作不会损失什么，但有保证
             GFileUtils.deleteQuietly(outputDir)
+            // 退回全量时输入里可能有这次删除的目录
+            if (!inputDir.isDirectory()) {
+                return
+            }
             //在这里做字节码修改操作，对input做操作，注意inputDir是个路径，要循环遍历它下面所有的class文件
             inputDir.traverse(type: FileType.FILES, nameFilter: ~/.*\.class/) {
-                if (checkClassFile(it.name)) {
-                    println '----------- deal with "class" file <' + it.name + '> -----------'
-                    def classReader = new ClassReader(it.bytes)
-                    def classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_MAXS)
-                    def classVisitor = new ASMCode.TraceClassAdapter(org.objectweb.asm.Opcodes.ASM5, classWriter)
-                    classReader.accept(classVisitor, ClassReader.EXPAND_FRAMES)
-                    byte[] codeBytes = classWriter.toByteArray()
+                def entryName = entryNameOf(it, inputDir)
+                def classBytes = pass.accept(entryName) ? it.bytes : null
+                byte[] codeBytes = classBytes != null ? pass.transform(entryName, classBytes) : null
+                if (codeBytes != null && !codeBytes.is(classBytes)) {
+                    println '----------- deal with "class" file <' + entryName + '> -----------'
                     try {
                         // 这里还是写入原文件
                         FileOutputStream fileOutputStream = new FileOutputStream(
@@ -290,6 +690,80 @@ class StudyTransform extends Transform {
             FileUtils.copyDirectory(inputDir, outputDir)
         }
     }
+    /**
+     * 单趟模式：从inputDir读，插桩结果或者原文件直接写到outputDir，不修改inputDir，也不需要最后再copyDirectory一遍
+     */
+    static void handleDirectorySinglePass(DirectoryInput directoryInput, TransformInvocation transformInvocation, boolean incremental,
+                                          InstrumentationBus.Pass pass) {
+        def inputDir = directoryInput.getFile()
+        def outputDir = contentLocation(transformInvocation.outputProvider, directoryInput, Format.DIRECTORY)
+        println("[StudyTransform] handleDirectorySinglePass: ${inputDir.absolutePath} -> ${outputDir.absolutePath}, incremental ${incremental}")
+        if (incremental) {
+            directoryInput.changedFiles.each { File file, Status status ->
+                def outputFile = new File(outputDir, com.android.utils.FileUtils.relativePossiblyNonExistingPath(file, inputDir))
+                switch (status) {
+                    case Status.ADDED:
+                    case Status.CHANGED:
+                        GFileUtils.deleteQuietly(outputFile)
+                        if (file.isFile()) {
+                            transformFile(file, outputFile, entryNameOf(file, inputDir), pass)
+                        }
+                        break
+                    case Status.REMOVED:
+                        GFileUtils.deleteQuietly(outputFile)
+                        break
+                }
+            }
+        } else {
+            GFileUtils.deleteQuietly(outputDir)
+            if (!inputDir.isDirectory()) {
+                return
+            }
+            List<File> files = []
+            inputDir.traverse(type: FileType.FILES) { File file ->
+                files.add(file)
+            }
+            // 每个class一个子任务，和jar一起由work-stealing线程池调度
+            forEachParallel(files) { File file ->
+                def outputFile = new File(outputDir, com.android.utils.FileUtils.relativePossiblyNonExistingPath(file, inputDir))
+                transformFile(file, outputFile, entryNameOf(file, inputDir), pass)
+            }
+        }
+    }
+
+    /**
+     * jar、目录在不同的线程里处理，分配输出位置时加锁
+     */
+    static File contentLocation(TransformOutputProvider outputProvider, QualifiedContent content, Format format) {
+        synchronized (outputProvider) {
+            return outputProvider.getContentLocation(content.name, content.contentTypes, content.scopes, format)
+        }
+    }
+
+    /**
+     * 需要插桩的class写插桩结果，其他文件用 transferTo 直接拷贝
+     */
+    static void transformFile(File input, File output, String entryName, InstrumentationBus.Pass pass) {
+        output.parentFile.mkdirs()
+        if (pass.accept(entryName)) {
+            byte[] classBytes = input.bytes
+            byte[] codeBytes = pass.transform(entryName, classBytes)
+            if (!codeBytes.is(classBytes)) {
+                println '----------- deal with "class" file <' + entryName + '> -----------'
+                output.bytes = codeBytes
+                return
+            }
+        }
+        Util.copyFileUsingChannel(input, output)
+    }
+
+    /**
+     * 目录里的文件转成和jar entry一样的'/'分隔的相对路径，总线上的过滤规则对目录和jar一致
+     */
+    static String entryNameOf(File file, File inputDir) {
+        return com.android.utils.FileUtils.relativePossiblyNonExistingPath(file, inputDir).replace(File.separatorChar, '/' as char)
+    }
+
     /**
      * 检查 class 文件是否需要处理
      *
@@ -0,0 +1,40 @@
+package com.yl.gradle.study
+
+/**
+ * StudyTransform 的配置，在build.gradle里通过 studyTransform {} 声明
+ */
+class StudyTransformExtension {
+    static final String THREAD_MODE_LOG = 'log'
+    static final String THREAD_MODE_POOL = 'pool'
+
+    // 并行处理jar、目录的线程数，jar内部插桩的工作线程数也是它；小于等于1时串行
+    int parallelism = Runtime.runtime.availableProcessors()
+    // 单个jar同时在内存里的entry个数上限
+    int maxInFlightEntries = ParallelJarRewriter.DEFAULT_MAX_IN_FLIGHT
+    // 是否缓存jar的插桩结果，输入和插桩配置都没变时直接复用
+    boolean cacheEnabled = true
+    // 缓存目录，不设置时放在 gradle user home 下，clean 之后也能命中
+    File cacheDir
+    // 缓存总大小上限(MB)，超过时从最久没用过的开始删除，小于等于0表示不限制
+    long cacheMaxSizeMb = 1024
+    // 缓存超过多少天没有用过就删除，小于等于0表示不限制
+    int cacheMaxAgeDays = 30
+    // 单趟输出：直接从input插桩写到outputProvider的位置，不再原地改写input再拷贝
+    boolean singlePass = true
+    // 统计总线上每个visitor以及解析、写出的耗时，构建结束时打印；每条指令都要计时，排查插桩变慢时再打开
+    boolean profileVisitors = false
+    // 插桩过的方法按类继承关系重新计算栈帧(COMPUTE_FRAMES，不加载类)，没插桩的方法原样拷贝；
+    // 关掉时和以前一样 COMPUTE_MAXS，保留读入时展开的栈帧
+    boolean computeFrames = true
+    // log：new Thread 换成 CustomThread，打印每个线程的运行时间；
+    // pool：能确定没有逃逸的 new Thread(r[, name]).start() 换成 PooledThread，提交到进程内共享的线程池，其余的同log；
+    // Executors.newFixedThreadPool/newCachedThreadPool/newSingleThreadExecutor、new HandlerThread、new Timer 交给 ThreadPoolRegistry
+    String threadMode = THREAD_MODE_LOG
+
+    boolean isPoolThreads() {
+        if (threadMode != THREAD_MODE_LOG && threadMode != THREAD_MODE_POOL) {
+            throw new IllegalArgumentException("studyTransform.threadMode must be '$THREAD_MODE_LOG' or '$THREAD_MODE_POOL', but was $threadMode")
+        }
+        return threadMode == THREAD_MODE_POOL
+    }
+}
@@ -13,18 +13,83 @@ import org.objectweb.asm.commons.AdviceAdapter;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 public class ASMCode {
 
+    /**
+     * 插桩逻辑的版本号，会参与 {@link TransformCache} 的key，修改了插桩逻辑一定要加1，否则会命中旧的缓存
+     */
+    public static final int VERSION = 12;
+
+    /**
+     * 运行时的记录器，插桩代码只调用它的 record(int, long, boolean)，这个类本身不插桩，否则会无限递归
+     */
+    static final String TRACE_RECORDER = "com/jeremyliao/gradle/TraceRecorder";
+    /**
+     * slow、histogram模式下的计时和采样
+     */
+    static final String METHOD_TIMER = "com/jeremyliao/gradle/MethodTimer";
+    /**
+     * new Thread 换成的类，构造完之后插桩代码调用它的 setCallSiteId(int)，运行统计见 ThreadTelemetry
+     */
+    static final String CUSTOM_THREAD = "com/jeremyliao/gradle/CustomThread";
+    /**
+     * 插桩代码调用到的运行时类，都不能插桩；内部类带'$'，本来就不处理
+     */
+    static final Set<String> RUNTIME_CLASSES = new HashSet<>(Arrays.asList(TRACE_RECORDER, METHOD_TIMER,
+            "com/jeremyliao/gradle/MethodHistograms", "com/jeremyliao/gradle/LatencyHistogram",
+            ThreadPoolingMethodNode.POOLED_THREAD, ThreadPoolingMethodNode.THREAD_POOL_REGISTRY,
+            ThreadPoolingMethodNode.GOVERNED_HANDLER_THREAD, ThreadPoolingMethodNode.GOVERNED_TIMER,
+            CUSTOM_THREAD, "com/jeremyliao/gradle/ThreadTelemetry"));
+
+    /**
+     * TraceMethodAdapter 会给每个有方法体的方法加耗时统计，
+     * 所以常量池里没有 "Code" 属性名的类（接口、注解、只有抽象方法的类）插桩前后没有区别，可以跳过
+     */
+    public static ClassPrefilter newPrefilter() {
+        return new ClassPrefilter("Code");
+    }
+
     public static ClassWriter run(InputStream is) throws IOException {
-        ClassReader classReader = new ClassReader(is);
+        return run(new ClassReader(is), null);
+    }
+
+    public static ClassWriter run(byte[] classBytes) {
+        return run(new ClassReader(classBytes), null);
+    }
+
+    /**
+     * @param hierarchy 所有输入的类继承关系，有的话用 COMPUTE_FRAMES 重新计算插桩过的方法的栈帧，见 {@link HierarchyClassWriter}
+     */
+    public static ClassWriter run(byte[] classBytes, ClassHierarchy hierarchy) {
+        return run(new ClassReader(classBytes), hierarchy);
+    }
+
+    private static ClassWriter run(ClassReader classReader, ClassHierarchy hierarchy) {
+        if (hierarchy != null && HierarchyClassWriter.canComputeFrames(classReader)) {
+            try {
+                return run(classReader, ClassWriter.COMPUTE_FRAMES, HierarchyClassWriter.frameReaderFlags(0), hierarchy);
+            } catch (TypeNotPresentException e) {
+                Log.w("ASMCode", "%s not in class hierarchy, frames kept as is", e.typeName());
+            }
+        }
+        return run(classReader, ClassWriter.COMPUTE_MAXS, ClassReader.EXPAND_FRAMES, hierarchy);
+    }
+
+    private static ClassWriter run(ClassReader classReader, int writerFlags, int readerFlags, ClassHierarchy hierarchy) {
 
         // 入参有两个，ClassWriter.COMPUTE_MAXS 和 COMPUTE_FRAMES
         // 简单说 他们的区别是COMPUTE_MAXS的方式会帮助我们重新计算局部变量和操作数的size ， 慢10%
         // COMPUTE_FRAMES既会计算栈size,也会计算StackMapFrame 慢20%
-        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-        // 定义类访问者
-        ClassVisitor classVisitor = new TraceClassAdapter(Opcodes.ASM7, classWriter);
+        // 带上classReader，没有插桩的方法(抽象方法、运行时类)原样拷贝；COMPUTE_FRAMES 也只算插桩过的方法
+        ClassWriter classWriter = new HierarchyClassWriter(classReader, writerFlags,
+                hierarchy != null ? hierarchy : new ClassHierarchy());
+        // 定义类访问者，和总线上一样线程替换在前、耗时统计在后
+        ClassVisitor classVisitor = new ThreadClassAdapter(Opcodes.ASM7, new TraceClassAdapter(Opcodes.ASM7, classWriter),
+                null, false);
 
         /**
          * ClassReader.SKIP_DEBUG：表示不遍历调试内容，即跳过源文件，源码调试扩展，局部变量表，局部变量类型表和行号表属性，即以下方法既不会被解析也不会被访问（ClassVisitor.visitSource，MethodVisitor.visitLocalVariable，MethodVisitor.visitLineNumber）。使用此标识后，类文件调试信息会被去除，请警记。
@@ -33,7 +98,7 @@ public class ASMCode {
          * ClassReader.EXPAND_FRAMES：该标识用于设置扩展栈帧图。默认栈图以它们原始格式（V1_6以下使用扩展格式，其他使用压缩格式）被访问。如果设置该标识，栈图则始终以扩展格式进行访问（此标识在ClassReader和ClassWriter中增加了解压/压缩步骤，会大幅度降低性能）。
          * 一般来说都选最全的，即使性能问题也是编译期
          */
-        classReader.accept(classVisitor, ClassReader.EXPAND_FRAMES);
+        classReader.accept(classVisitor, readerFlags);
         return classWriter;
     }
 
@@ -42,9 +107,19 @@ public class ASMCode {
 
         // 记录当前类名
         private String className;
+        // 登记插桩的方法，为null时只计算id
+        private final MethodIdRegistry registry;
+        // 插桩耗时代码的方式
+        private final TimingConfig timing;
 
         TraceClassAdapter(int i, ClassVisitor classVisitor) {
+            this(i, classVisitor, null, TimingConfig.DEFAULT);
+        }
+
+        TraceClassAdapter(int i, ClassVisitor classVisitor, MethodIdRegistry registry, TimingConfig timing) {
             super(i, classVisitor);
+            this.registry = registry;
+            this.timing = timing;
         }
 
 
@@ -90,7 +165,15 @@ public class ASMCode {
         public MethodVisitor visitMethod(int access, String name, String desc,
                                          String signature, String[] exceptions) {
             MethodVisitor methodVisitor = cv.visitMethod(access, name, desc, signature, exceptions);
-            return new TraceMethodAdapter(api, methodVisitor, access, name, desc, this.className);
+            if (RUNTIME_CLASSES.contains(className)) {
+                return methodVisitor;
+            }
+            if (methodVisitor == null || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+                // 没有方法体，不插桩，也不占id
+                return methodVisitor;
+            }
+            int methodId = registry != null ? registry.register(className, name, desc) : MethodIdRegistry.idOf(className, name, desc);
+            return new TraceMethodAdapter(api, methodVisitor, access, name, desc, this.className, methodId, timing);
         }
 
         // 当前类访问结束
@@ -134,21 +217,33 @@ public class ASMCode {
         private final String methodName;
         // 类名
         private final String className;
-
-        // 以下两个是业务使用变量
-        private boolean find = false;
-        private int timeLocalIndex = 0;
-
-        protected TraceMethodAdapter(int api, MethodVisitor mv, int access, String name, String desc, String className) {
+        // 编译期分配的方法id，见 MethodIdRegistry
+        private final int methodId;
+        private final TimingConfig timing;
+        // slow、histogram模式下保存开始时间的局部变量，整个方法只分配一个
+        private int startLocal = -1;
+
+        protected TraceMethodAdapter(int api, MethodVisitor mv, int access, String name, String desc, String className,
+                                     int methodId, TimingConfig timing) {
             super(api, mv, access, name, desc);
             this.className = className;
             this.methodName = name;
+            this.methodId = methodId;
+            this.timing = timing;
         }
 
         // 当前方法访问的开始
         @Override
         public void visitCode() {
             super.visitCode();
+            if (!timing.isTraceMode() && "<init>".equals(methodName)) {
+                // 构造方法在不同分支上调用 super()/this() 时，每个分支后面都会 onMethodEnter 一次，
+                // 局部变量在开头就分配好并存入 MethodTimer.NOT_SAMPLED，每条路径退出时读到的都是long，
+                // 没有经过 onMethodEnter 的路径不记录
+                startLocal = newLocal(Type.LONG_TYPE);
+                push(Long.MIN_VALUE);
+                mv.visitVarInsn(LSTORE, startLocal);
+            }
         }
 
         // Label是什么？
@@ -224,81 +319,61 @@ public class ASMCode {
         }
 
 
-        // 以下两个方法是替换了线程为自定义的线程
-        // 字节码里对应到visitTypeInsn 一般都是 _new指令 ，s就是对应的type，举个例子：_new 'com/jeremyliao/gradle/CustomThread'
+        // new Thread 的替换在总线上是单独的一个步骤，见 ThreadClassAdapter
+
+        // 方法进入和退出这里，做了方法统计的耗时
+        // 原来是在退出时 new StringBuilder 拼字符串再 Log.d，统计本身比很多方法还慢；
+        // 现在只传 方法id、时间戳、进入/退出 三个基本类型给 TraceRecorder，不分配对象，耗时在运行时由drain的一方配对计算
+        // slow模式只在超过阈值时才交给 TraceRecorder，histogram模式记进耗时分布，见 TimingConfig
+        // 方法进入
         @Override
-        public void visitTypeInsn(int opcode, String s) {
-            if (opcode == Opcodes.NEW && "java/lang/Thread".equals(s)) {
-                find = true;
-                mv.visitTypeInsn(Opcodes.NEW, "com/jeremyliao/gradle/CustomThread");
+        protected void onMethodEnter() {
+            if (timing.isTraceMode()) {
+                recordTrace(true);
                 return;
             }
-            super.visitTypeInsn(opcode, s);
-
+            if (timing.getSampleRate() > 1) {
+                // long start = MethodTimer.start(sampleRate)，没采样到时是 MethodTimer.NOT_SAMPLED
+                push(timing.getSampleRate());
+                mv.visitMethodInsn(INVOKESTATIC, METHOD_TIMER, "start", "(I)J", false);
+            } else {
+                // long start = System.nanoTime()，单调时钟，不受改系统时间影响
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+            }
+            if (startLocal < 0) {
+                startLocal = newLocal(Type.LONG_TYPE);
+            }
+            mv.visitVarInsn(LSTORE, startLocal);
         }
 
-        /**
-         * 发生在访问方法的时候，需要把owner也就是方法属于的类替换掉
-         * @param opcode 操作码
-         * @param owner 方法属于哪个类
-         * @param name 方法名
-         * @param desc 描述
-         * @param itf owner 是否为一个接口
-         */
+        // 方法退出：每条return和方法里自己的athrow之前；没有try/finally，
+        // 调用的方法抛出、直接穿过这个方法的异常不会走到这里，这次调用不记录(trace模式下只有进入没有退出)
         @Override
-        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
-            //需要排除CustomThread自己
-            if ("java/lang/Thread".equals(owner) && !className.equals("com/jeremyliao/gradle/CustomThread") && opcode == Opcodes.INVOKESPECIAL && find) {
-                find = false;
-                mv.visitMethodInsn(opcode, "com/jeremyliao/gradle/CustomThread", name, desc, itf);
-                Log.e("asmcode", "className:%s, method:%s, name:%s", className, methodName, name);
+        protected void onMethodExit(int opcode) {
+            if (timing.isTraceMode()) {
+                recordTrace(false);
                 return;
             }
-            super.visitMethodInsn(opcode, owner, name, desc, itf);
-
-//
-//            if (owner.equals("android/telephony/TelephonyManager") && name.equals("getDeviceId") && desc.equals("()Ljava/lang/String;")) {
-//                Log.e("asmcode", "get imei className:%s, method:%s, name:%s", className, methodName, name);
-//            }
-        }
-
-        // 方法进入和退出这里，做了方法统计的耗时
-        // 方法进入
-        @Override
-        protected void onMethodEnter() {
-            //method enter
-            mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false); // 调用类的静态方法
-            timeLocalIndex = newLocal(Type.LONG_TYPE); //new 一个局部变量
-            mv.visitVarInsn(LSTORE, timeLocalIndex);// 把第一步的结果(在栈顶)，放到局部变量中，timeLocalIndex就是在局部变量表中的位置
+            if (!timing.isSlowMode()) {
+                // MethodTimer.aggregate(methodId, start)
+                push(methodId);
+                mv.visitVarInsn(LLOAD, startLocal);
+                mv.visitMethodInsn(INVOKESTATIC, METHOD_TIMER, "aggregate", "(IJ)V", false);
+                return;
+            }
+            // MethodTimer.end(methodId, start, thresholdNanos)，阈值按包名在编译期算好
+            push(methodId);
+            mv.visitVarInsn(LLOAD, startLocal);
+            push(timing.thresholdNanosOf(className));
+            mv.visitMethodInsn(INVOKESTATIC, METHOD_TIMER, "end", "(IJJ)V", false);
         }
 
-        // 方法退出
-        @Override
-        protected void onMethodExit(int opcode) {
-            mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false); // 同第一步
-            mv.visitVarInsn(LLOAD, timeLocalIndex); // 加载第一个大步存储的值
-            mv.visitInsn(LSUB);//此处的值在栈顶,做减法
-            mv.visitVarInsn(LSTORE, timeLocalIndex);//因为后面要用到这个值所以先将其保存到本地变量表中
-
-
-            int stringBuilderIndex = newLocal(Type.getType("Ljava/lang/StringBuilder")); // new一个局部变量
-            mv.visitTypeInsn(Opcodes.NEW, "java/lang/StringBuilder"); //new 一个实例
-            mv.visitInsn(Opcodes.DUP);// 复制栈顶实例
-            mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false); //执行实例的初始化
-            mv.visitVarInsn(Opcodes.ASTORE, stringBuilderIndex);//需要将栈顶的 stringbuilder 保存起来否则后面找不到了
-            mv.visitVarInsn(Opcodes.ALOAD, stringBuilderIndex); // 加载局部 变量
-            mv.visitLdcInsn(className + "." + methodName + " time:"); //常量值，此时这个常量在栈顶
-            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false); //执行方法
-            mv.visitInsn(Opcodes.POP); // 出栈，情况栈
-            mv.visitVarInsn(Opcodes.ALOAD, stringBuilderIndex); // 入栈sb对象，也就是append方法的第一个参数
-            mv.visitVarInsn(Opcodes.LLOAD, timeLocalIndex); // 入栈时间的差值
-            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(J)Ljava/lang/StringBuilder;", false); // 执行方法
-            mv.visitInsn(Opcodes.POP); //保持栈的空状态
-            mv.visitLdcInsn("Geek"); //加载常量
-            mv.visitVarInsn(Opcodes.ALOAD, stringBuilderIndex); // 入参sb
-            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false); //sb的toString
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "android/util/Log", "d", "(Ljava/lang/String;Ljava/lang/String;)I", false);//第一个参数就是常量Geek,第二个参数是sb的ToString(),注意： Log.d 方法是有返回值的，需要 pop 出去
-            mv.visitInsn(Opcodes.POP);//插入字节码后要保证栈的清洁，不影响原来的逻辑，否则就会产生异常，也会对其他框架处理字节码造成影响
+        // TraceRecorder.record(methodId, System.nanoTime(), enter)，调用前后栈的深度不变
+        private void recordTrace(boolean enter) {
+            push(methodId);
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+            push(enter);
+            mv.visitMethodInsn(INVOKESTATIC, TRACE_RECORDER, "record", "(IJZ)V", false);
         }
     }
 }
@@ -0,0 +1,530 @@
+package com.yl.gradle.study;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * transform所有输入的类继承关系：每个类的父类、接口、access flags，只读class头，不加载任何类。
+ * <p>
+ * 1. 按来源分组，来源是jar或者目录的绝对路径；增量编译时变化的jar整组重新扫描，删除的jar整组去掉，目录按文件更新；
+ * 2. 扫描可以并行，见 {@link #runAll(List, int)}；每个class只用ClassReader读常量池后面的头部，不解析字段和方法；
+ * 3. {@link #write(File)} 存成文本文件，下次增量编译 {@link #load(File)} 之后只更新变化的部分；
+ * 4. {@link #isSubtype(String, String)} 第一次查某个类时把它所有的父类、接口展开成一个集合缓存起来，
+ * 之后每次查询只是一次hash查找；内容有变化时缓存清空；
+ * 5. 增量编译时用 {@link #changedSince(ClassHierarchy)}、{@link #subtypesOf(Set)} 找出父类变了、但自己没变的类。
+ * </p>
+ * 类名都是'/'分隔的内部名。扫描阶段和查询阶段都可以多线程，但不要一边更新一边查询。
+ */
+public class ClassHierarchy {
+
+    private static final String TAG = "ClassHierarchy";
+    private static final String HEADER = "ClassHierarchy v1";
+    private static final String SOURCE_PREFIX = "@";
+
+    public static final String OBJECT = "java/lang/Object";
+
+    static final class Node {
+        final String name;
+        // java/lang/Object 和 module-info 没有父类，是null
+        final String superName;
+        final String[] interfaces;
+        final int access;
+        final String source;
+
+        Node(String name, String superName, String[] interfaces, int access, String source) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.access = access;
+            this.source = source;
+        }
+
+        /**
+         * 父类、接口、是不是接口都一样，来源不算
+         */
+        boolean sameShape(Node other) {
+            return (superName == null ? other.superName == null : superName.equals(other.superName))
+                    && Arrays.equals(interfaces, other.interfaces)
+                    && (access & Opcodes.ACC_INTERFACE) == (other.access & Opcodes.ACC_INTERFACE);
+        }
+    }
+
+    /**
+     * 扫描到一个class时回调，在扫描的线程里，可能多个线程同时调用；{@link #load(File)} 读入的类不回调
+     */
+    public interface ClassListener {
+        void onClass(String source, ClassReader reader);
+    }
+
+    private final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<>();
+    // 来源 -> 这个来源里的类名
+    private final ConcurrentMap<String, Set<String>> classesBySource = new ConcurrentHashMap<>();
+    // 类名 -> 所有的父类和接口(不含自己)，查询时才算
+    private final ConcurrentMap<String, Set<String>> supertypes = new ConcurrentHashMap<>();
+    private volatile ClassListener listener;
+
+    // ---------------- 查询 ----------------
+
+    public boolean contains(String name) {
+        return nodes.containsKey(name);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @return 父类；不认识的类、java/lang/Object 返回null
+     */
+    public String getSuperName(String name) {
+        Node node = nodes.get(name);
+        return node != null ? node.superName : null;
+    }
+
+    /**
+     * @return 直接实现的接口；不认识的类返回空数组
+     */
+    public String[] getInterfaces(String name) {
+        Node node = nodes.get(name);
+        return node != null ? node.interfaces.clone() : new String[0];
+    }
+
+    /**
+     * @return access flags；不认识的类返回-1
+     */
+    public int getAccess(String name) {
+        Node node = nodes.get(name);
+        return node != null ? node.access : -1;
+    }
+
+    public boolean isInterface(String name) {
+        Node node = nodes.get(name);
+        return node != null && (node.access & Opcodes.ACC_INTERFACE) != 0;
+    }
+
+    /**
+     * type是不是superType本身、子类或者实现类。继承链上有不认识的类时，只按认识的部分判断
+     */
+    public boolean isSubtype(String type, String superType) {
+        return type.equals(superType) || OBJECT.equals(superType) || supertypesOf(type).contains(superType);
+    }
+
+    /**
+     * @return 所有的父类和接口，不含自己，不可修改
+     */
+    public Set<String> supertypesOf(String name) {
+        Set<String> result = supertypes.get(name);
+        if (result == null) {
+            result = Collections.unmodifiableSet(collectSupertypes(name));
+            Set<String> previous = supertypes.putIfAbsent(name, result);
+            if (previous != null) {
+                result = previous;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 广度优先展开，输入有环时也能结束
+     */
+    private Set<String> collectSupertypes(String name) {
+        Set<String> result = new HashSet<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        queue.add(name);
+        while (!queue.isEmpty()) {
+            Node node = nodes.get(queue.poll());
+            if (node == null) {
+                continue;
+            }
+            if (node.superName != null && result.add(node.superName)) {
+                queue.add(node.superName);
+            }
+            for (String itf : node.interfaces) {
+                if (result.add(itf)) {
+                    queue.add(itf);
+                }
+            }
+        }
+        result.remove(name);
+        return result;
+    }
+
+    /**
+     * 增量编译时和更新前的 {@link #copy()} 比较
+     *
+     * @return 新增、删除，或者父类、接口变了的类
+     */
+    public Set<String> changedSince(ClassHierarchy previous) {
+        Set<String> changed = new HashSet<>();
+        for (Node node : nodes.values()) {
+            Node old = previous.nodes.get(node.name);
+            if (old == null || !old.sameShape(node)) {
+                changed.add(node.name);
+            }
+        }
+        for (String name : previous.nodes.keySet()) {
+            if (!nodes.containsKey(name)) {
+                changed.add(name);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return 继承或实现了types里任意一个类的类，不含types里的类自己；父类被删掉的类也算
+     */
+    public Set<String> subtypesOf(Set<String> types) {
+        Set<String> result = new HashSet<>();
+        if (types.isEmpty()) {
+            return result;
+        }
+        for (String name : nodes.keySet()) {
+            if (types.contains(name)) {
+                continue;
+            }
+            for (String supertype : supertypesOf(name)) {
+                if (types.contains(supertype)) {
+                    result.add(name);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    // ---------------- 更新 ----------------
+
+    /**
+     * @return 当前内容的副本，之后对这个对象的更新不影响副本；监听不复制
+     */
+    public ClassHierarchy copy() {
+        ClassHierarchy copy = new ClassHierarchy();
+        // Node不可变，只复制map
+        copy.nodes.putAll(nodes);
+        for (Map.Entry<String, Set<String>> entry : classesBySource.entrySet()) {
+            Set<String> names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            names.addAll(entry.getValue());
+            copy.classesBySource.put(entry.getKey(), names);
+        }
+        return copy;
+    }
+
+    /**
+     * 扫描时顺便把class交给别的模块看一眼，省得再读一遍输入，比如预先登记方法id；传null取消
+     */
+    public void setClassListener(ClassListener listener) {
+        this.listener = listener;
+    }
+
+    public boolean hasSource(String source) {
+        return classesBySource.containsKey(source);
+    }
+
+    /**
+     * 读class头登记一个类，同名的类会被替换
+     */
+    public void putClass(String source, byte[] classBytes) {
+        ClassReader reader = new ClassReader(classBytes);
+        put(new Node(reader.getClassName(), reader.getSuperName(), reader.getInterfaces(), reader.getAccess(), source));
+        ClassListener current = listener;
+        if (current != null) {
+            current.onClass(source, reader);
+        }
+    }
+
+    private void put(Node node) {
+        nodes.put(node.name, node);
+        Set<String> names = classesBySource.get(node.source);
+        if (names == null) {
+            Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            names = classesBySource.putIfAbsent(node.source, created);
+            if (names == null) {
+                names = created;
+            }
+        }
+        names.add(node.name);
+        invalidate();
+    }
+
+    private void invalidate() {
+        // 扫描时每个类都会走到这里，缓存是空的时候不用清
+        if (!supertypes.isEmpty()) {
+            supertypes.clear();
+        }
+    }
+
+    /**
+     * 去掉一个来源里的类，增量编译时目录里删除的文件
+     */
+    public void removeClass(String source, String name) {
+        Node node = nodes.get(name);
+        // 同名的类后来被别的来源替换了，不能删
+        if (node != null && node.source.equals(source)) {
+            nodes.remove(name, node);
+        }
+        Set<String> names = classesBySource.get(source);
+        if (names != null) {
+            names.remove(name);
+        }
+        invalidate();
+    }
+
+    /**
+     * 去掉一个来源里的所有类，增量编译时删除或者变化了的jar
+     */
+    public void removeSource(String source) {
+        Set<String> names = classesBySource.remove(source);
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            Node node = nodes.get(name);
+            if (node != null && node.source.equals(source)) {
+                nodes.remove(name, node);
+            }
+        }
+        invalidate();
+    }
+
+    /**
+     * 扫描一个jar里所有的class，来源是jar的绝对路径；jar变化时先 {@link #removeSource(String)}
+     */
+    public void scanJar(File jar) throws IOException {
+        String source = jar.getAbsolutePath();
+        // 空jar也登记一个来源，增量编译时知道它已经扫描过
+        markSource(source);
+        try (ZipFile zipFile = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory() || !isClassEntry(entry.getName())) {
+                    continue;
+                }
+                try (InputStream is = zipFile.getInputStream(entry)) {
+                    putClassSafely(source, entry.getName(), ParallelJarRewriter.readFully(is));
+                }
+            }
+        }
+    }
+
+    /**
+     * 扫描目录下所有的class，来源是目录的绝对路径
+     */
+    public void scanDirectory(File dir) throws IOException {
+        String source = dir.getAbsolutePath();
+        markSource(source);
+        List<File> files = new ArrayList<>();
+        collectClassFiles(dir, files);
+        for (File file : files) {
+            scanFile(source, file);
+        }
+    }
+
+    /**
+     * 增量编译时目录里新增、修改的文件
+     */
+    public void scanFile(String source, File file) throws IOException {
+        if (file.isFile() && isClassEntry(file.getName())) {
+            putClassSafely(source, file.getPath(), Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    private void markSource(String source) {
+        classesBySource.putIfAbsent(source, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+    }
+
+    private void putClassSafely(String source, String path, byte[] bytes) {
+        try {
+            putClass(source, bytes);
+        } catch (RuntimeException e) {
+            // 混淆过、版本太新的class头读不出来时不影响别的类
+            Log.w(TAG, "skip %s: %s", path, e);
+        }
+    }
+
+    private static boolean isClassEntry(String name) {
+        return name.endsWith(".class") && !name.endsWith("module-info.class");
+    }
+
+    private static void collectClassFiles(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collectClassFiles(child, files);
+            } else if (isClassEntry(child.getName())) {
+                files.add(child);
+            }
+        }
+    }
+
+    /**
+     * 并行执行扫描任务，有任务失败时等其他任务结束后抛出第一个异常
+     */
+    public static void runAll(List<? extends Callable<?>> tasks, int parallelism) throws IOException {
+        if (parallelism <= 1 || tasks.size() <= 1) {
+            for (Callable<?> task : tasks) {
+                try {
+                    task.call();
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Callable<?> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            IOException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // ---------------- 持久化 ----------------
+
+    /**
+     * 读入上次 {@link #write(File)} 的结果
+     *
+     * @return 文件不存在或者格式不对时返回false，这时要全量扫描
+     */
+    public boolean load(File file) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return false;
+            }
+            String source = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(SOURCE_PREFIX)) {
+                    source = line.substring(SOURCE_PREFIX.length());
+                    markSource(source);
+                    continue;
+                }
+                // 类名、父类、access(16进制)、接口(逗号分隔)
+                String[] parts = line.split("\t", -1);
+                if (source == null || parts.length != 4) {
+                    Log.w(TAG, "bad line %s", line);
+                    clear();
+                    return false;
+                }
+                String superName = parts[1].isEmpty() ? null : parts[1];
+                String[] interfaces = parts[3].isEmpty() ? new String[0] : parts[3].split(",");
+                put(new Node(parts[0], superName, interfaces, Integer.parseInt(parts[2], 16), source));
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "bad file %s: %s", file, e);
+            clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 按来源、类名排序写出，先写临时文件再替换
+     */
+    public void write(File file) throws IOException {
+        TreeMap<String, List<Node>> sorted = new TreeMap<>();
+        for (String source : classesBySource.keySet()) {
+            sorted.put(source, new ArrayList<Node>());
+        }
+        for (Node node : nodes.values()) {
+            List<Node> ofSource = sorted.get(node.source);
+            if (ofSource != null) {
+                ofSource.add(node);
+            }
+        }
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("mkdirs failed: " + parent);
+        }
+        File tmp = new File(parent, file.getName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, List<Node>> entry : sorted.entrySet()) {
+                writer.write(SOURCE_PREFIX + entry.getKey());
+                writer.newLine();
+                TreeMap<String, Node> byName = new TreeMap<>();
+                for (Node node : entry.getValue()) {
+                    byName.put(node.name, node);
+                }
+                for (Node node : byName.values()) {
+                    writer.write(node.name);
+                    writer.write('\t');
+                    writer.write(node.superName != null ? node.superName : "");
+                    writer.write('\t');
+                    writer.write(Integer.toHexString(node.access));
+                    writer.write('\t');
+                    for (int i = 0; i < node.interfaces.length; i++) {
+                        if (i > 0) {
+                            writer.write(',');
+                        }
+                        writer.write(node.interfaces[i]);
+                    }
+                    writer.newLine();
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void clear() {
+        nodes.clear();
+        classesBySource.clear();
+        supertypes.clear();
+    }
+}
@@ -0,0 +1,90 @@
+package com.yl.gradle.study;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * 注册到 {@link InstrumentationBus} 的一个插桩步骤。
+ * <p>
+ * 每个class只解析、写出一次，所有适用的步骤按 {@link #getOrder()} 从小到大串成一条ClassVisitor链，
+ * order小的在链的前面，先看到ClassReader的事件。
+ * 一个步骤是否适用于某个class由 {@link #accept(String)} 和 {@link #newPrefilter()} 决定，都不适用的class原样输出。
+ * </p>
+ */
+public abstract class ClassVisitorFactory {
+
+    private final String name;
+    private final int order;
+
+    protected ClassVisitorFactory(String name, int order) {
+        this.name = name;
+        this.order = order;
+    }
+
+    public final String getName() {
+        return name;
+    }
+
+    public final int getOrder() {
+        return order;
+    }
+
+    /**
+     * 按名字过滤
+     *
+     * @param entryName 形如 com/foo/Bar.class，目录里的class也是用'/'分隔的相对路径
+     */
+    public boolean accept(String entryName) {
+        return entryName.endsWith(".class");
+    }
+
+    /**
+     * 常量池预过滤，每次transform创建一个；返回null表示不过滤
+     */
+    public ClassPrefilter newPrefilter() {
+        return null;
+    }
+
+    /**
+     * 插桩逻辑的版本号，参与 {@link TransformCache} 的指纹，修改了插桩逻辑要加1
+     */
+    public int getVersion() {
+        return 1;
+    }
+
+    /**
+     * 需要的ClassReader.accept参数，各个步骤取并集，比如AdviceAdapter需要 ClassReader.EXPAND_FRAMES
+     */
+    public int getReaderFlags() {
+        return 0;
+    }
+
+    /**
+     * 需要的ClassWriter参数，各个步骤取并集。
+     * 插入分支、try/finally 的步骤要返回 ClassWriter.COMPUTE_FRAMES：公共父类按 {@link ClassHierarchy} 计算，不加载类，
+     * 只有被包过的方法重新计算，见 {@link HierarchyClassWriter}；这时读入会改成 SKIP_FRAMES，visitor收不到原来的栈帧
+     */
+    public int getWriterFlags() {
+        return ClassWriter.COMPUTE_MAXS;
+    }
+
+    /**
+     * @param next 链上的下一个visitor，最后一个是ClassWriter
+     */
+    public abstract ClassVisitor create(ClassVisitor next);
+
+    /**
+     * 要按继承关系决定怎么插桩的步骤覆盖这个方法，比如处理某个类的所有子类，不需要加载任何类。
+     * 注意 {@link TransformCache} 按单个jar的内容缓存，结果依赖别的jar里的类时，要在 {@link #getVersion()} 之外自己保证缓存正确
+     *
+     * @param hierarchy 这次transform所有输入的类继承关系
+     */
+    public ClassVisitor create(ClassVisitor next, ClassHierarchy hierarchy) {
+        return create(next);
+    }
+
+    @Override
+    public String toString() {
+        return name + "@" + order;
+    }
+}
@@ -0,0 +1,119 @@
+package com.yl.gradle.study;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 用 {@link ClassHierarchy} 回答 getCommonSuperClass 的ClassWriter，COMPUTE_FRAMES 不再加载任何类。
+ * <p>
+ * 1. ClassWriter默认的实现用插件自己的ClassLoader加载两个类再找公共父类，又慢又占内存，
+ * 而且android.jar、app里的类根本加载不到，所以以前所有地方只能用 COMPUTE_MAXS 加 EXPAND_FRAMES；
+ * 2. 总是用 ClassWriter(ClassReader, flags) 构造：链上没有任何visitor改动的方法，
+ * ClassReader交过来的就是这里的MethodWriter，ASM直接原样拷贝整个方法，不解析、也不重新计算栈帧，
+ * 只有被visitor包过的方法才会重新计算；
+ * 3. 继承关系里查不到的类抛 TypeNotPresentException(和ASM自己加载不到类时一样)，
+ * 调用方按原来的 COMPUTE_MAXS 方式重新处理这个类，见 {@link InstrumentationBus.Pass#transform}。
+ * </p>
+ * 一个实例只写一个类，不能多线程共用
+ */
+public class HierarchyClassWriter extends ClassWriter {
+
+    // ClassWriter.visitMethod是final的，MethodWriter又是包内可见的类，只能这样拿到它的类型
+    private static final Class<?> METHOD_WRITER = new ClassWriter(0)
+            .visitMethod(Opcodes.ACC_PUBLIC, "m", "()V", null, null).getClass();
+
+    private final ClassHierarchy hierarchy;
+    // 每次查询和答案，见 ResolvedTypes
+    private final List<String> commonSuperLookups = new ArrayList<>();
+
+    public HierarchyClassWriter(ClassReader classReader, int flags, ClassHierarchy hierarchy) {
+        super(classReader, flags);
+        this.hierarchy = hierarchy;
+    }
+
+    /**
+     * Java 7 以下的class栈帧不是必须的(JVM会退回到类型推导校验)，还可能有JSR/RET，ASM算不了，这些类仍用 COMPUTE_MAXS
+     */
+    public static boolean canComputeFrames(ClassReader classReader) {
+        // 第6、7个字节是major version
+        return classReader.readUnsignedShort(6) >= Opcodes.V1_7;
+    }
+
+    /**
+     * 要重新计算栈帧时，原来的栈帧没有用，读的时候直接跳过，省掉 EXPAND_FRAMES 展开、再压缩的开销；
+     * 没有改动、原样拷贝的方法不受影响，带着原来的StackMapTable
+     */
+    public static int frameReaderFlags(int readerFlags) {
+        return (readerFlags & ~ClassReader.EXPAND_FRAMES) | ClassReader.SKIP_FRAMES;
+    }
+
+    /**
+     * @return visitor是不是ClassWriter创建的MethodWriter；是的话这个方法会被原样拷贝，链上的visitor不要再包一层，否则会变成重新生成
+     */
+    static boolean isMethodWriter(MethodVisitor visitor) {
+        return visitor != null && visitor.getClass() == METHOD_WRITER;
+    }
+
+    /**
+     * 这个类写出时查过的公共父类，格式见 {@link ResolvedTypes#line}；ASM对同一对类型只查一次
+     */
+    List<String> getCommonSuperLookups() {
+        return commonSuperLookups;
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        String result = commonSuperClass(hierarchy, type1, type2);
+        commonSuperLookups.add(ResolvedTypes.line(type1, type2, result));
+        return result;
+    }
+
+    /**
+     * 命中缓存时 {@link ResolvedTypes#stillValid} 也用它重新算一遍
+     *
+     * @throws TypeNotPresentException 继承关系里缺类
+     */
+    static String commonSuperClass(ClassHierarchy hierarchy, String type1, String type2) {
+        // 父类链不完整时下面的判断会得出过于宽泛的类型，宁可退回原来的方式
+        checkSuperChain(hierarchy, type1);
+        checkSuperChain(hierarchy, type2);
+        if (hierarchy.isSubtype(type1, type2)) {
+            return type2;
+        }
+        if (hierarchy.isSubtype(type2, type1)) {
+            return type1;
+        }
+        if (hierarchy.isInterface(type1) || hierarchy.isInterface(type2)) {
+            // 和ASM默认的实现一样，接口的公共父类按Object处理
+            return ClassHierarchy.OBJECT;
+        }
+        // 沿着type1的父类往上找，第一个是type2父类的就是公共父类，最晚到Object为止
+        String type = type1;
+        do {
+            type = hierarchy.getSuperName(type);
+        } while (!hierarchy.isSubtype(type2, type));
+        return type;
+    }
+
+    /**
+     * 这个类和它所有的父类(不含接口)都要在继承关系里，一直到Object；输入有环时也按找不到处理
+     */
+    private static void checkSuperChain(ClassHierarchy hierarchy, String type) {
+        String current = type;
+        for (int depth = 0; !ClassHierarchy.OBJECT.equals(current); depth++) {
+            if (!hierarchy.contains(current) || depth > hierarchy.size()) {
+                throw new TypeNotPresentException(current, null);
+            }
+            current = hierarchy.getSuperName(current);
+            if (current == null) {
+                // 不是Object却没有父类，只有module-info这种，不会出现在栈帧里
+                throw new TypeNotPresentException(type, null);
+            }
+        }
+    }
+}
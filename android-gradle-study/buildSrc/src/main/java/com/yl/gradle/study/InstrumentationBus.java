@@ -0,0 +1,282 @@
+package com.yl.gradle.study;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 插桩总线：各个插件往这里注册 {@link ClassVisitorFactory}，由一个transform统一处理。
+ * <p>
+ * 原来每个插件一个transform，每个transform都要把整个classpath读一遍、解析一遍、拷贝一遍；
+ * 现在每个class只读一次、解析一次、写一次，所有适用的visitor串在同一条链上。
+ * 在build.gradle里通过 project.extensions.getByType(InstrumentationBus) 拿到实例后调用 {@link #register}。
+ * </p>
+ */
+public class InstrumentationBus {
+
+    private static final String TAG = "InstrumentationBus";
+
+    private final List<ClassVisitorFactory> factories = new ArrayList<>();
+
+    /**
+     * 注册一个插桩步骤，同名的会被替换
+     */
+    public synchronized void register(ClassVisitorFactory factory) {
+        Iterator<ClassVisitorFactory> iterator = factories.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getName().equals(factory.getName())) {
+                iterator.remove();
+            }
+        }
+        factories.add(factory);
+    }
+
+    /**
+     * @return 按order排好序的副本
+     */
+    public synchronized List<ClassVisitorFactory> getFactories() {
+        List<ClassVisitorFactory> sorted = new ArrayList<>(factories);
+        Collections.sort(sorted, new Comparator<ClassVisitorFactory>() {
+            @Override
+            public int compare(ClassVisitorFactory o1, ClassVisitorFactory o2) {
+                if (o1.getOrder() != o2.getOrder()) {
+                    return o1.getOrder() < o2.getOrder() ? -1 : 1;
+                }
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * 参与 {@link TransformCache} 的指纹：步骤、顺序、版本号
+     */
+    public String fingerprint() {
+        StringBuilder builder = new StringBuilder();
+        for (ClassVisitorFactory factory : getFactories()) {
+            builder.append(factory.getName()).append('@').append(factory.getOrder())
+                    .append(':').append(factory.getVersion()).append(';');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 不需要继承关系时用，步骤拿到的是一个空的 {@link ClassHierarchy}
+     */
+    public Pass newPass(boolean profile, ClassVisitorFactory... overrides) {
+        return newPass(profile, new ClassHierarchy(), overrides);
+    }
+
+    /**
+     * 开始一次transform，注册的步骤在这时固定下来
+     *
+     * @param profile   是否统计每个visitor的耗时，统计本身有一些开销
+     * @param hierarchy 交给 {@link ClassVisitorFactory#create(ClassVisitor, ClassHierarchy)}，这次transform里不能再修改
+     * @param overrides 只在这次transform里替换同名的步骤，用来带上每次transform自己的状态，比如方法id表
+     */
+    public Pass newPass(boolean profile, ClassHierarchy hierarchy, ClassVisitorFactory... overrides) {
+        List<ClassVisitorFactory> factories = getFactories();
+        for (ClassVisitorFactory override : overrides) {
+            for (int i = 0; i < factories.size(); i++) {
+                if (factories.get(i).getName().equals(override.getName())) {
+                    factories.set(i, override);
+                }
+            }
+        }
+        return new Pass(factories, hierarchy, profile);
+    }
+
+    /**
+     * 一次transform里的融合处理，可以被多个线程同时使用
+     */
+    public static final class Pass {
+
+        private final ClassVisitorFactory[] factories;
+        private final ClassPrefilter[] prefilters;
+        private final ClassHierarchy hierarchy;
+        private final boolean profile;
+        // 每个步骤处理过的class个数
+        private final AtomicInteger[] visited;
+        // 下标0..n-1是各个步骤自己的耗时，n是解析(ClassReader)，n+1是写出(ClassWriter)
+        private final AtomicLongArray nanos;
+        private final AtomicInteger transformed = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        // 重新计算了栈帧的class个数、继承关系里缺类或者Java 7以下退回 COMPUTE_MAXS 的个数、查公共父类的次数
+        private final AtomicInteger framesComputed = new AtomicInteger();
+        private final AtomicInteger framesFallback = new AtomicInteger();
+        private final AtomicInteger commonSuperLookups = new AtomicInteger();
+        // 这次transform里所有重新计算栈帧查过的公共父类，不管是jar还是目录里的class
+        private final ResolvedTypes resolvedTypes = new ResolvedTypes();
+
+        Pass(List<ClassVisitorFactory> factories, ClassHierarchy hierarchy, boolean profile) {
+            int n = factories.size();
+            this.factories = factories.toArray(new ClassVisitorFactory[n]);
+            this.prefilters = new ClassPrefilter[n];
+            this.visited = new AtomicInteger[n];
+            for (int i = 0; i < n; i++) {
+                prefilters[i] = this.factories[i].newPrefilter();
+                visited[i] = new AtomicInteger();
+            }
+            this.hierarchy = hierarchy;
+            this.profile = profile;
+            this.nanos = new AtomicLongArray(n + 2);
+        }
+
+        /**
+         * @return 有没有步骤可能处理这个entry，没有时调用方不用读取内容
+         */
+        public boolean accept(String entryName) {
+            for (ClassVisitorFactory factory : factories) {
+                if (factory.accept(entryName)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public ClassHierarchy getHierarchy() {
+            return hierarchy;
+        }
+
+        /**
+         * @return 这次transform里所有class重新计算栈帧查过的公共父类；命中缓存的jar没有经过这里，调用方要自己补上
+         */
+        public ResolvedTypes getResolvedTypes() {
+            return resolvedTypes;
+        }
+
+        /**
+         * @return 处理后的字节；没有适用的步骤时返回bytes本身
+         */
+        public byte[] transform(String entryName, byte[] bytes) {
+            return transform(entryName, bytes, null);
+        }
+
+        /**
+         * @param resolved 不为null时另外记一份重新计算栈帧查过的公共父类，jar的插桩结果要进缓存时用；
+         *                 {@link #getResolvedTypes()} 总是会记
+         * @return 处理后的字节；没有适用的步骤时返回bytes本身
+         */
+        public byte[] transform(String entryName, byte[] bytes, ResolvedTypes resolved) {
+            int n = factories.length;
+            int[] stages = new int[n];
+            int count = 0;
+            int readerFlags = 0;
+            int writerFlags = 0;
+            for (int i = 0; i < n; i++) {
+                ClassVisitorFactory factory = factories[i];
+                if (!factory.accept(entryName) || (prefilters[i] != null && !prefilters[i].mayMatch(bytes))) {
+                    continue;
+                }
+                stages[count++] = i;
+                readerFlags |= factory.getReaderFlags();
+                writerFlags |= factory.getWriterFlags();
+            }
+            if (count == 0) {
+                skipped.incrementAndGet();
+                return bytes;
+            }
+
+            ClassReader classReader = new ClassReader(bytes);
+            byte[] result = null;
+            if ((writerFlags & ClassWriter.COMPUTE_FRAMES) != 0) {
+                if (HierarchyClassWriter.canComputeFrames(classReader)) {
+                    try {
+                        result = rewrite(classReader, stages, count, HierarchyClassWriter.frameReaderFlags(readerFlags),
+                                writerFlags, resolved);
+                        framesComputed.incrementAndGet();
+                    } catch (TypeNotPresentException e) {
+                        // 继承关系里缺类，比如compileOnly的依赖，这个类按原来的方式重新处理一遍
+                        Log.w(TAG, "%s: %s not in class hierarchy, frames kept as is", entryName, e.typeName());
+                    }
+                }
+                if (result == null) {
+                    framesFallback.incrementAndGet();
+                    writerFlags = (writerFlags & ~ClassWriter.COMPUTE_FRAMES) | ClassWriter.COMPUTE_MAXS;
+                }
+            }
+            if (result == null) {
+                result = rewrite(classReader, stages, count, readerFlags, writerFlags, null);
+            }
+
+            for (int k = 0; k < count; k++) {
+                visited[stages[k]].incrementAndGet();
+            }
+            transformed.incrementAndGet();
+            return result;
+        }
+
+        /**
+         * 串起这个class适用的步骤读一遍、写一遍。抛异常时耗时统计不计入，调用方可以换个参数重来
+         */
+        private byte[] rewrite(ClassReader classReader, int[] stages, int count, int readerFlags, int writerFlags,
+                               ResolvedTypes resolved) {
+            int n = factories.length;
+            HierarchyClassWriter classWriter = new HierarchyClassWriter(classReader, writerFlags, hierarchy);
+            // inclusive[k]：从第k个visitor开始往后整条链的耗时，inclusive[count]是ClassWriter
+            long[] inclusive = profile ? new long[count + 1] : null;
+            ClassVisitor next = profile ? new TimingClassVisitor(classWriter, inclusive, count) : classWriter;
+            for (int k = count - 1; k >= 0; k--) {
+                ClassVisitor visitor = factories[stages[k]].create(next, hierarchy);
+                next = profile ? new TimingClassVisitor(visitor, inclusive, k) : visitor;
+            }
+            long start = profile ? System.nanoTime() : 0;
+            classReader.accept(next, readerFlags);
+            long accepted = profile ? System.nanoTime() : 0;
+            byte[] result = classWriter.toByteArray();
+            commonSuperLookups.addAndGet(classWriter.getCommonSuperLookups().size());
+            resolvedTypes.addAll(classWriter.getCommonSuperLookups());
+            if (resolved != null) {
+                resolved.addAll(classWriter.getCommonSuperLookups());
+            }
+
+            if (profile) {
+                long end = System.nanoTime();
+                for (int k = 0; k < count; k++) {
+                    nanos.addAndGet(stages[k], inclusive[k] - inclusive[k + 1]);
+                }
+                nanos.addAndGet(n, (accepted - start) - inclusive[0]);
+                nanos.addAndGet(n + 1, inclusive[count] + (end - accepted));
+            }
+            return result;
+        }
+
+        /**
+         * 每个步骤处理的class个数、预过滤跳过的个数、耗时
+         */
+        public String report() {
+            int n = factories.length;
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("InstrumentationBus: %d classes rewritten in one pass, %d untouched%n",
+                    transformed.get(), skipped.get()));
+            if (framesComputed.get() + framesFallback.get() > 0) {
+                builder.append(String.format("  frames recomputed in %d classes (%d common super lookups), %d fell back to COMPUTE_MAXS%n",
+                        framesComputed.get(), commonSuperLookups.get(), framesFallback.get()));
+            }
+            for (int i = 0; i < n; i++) {
+                builder.append(String.format("  %-32s %7d classes", factories[i].getName(), visited[i].get()));
+                if (prefilters[i] != null) {
+                    builder.append(String.format(", prefilter skipped %d of %d",
+                            prefilters[i].getSkippedCount(), prefilters[i].getScannedCount()));
+                }
+                if (profile) {
+                    builder.append(String.format(", %d ms", nanos.get(i) / 1000000));
+                }
+                builder.append(String.format("%n"));
+            }
+            if (profile) {
+                builder.append(String.format("  %-32s %d ms%n", "ClassReader", nanos.get(n) / 1000000));
+                builder.append(String.format("  %-32s %d ms%n", "ClassWriter", nanos.get(n + 1) / 1000000));
+            }
+            return builder.toString();
+        }
+    }
+}
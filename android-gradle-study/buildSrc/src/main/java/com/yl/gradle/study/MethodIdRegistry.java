@@ -0,0 +1,392 @@
+package com.yl.gradle.study;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 插桩方法的id表，插桩代码只传int，运行时的trace按这个表翻译回方法名。
+ * <p>
+ * id默认由 类名+方法名+描述符 算出来，同一个方法每次编译id一样，transform并行处理时也基本不需要协调。
+ * 32位的id在方法多的时候一定会有冲突，所以表才是最终的依据：
+ * 1. 算出的id已经被别的方法占了，就往后找第一个空闲的id，写进映射文件，探测过的方法记在 {@link #getCollisions()} 里。
+ * 谁探测取决于登记的先后，所以插桩之前先用 {@link #registerAll(Collection)} 按签名排好序一次登记完，
+ * 同样的输入每次得到同样的id，和并行任务的执行顺序无关；插桩时才第一次见到的方法仍然当场探测；
+ * 2. 已经写进字节码的id(增量编译读入的上次映射、jar缓存里的id表)原样登记，
+ * 和表里已有的id冲突时整批拒绝，见 {@link #addLines(Iterable)}，调用方重新插桩；
+ * 3. 同一个方法登记过就一直用登记的id。
+ * 所以映射文件里一个id只对应一个方法。
+ * </p>
+ * 映射文件每行一个方法：id、类名、方法名、描述符，用tab分隔，按id排序。
+ * 多个线程可以同时使用同一个实例。
+ */
+public class MethodIdRegistry {
+
+    private static final String TAG = "MethodIdRegistry";
+
+    // 类名 -> (方法名+描述符 -> id)
+    private final ConcurrentMap<String, ConcurrentMap<String, Integer>> methods = new ConcurrentHashMap<>();
+    // id -> 占用它的方法，写入都在锁里
+    private final ConcurrentMap<Integer, String> owners = new ConcurrentHashMap<>();
+    private final Set<String> collisions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * 64位FNV-1a折成32位，比String.hashCode分布均匀，冲突更少
+     */
+    public static int idOf(String owner, String name, String desc) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, owner);
+        hash = fnv(hash, ".");
+        hash = fnv(hash, name);
+        hash = fnv(hash, desc);
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static long fnv(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * 登记一个插桩的方法，登记过的直接返回原来的id
+     *
+     * @return 方法id，算出的id被别的方法占了时是往后第一个空闲的id
+     */
+    public int register(String owner, String name, String desc) {
+        String method = name + '\t' + desc;
+        Integer id = lookup(owner, method);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = lookup(owner, method);
+            if (id != null) {
+                return id;
+            }
+            int hash = idOf(owner, name, desc);
+            int candidate = hash;
+            while (owners.containsKey(candidate)) {
+                candidate++;
+            }
+            String signature = owner + '\t' + method;
+            assign(candidate, owner, method, signature);
+            if (candidate != hash) {
+                collisions.add(hash + " -> " + candidate + ": " + owners.get(hash) + " / " + signature);
+            }
+            return candidate;
+        }
+    }
+
+    /**
+     * 按签名排序后逐个 {@link #register}，冲突的方法谁先谁后只取决于签名，探测的结果是确定的
+     *
+     * @param signatures 类名、方法名、描述符，tab分隔，见 {@link #collectMethods(ClassReader, Collection)}
+     */
+    public void registerAll(Collection<String> signatures) {
+        List<String> sorted = new ArrayList<>(signatures);
+        Collections.sort(sorted);
+        for (String signature : sorted) {
+            String[] parts = signature.split("\t");
+            if (parts.length == 3) {
+                register(parts[0], parts[1], parts[2]);
+            }
+        }
+    }
+
+    /**
+     * 收集一个类里有方法体的方法，也就是插桩时会登记的方法；只读方法头，不解析代码
+     */
+    public static void collectMethods(ClassReader reader, final Collection<String> signatures) {
+        final String owner = reader.getClassName();
+        reader.accept(new ClassVisitor(Opcodes.ASM7) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) == 0) {
+                    signatures.add(owner + '\t' + name + '\t' + desc);
+                }
+                return null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    }
+
+    private Integer lookup(String owner, String method) {
+        Map<String, Integer> ofOwner = methods.get(owner);
+        return ofOwner == null ? null : ofOwner.get(method);
+    }
+
+    private void assign(int id, String owner, String method, String signature) {
+        ConcurrentMap<String, Integer> ofOwner = methods.get(owner);
+        if (ofOwner == null) {
+            ofOwner = new ConcurrentHashMap<>();
+            methods.put(owner, ofOwner);
+        }
+        ofOwner.put(method, id);
+        owners.put(id, signature);
+    }
+
+    /**
+     * @return 这些类里登记过的方法，格式同映射文件，用来把一个jar的id表和它的插桩结果一起缓存
+     */
+    public List<String> linesOf(Collection<String> classNames) {
+        List<String> lines = new ArrayList<>();
+        for (String owner : classNames) {
+            Map<String, Integer> ofOwner = methods.get(owner);
+            if (ofOwner == null) {
+                continue;
+            }
+            for (Map.Entry<String, Integer> entry : ofOwner.entrySet()) {
+                lines.add(entry.getValue() + "\t" + owner + '\t' + entry.getKey());
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * 登记 {@link #linesOf(Collection)} 或者映射文件里的方法，这些id已经在字节码里了，只能原样登记，格式不对的行忽略。
+     * 有一行和表里冲突(方法已经有了别的id，或者id被别的方法占了)时一行都不登记
+     *
+     * @return 是否登记成功
+     */
+    public synchronized boolean addLines(Iterable<String> lines) {
+        List<String[]> parsed = new ArrayList<>();
+        Map<Integer, String> batch = new HashMap<>();
+        for (String line : lines) {
+            String[] parts = line.split("\t");
+            if (parts.length < 4) {
+                continue;
+            }
+            int id;
+            try {
+                id = Integer.parseInt(parts[0]);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "bad line %s", line);
+                continue;
+            }
+            String method = parts[2] + '\t' + parts[3];
+            String signature = parts[1] + '\t' + method;
+            Integer existing = lookup(parts[1], method);
+            String occupant = owners.get(id);
+            String inBatch = batch.put(id, signature);
+            if ((existing != null && existing != id) || (occupant != null && !occupant.equals(signature))
+                    || (inBatch != null && !inBatch.equals(signature))) {
+                Log.w(TAG, "method id %d of %s conflicts with %s", id, signature, occupant != null ? occupant : inBatch);
+                return false;
+            }
+            parsed.add(new String[]{parts[0], parts[1], method, signature});
+        }
+        for (String[] entry : parsed) {
+            assign(Integer.parseInt(entry[0]), entry[1], entry[2], entry[3]);
+        }
+        return true;
+    }
+
+    /**
+     * 读入上次的映射文件，增量编译时没有被重新处理的class也能留在表里
+     *
+     * @throws IOException 映射文件和已经登记的id冲突，需要全量重新构建
+     */
+    public void load(File file) throws IOException {
+        if (file.isFile() && !addLines(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))) {
+            throw new IOException("method id mapping " + file + " conflicts with registered ids, please rebuild without incremental");
+        }
+    }
+
+    /**
+     * 按id排序写出映射文件，先写临时文件再替换
+     */
+    public void write(File file) throws IOException {
+        TreeMap<Integer, List<String>> sorted = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentMap<String, Integer>> ofOwner : methods.entrySet()) {
+            for (Map.Entry<String, Integer> entry : ofOwner.getValue().entrySet()) {
+                List<String> lines = sorted.get(entry.getValue());
+                if (lines == null) {
+                    lines = new ArrayList<>(1);
+                    sorted.put(entry.getValue(), lines);
+                }
+                lines.add(entry.getValue() + "\t" + ofOwner.getKey() + '\t' + entry.getKey());
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        for (List<String> sameId : sorted.values()) {
+            // 冲突的方法按名字排，输出稳定
+            Collections.sort(sameId);
+            lines.addAll(sameId);
+        }
+        writeLines(file, lines);
+    }
+
+    /**
+     * 混淆之后，把 proguard/R8 的 mapping.txt 里的混淆名补到映射文件每一行的后面：
+     * id、类名、方法名、描述符、混淆后的类名、混淆后的方法名，类名都是'/'分隔的
+     *
+     * @param idMapping       {@link #write(File)} 写出的映射文件
+     * @param proguardMapping proguard/R8 输出的 mapping.txt
+     * @param output          合并后的文件
+     */
+    public static void mergeProguardMapping(File idMapping, File proguardMapping, File output) throws IOException {
+        ProguardMapping mapping = ProguardMapping.parse(proguardMapping);
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(idMapping.toPath(), StandardCharsets.UTF_8)) {
+            String[] parts = line.split("\t");
+            if (parts.length < 4) {
+                continue;
+            }
+            String owner = parts[1].replace('/', '.');
+            String obfuscatedOwner = mapping.mapClass(owner);
+            String obfuscatedName = mapping.mapMethod(owner, parts[2], parts[3]);
+            lines.add(line + '\t' + obfuscatedOwner.replace('.', '/') + '\t' + obfuscatedName);
+        }
+        writeLines(output, lines);
+    }
+
+    private static void writeLines(File file, List<String> lines) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("mkdirs failed: " + parent);
+        }
+        File tmp = new File(parent, file.getName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<String, Integer> ofOwner : methods.values()) {
+            size += ofOwner.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return 算出的id被占用、往后探测过的方法，每项形如 "算出的id -> 实际的id: 占用的方法 / 这个方法"
+     */
+    public Set<String> getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * proguard/R8 mapping.txt 里类和方法的部分，字段、行号、内联信息都不关心
+     */
+    static final class ProguardMapping {
+
+        // 原类名 -> 混淆后的类名，都是'.'分隔
+        private final Map<String, String> classes = new ConcurrentHashMap<>();
+        // 原类名.返回值 方法名(参数) -> 混淆后的方法名
+        private final Map<String, String> methods = new ConcurrentHashMap<>();
+
+        static ProguardMapping parse(File file) throws IOException {
+            ProguardMapping mapping = new ProguardMapping();
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String currentClass = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    int arrow = line.indexOf(" -> ");
+                    if (arrow < 0) {
+                        continue;
+                    }
+                    if (!Character.isWhitespace(line.charAt(0))) {
+                        // com.foo.Bar -> a.b:
+                        currentClass = line.substring(0, arrow).trim();
+                        String obfuscated = line.substring(arrow + 4).trim();
+                        if (obfuscated.endsWith(":")) {
+                            obfuscated = obfuscated.substring(0, obfuscated.length() - 1);
+                        }
+                        mapping.classes.put(currentClass, obfuscated);
+                        continue;
+                    }
+                    // 1:5:void foo(int,java.lang.String):10:14 -> a，没有括号的是字段
+                    String member = line.substring(0, arrow).trim();
+                    int open = member.indexOf('(');
+                    int close = member.indexOf(')');
+                    if (currentClass == null || open < 0 || close < open) {
+                        continue;
+                    }
+                    // 去掉开头的行号范围
+                    int start = 0;
+                    while (start < open && (Character.isDigit(member.charAt(start)) || member.charAt(start) == ':')) {
+                        start++;
+                    }
+                    String head = member.substring(start, open);
+                    int space = head.lastIndexOf(' ');
+                    if (space < 0) {
+                        continue;
+                    }
+                    String name = head.substring(space + 1);
+                    // 带类名的是从别的类内联进来的方法
+                    if (name.indexOf('.') >= 0) {
+                        continue;
+                    }
+                    String key = currentClass + '.' + head.substring(0, space) + ' ' + name + member.substring(open, close + 1);
+                    String obfuscated = line.substring(arrow + 4).trim();
+                    // 同一个方法可能因为行号范围出现多次，取第一次
+                    if (!mapping.methods.containsKey(key)) {
+                        mapping.methods.put(key, obfuscated);
+                    }
+                }
+            }
+            return mapping;
+        }
+
+        /**
+         * @return 混淆后的类名，没有混淆(被keep)时返回原名
+         */
+        String mapClass(String className) {
+            String obfuscated = classes.get(className);
+            return obfuscated == null ? className : obfuscated;
+        }
+
+        /**
+         * @return 混淆后的方法名，没有混淆(被keep或者被删掉)时返回原名
+         */
+        String mapMethod(String className, String name, String desc) {
+            String obfuscated = methods.get(className + '.' + toJavaSignature(name, desc));
+            return obfuscated == null ? name : obfuscated;
+        }
+
+        // (ILjava/lang/String;)V -> void name(int,java.lang.String)
+        static String toJavaSignature(String name, String desc) {
+            Type method = Type.getMethodType(desc);
+            StringBuilder builder = new StringBuilder();
+            builder.append(method.getReturnType().getClassName()).append(' ').append(name).append('(');
+            Type[] arguments = method.getArgumentTypes();
+            for (int i = 0; i < arguments.length; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(arguments[i].getClassName());
+            }
+            return builder.append(')').toString();
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.yl.gradle.study;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 流水线式的jar重写：
+ * <p>
+ * 读取线程按原顺序遍历entry，把解压+插桩的任务交给工作线程池，拿到的Future放进有界队列；
+ * 调用线程作为唯一的写线程，按队列顺序取结果写入ZipOutputStream/JarOutputStream，所以输出顺序和原jar一致。
+ * 队列长度限制了同时留在内存里的class字节数组的个数。
+ * </p>
+ * parallelism小于等于1时不创建线程，直接串行处理。
+ * 基于文件的 {@link #rewrite(File, File, EntryTransformer)} 对没改动的entry直接拷贝压缩数据，见 {@link RawZipFile}。
+ */
+public class ParallelJarRewriter implements Closeable {
+
+    private static final String TAG = "ParallelJarRewriter";
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    /**
+     * 单个entry的处理逻辑
+     */
+    public interface EntryTransformer {
+
+        /**
+         * @param entryName jar里的entry名
+         * @return 是否需要调用 {@link #transform(String, byte[])}
+         */
+        boolean accept(String entryName);
+
+        /**
+         * @return 处理后的字节，没有修改时返回bytes本身，这样可以直接拷贝原始的压缩数据
+         */
+        byte[] transform(String entryName, byte[] bytes) throws Exception;
+    }
+
+    private static final class Entry {
+        // 源entry，写入时沿用它的时间、压缩方式等信息
+        final ZipEntry source;
+        final byte[] bytes;
+
+        Entry(ZipEntry source, byte[] bytes) {
+            this.source = source;
+            this.bytes = bytes;
+        }
+    }
+
+    private final int maxInFlight;
+    private final ExecutorService workers;
+    private final ExecutorService readers;
+
+    public ParallelJarRewriter(int parallelism) {
+        this(parallelism, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public ParallelJarRewriter(int parallelism, int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        if (parallelism > 1) {
+            this.workers = Executors.newFixedThreadPool(parallelism, new NamedThreadFactory("jar-rewrite-worker"));
+            this.readers = Executors.newCachedThreadPool(new NamedThreadFactory("jar-rewrite-reader"));
+        } else {
+            this.workers = null;
+            this.readers = null;
+        }
+    }
+
+    public boolean isParallel() {
+        return workers != null;
+    }
+
+    /**
+     * 把input写成output，accept的entry先经过transformer处理。
+     * <p>
+     * 没有被accept、或者transform后返回原数组的entry，直接拷贝源文件里的压缩数据，不解压也不重新压缩；
+     * 只有真正改过的entry才在工作线程里重新deflate。
+     * input无法按原始格式解析时(比如zip64)，回退到 {@link #rewrite(ZipFile, ZipOutputStream, EntryTransformer)}。
+     * 处理失败时删除output，不会留下一个缺了entry、看起来却完整的jar。
+     * </p>
+     */
+    public void rewrite(File input, File output, final EntryTransformer transformer) throws IOException {
+        final RawZipFile rawZipFile;
+        try {
+            rawZipFile = RawZipFile.open(input);
+        } catch (ZipException e) {
+            Log.w(TAG, "raw read %s failed(%s), fallback to ZipFile", input.getName(), e.getMessage());
+            ZipFile zipFile = new ZipFile(input);
+            ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(output));
+            boolean success = false;
+            try {
+                rewrite(zipFile, zipOutputStream, transformer);
+                zipOutputStream.finish();
+                success = true;
+            } finally {
+                Util.closeQuietly(zipOutputStream);
+                Util.closeQuietly(zipFile);
+                if (!success) {
+                    deleteFailedOutput(output);
+                }
+            }
+            return;
+        }
+
+        final RawZipOutputStream rawZipOutputStream = new RawZipOutputStream(output);
+        boolean success = false;
+        try {
+            pipeline(input.getName(), rawZipFile.entries().iterator(), new Stage<RawZipFile.Entry, RawResult>() {
+                @Override
+                public RawResult process(RawZipFile.Entry entry) throws Exception {
+                    if (entry.isDirectory() || !transformer.accept(entry.getName())) {
+                        return new RawResult(entry, null);
+                    }
+                    byte[] bytes = rawZipFile.read(entry);
+                    byte[] transformed = transformer.transform(entry.getName(), bytes);
+                    if (transformed == bytes) {
+                        return new RawResult(entry, null);
+                    }
+                    return new RawResult(entry, RawZipOutputStream.compress(transformed));
+                }
+            }, new Sink<RawResult>() {
+                @Override
+                public void write(RawResult result) throws IOException {
+                    if (result.compressed == null) {
+                        rawZipOutputStream.copyRaw(rawZipFile, result.entry);
+                    } else {
+                        rawZipOutputStream.write(result.entry, result.compressed);
+                    }
+                }
+            });
+            rawZipOutputStream.finish();
+            success = true;
+        } finally {
+            Util.closeQuietly(rawZipOutputStream);
+            Util.closeQuietly(rawZipFile);
+            if (!success) {
+                deleteFailedOutput(output);
+            }
+        }
+    }
+
+    private static void deleteFailedOutput(File output) {
+        if (output.exists() && !output.delete()) {
+            Log.w(TAG, "delete failed output %s failed", output);
+        }
+    }
+
+    /**
+     * 把input里的所有entry按原顺序写到output，accept的entry先经过transformer处理。
+     * output由调用方创建和关闭。
+     */
+    public void rewrite(final ZipFile input, final ZipOutputStream output, final EntryTransformer transformer) throws IOException {
+        List<ZipEntry> zipEntries = new ArrayList<ZipEntry>(Collections.list(input.entries()));
+        pipeline(input.getName(), zipEntries.iterator(), new Stage<ZipEntry, Entry>() {
+            @Override
+            public Entry process(ZipEntry zipEntry) throws Exception {
+                return ParallelJarRewriter.process(input, zipEntry, transformer);
+            }
+        }, new Sink<Entry>() {
+            @Override
+            public void write(Entry entry) throws IOException {
+                ParallelJarRewriter.write(output, entry);
+            }
+        });
+    }
+
+    /**
+     * 在工作线程里执行
+     */
+    private interface Stage<S, T> {
+        T process(S source) throws Exception;
+    }
+
+    /**
+     * 在写线程里按source的顺序执行
+     */
+    private interface Sink<T> {
+        void write(T result) throws IOException;
+    }
+
+    private <S, T> void pipeline(String name, final Iterator<S> sources, final Stage<S, T> stage, Sink<T> sink) throws IOException {
+        if (!isParallel()) {
+            while (sources.hasNext()) {
+                S source = sources.next();
+                T result;
+                try {
+                    result = stage.process(source);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    Log.e(TAG, "rewrite %s err! %s", name, e);
+                    throw new IOException(e);
+                }
+                sink.write(result);
+            }
+            return;
+        }
+
+        final BlockingQueue<Future<T>> queue = new ArrayBlockingQueue<>(maxInFlight);
+        final Future<T> end = new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() {
+                return null;
+            }
+        });
+        Future<Void> reader = readers.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Exception failure = null;
+                try {
+                    while (sources.hasNext()) {
+                        final S source = sources.next();
+                        queue.put(workers.submit(new Callable<T>() {
+                            @Override
+                            public T call() throws Exception {
+                                return stage.process(source);
+                            }
+                        }));
+                    }
+                } catch (InterruptedException e) {
+                    // 写线程已经放弃
+                    return null;
+                } catch (Exception e) {
+                    failure = e;
+                }
+                queue.put(end);
+                if (failure != null) {
+                    throw failure;
+                }
+                return null;
+            }
+        });
+
+        boolean finished = false;
+        try {
+            while (true) {
+                Future<T> future = queue.take();
+                if (future == end) {
+                    break;
+                }
+                sink.write(future.get());
+            }
+            reader.get();
+            finished = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("rewrite " + name + " interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            Log.e(TAG, "rewrite %s err! %s", name, cause);
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            if (!finished) {
+                reader.cancel(true);
+                for (Future<T> future : queue) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    private static final class RawResult {
+        final RawZipFile.Entry entry;
+        // null表示原样拷贝
+        final RawZipOutputStream.Compressed compressed;
+
+        RawResult(RawZipFile.Entry entry, RawZipOutputStream.Compressed compressed) {
+            this.entry = entry;
+            this.compressed = compressed;
+        }
+    }
+
+    private static Entry process(ZipFile input, ZipEntry zipEntry, EntryTransformer transformer) throws Exception {
+        String name = zipEntry.getName();
+        InputStream inputStream = input.getInputStream(zipEntry);
+        byte[] bytes;
+        try {
+            bytes = readFully(inputStream);
+        } finally {
+            Util.closeQuietly(inputStream);
+        }
+        if (transformer.accept(name)) {
+            bytes = transformer.transform(name, bytes);
+        }
+        return new Entry(zipEntry, bytes);
+    }
+
+    private static void write(ZipOutputStream output, Entry entry) throws IOException {
+        ZipEntry source = entry.source;
+        ZipEntry zipEntry = new ZipEntry(source.getName());
+        zipEntry.setTime(source.getTime());
+        zipEntry.setExtra(source.getExtra());
+        zipEntry.setComment(source.getComment());
+        if (source.getMethod() == ZipEntry.STORED) {
+            // 不压缩的entry要提前给出大小和crc，内容可能被transform改过，按写入的数据重新算
+            CRC32 crc = new CRC32();
+            crc.update(entry.bytes);
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setSize(entry.bytes.length);
+            zipEntry.setCompressedSize(entry.bytes.length);
+            zipEntry.setCrc(crc.getValue());
+        }
+        output.putNextEntry(zipEntry);
+        output.write(entry.bytes);
+        output.closeEntry();
+    }
+
+    static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[Util.BUFFER_SIZE];
+        int length;
+        while ((length = inputStream.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        if (readers != null) {
+            readers.shutdownNow();
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger index = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.yl.gradle.study;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * 和 {@link RawZipFile} 配套的zip写入：
+ * <p>
+ * {@link #copyRaw} 把源entry的压缩数据、crc、大小原样写入，不解压也不重新压缩；
+ * 只有真正被修改的entry才通过 {@link #compress} 重新deflate后用 {@link #write} 写入。
+ * 压缩可以放在工作线程里做，写入必须在同一个线程里按顺序调用，全部写完后调用 {@link #finish()}。
+ * </p>
+ */
+public final class RawZipOutputStream implements Closeable {
+
+    // 会被写进local header的flag，只保留加密和utf-8名字，数据描述符(bit 3)不需要，因为大小已经写在头里了
+    private static final int KEPT_FLAGS = 0x0001 | 0x0800;
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+
+    /**
+     * 重新压缩后的数据
+     */
+    public static final class Compressed {
+        final int method;
+        final long crc;
+        final long size;
+        final byte[] data;
+
+        Compressed(int method, long crc, long size, byte[] data) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    private static final class Record {
+        final byte[] rawName;
+        final int versionMadeBy;
+        final int versionNeeded;
+        final int flags;
+        final int method;
+        final int time;
+        final int date;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final int internalAttributes;
+        final long externalAttributes;
+        final long localHeaderOffset;
+
+        Record(RawZipFile.Entry source, int versionNeeded, int flags, int method, long crc,
+               long compressedSize, long size, long localHeaderOffset) {
+            this.rawName = source.rawName;
+            this.versionMadeBy = source.versionMadeBy;
+            this.versionNeeded = versionNeeded;
+            this.flags = flags;
+            this.method = method;
+            this.time = source.time;
+            this.date = source.date;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.internalAttributes = source.internalAttributes;
+            this.externalAttributes = source.externalAttributes;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private final FileOutputStream outputStream;
+    private final FileChannel channel;
+    private final List<Record> records = new ArrayList<>();
+    private long position;
+    private boolean finished;
+
+    public RawZipOutputStream(File file) throws IOException {
+        this.outputStream = new FileOutputStream(file);
+        this.channel = outputStream.getChannel();
+    }
+
+    /**
+     * 原样拷贝source里的entry
+     */
+    public void copyRaw(RawZipFile source, RawZipFile.Entry entry) throws IOException {
+        Record record = new Record(entry, entry.versionNeeded, entry.flags & KEPT_FLAGS, entry.method,
+                entry.crc, entry.compressedSize, entry.size, position);
+        writeLocalHeader(record);
+        position += source.transferRaw(entry, channel);
+        records.add(record);
+    }
+
+    /**
+     * 写入修改过的entry，名字、时间和属性沿用源entry
+     */
+    public void write(RawZipFile.Entry like, Compressed compressed) throws IOException {
+        int versionNeeded = compressed.method == RawZipFile.DEFLATED ? VERSION_DEFLATED : VERSION_STORED;
+        Record record = new Record(like, versionNeeded, like.flags & 0x0800, compressed.method,
+                compressed.crc, compressed.data.length, compressed.size, position);
+        writeLocalHeader(record);
+        writeFully(ByteBuffer.wrap(compressed.data));
+        records.add(record);
+    }
+
+    /**
+     * deflate并计算crc，和写入无关，可以在工作线程里调用
+     */
+    public static Compressed compress(byte[] data) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, data.length);
+        if (data.length == 0) {
+            return new Compressed(RawZipFile.STORED, crc32.getValue(), 0, data);
+        }
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            byte[] buffer = new byte[Util.BUFFER_SIZE];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return new Compressed(RawZipFile.DEFLATED, crc32.getValue(), data.length, out.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeLocalHeader(Record record) throws IOException {
+        checkLimit(position);
+        ByteBuffer header = ByteBuffer.allocate(RawZipFile.LOCHDR + record.rawName.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(RawZipFile.LOCSIG);
+        header.putShort((short) record.versionNeeded);
+        header.putShort((short) record.flags);
+        header.putShort((short) record.method);
+        header.putShort((short) record.time);
+        header.putShort((short) record.date);
+        header.putInt((int) record.crc);
+        header.putInt((int) record.compressedSize);
+        header.putInt((int) record.size);
+        header.putShort((short) record.rawName.length);
+        header.putShort((short) 0);
+        header.put(record.rawName);
+        header.flip();
+        writeFully(header);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        if (records.size() >= 0xFFFF) {
+            throw new ZipException("zip64 is not supported, too many entries: " + records.size());
+        }
+        long centralOffset = position;
+        checkLimit(centralOffset);
+        for (Record record : records) {
+            ByteBuffer header = ByteBuffer.allocate(RawZipFile.CENHDR + record.rawName.length).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(RawZipFile.CENSIG);
+            header.putShort((short) record.versionMadeBy);
+            header.putShort((short) record.versionNeeded);
+            header.putShort((short) record.flags);
+            header.putShort((short) record.method);
+            header.putShort((short) record.time);
+            header.putShort((short) record.date);
+            header.putInt((int) record.crc);
+            header.putInt((int) record.compressedSize);
+            header.putInt((int) record.size);
+            header.putShort((short) record.rawName.length);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) record.internalAttributes);
+            header.putInt((int) record.externalAttributes);
+            header.putInt((int) record.localHeaderOffset);
+            header.put(record.rawName);
+            header.flip();
+            writeFully(header);
+        }
+        long centralSize = position - centralOffset;
+        ByteBuffer end = ByteBuffer.allocate(RawZipFile.ENDHDR).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(RawZipFile.ENDSIG);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) records.size());
+        end.putShort((short) records.size());
+        end.putInt((int) centralSize);
+        end.putInt((int) centralOffset);
+        end.putShort((short) 0);
+        end.flip();
+        writeFully(end);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+
+    private static void checkLimit(long offset) throws ZipException {
+        if (offset >= 0xFFFFFFFFL) {
+            throw new ZipException("zip64 is not supported, file too large");
+        }
+    }
+
+    /**
+     * 所有entry都写完后调用，写入central directory。
+     * 没有调用就close的文件是不完整的(处理中途失败)，由调用方删除，不会被当成一个正常的jar
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            writeCentralDirectory();
+            finished = true;
+        }
+    }
+
+    /**
+     * 只关闭文件，不会补写central directory，见 {@link #finish()}
+     */
+    @Override
+    public void close() throws IOException {
+        outputStream.close();
+    }
+}
@@ -0,0 +1,87 @@
+package com.yl.gradle.study;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 重新计算栈帧时查过的公共父类。
+ * <p>
+ * 栈帧只依赖这些查询的答案，按这次的继承关系把记下来的查询重新算一遍，答案都一样栈帧就还能用，见 {@link #stillValid}：
+ * 1. 一个jar的查询和插桩结果一起存进 {@link TransformCache}，缓存的key里就不用带上所有jar的继承关系；
+ * 2. 整个transform的查询 {@link #write(File)} 存在继承关系存档旁边，增量编译时没有重新处理的jar、class也靠它检查。
+ * 缺类退回 COMPUTE_MAXS 的class保留的是原来的栈帧，不依赖继承关系，不用记。
+ * </p>
+ * 可以被多个线程同时写
+ */
+public class ResolvedTypes {
+
+    private final Set<String> lines = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param lookups {@link HierarchyClassWriter#getCommonSuperLookups()} 里的查询，一个类写出成功后再记
+     */
+    void addAll(List<String> lookups) {
+        lines.addAll(lookups);
+    }
+
+    /**
+     * @return 排好序的查询，每行是 type1、type2、公共父类，tab分隔
+     */
+    public List<String> lines() {
+        List<String> sorted = new ArrayList<>(lines);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return 上次 {@link #write(File)} 的查询；文件不存在时返回null
+     */
+    public static List<String> read(File file) throws IOException {
+        return file.isFile() ? Files.readAllLines(file.toPath(), StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * 排好序写出，先写临时文件再替换
+     */
+    public void write(File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("mkdirs failed: " + parent);
+        }
+        File tmp = new File(parent, file.getName() + ".tmp");
+        Files.write(tmp.toPath(), lines(), StandardCharsets.UTF_8);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static String line(String type1, String type2, String commonSuperClass) {
+        return type1 + '\t' + type2 + '\t' + commonSuperClass;
+    }
+
+    /**
+     * @return 这些查询按现在的继承关系得到的答案是否都和记下来的一样；有类不见了、格式不对都算不一样
+     */
+    public static boolean stillValid(List<String> lines, ClassHierarchy hierarchy) {
+        for (String line : lines) {
+            String[] parts = line.split("\t", -1);
+            if (parts.length != 3) {
+                return false;
+            }
+            try {
+                if (!parts[2].equals(HierarchyClassWriter.commonSuperClass(hierarchy, parts[0], parts[1]))) {
+                    return false;
+                }
+            } catch (TypeNotPresentException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
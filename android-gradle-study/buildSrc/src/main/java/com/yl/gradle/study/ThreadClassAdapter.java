@@ -0,0 +1,131 @@
+package com.yl.gradle.study;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * 线程替换，在 {@link InstrumentationBus} 上是和耗时统计分开的一个步骤，排在它前面：
+ * <p>
+ * 1. new Thread 换成 CustomThread，构造完调用 setCallSiteId(创建位置的方法id)；
+ * 2. poolThreads 时方法先经过 {@link ThreadPoolingMethodNode}，没有逃逸的 new Thread(r).start() 换成 PooledThread，
+ * 线程池、HandlerThread、Timer 的创建交给 ThreadPoolRegistry，剩下的 new Thread 再按1处理。
+ * </p>
+ * 方法id和耗时统计用的是同一张表，{@link MethodIdRegistry#register} 对同一个方法返回同一个id。
+ */
+public class ThreadClassAdapter extends ClassVisitor {
+
+    private final MethodIdRegistry registry;
+    private final boolean poolThreads;
+    private String className;
+
+    /**
+     * @param registry 为null时只计算id
+     */
+    public ThreadClassAdapter(int api, ClassVisitor classVisitor, MethodIdRegistry registry, boolean poolThreads) {
+        super(api, classVisitor);
+        this.registry = registry;
+        this.poolThreads = poolThreads;
+    }
+
+    /**
+     * 有这些常量的类才可能被改写
+     */
+    public static ClassPrefilter newPrefilter(boolean poolThreads) {
+        if (poolThreads) {
+            return new ClassPrefilter(ThreadPoolingMethodNode.THREAD, ThreadPoolingMethodNode.EXECUTORS,
+                    ThreadPoolingMethodNode.HANDLER_THREAD, ThreadPoolingMethodNode.TIMER);
+        }
+        return new ClassPrefilter(ThreadPoolingMethodNode.THREAD);
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        super.visit(version, access, name, signature, superName, interfaces);
+        this.className = name;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        MethodVisitor methodVisitor = super.visitMethod(access, name, desc, signature, exceptions);
+        if (ASMCode.RUNTIME_CLASSES.contains(className)) {
+            return methodVisitor;
+        }
+        if (methodVisitor == null || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+            return methodVisitor;
+        }
+        MethodVisitor threadVisitor = new CustomThreadMethodAdapter(api, methodVisitor, name, desc);
+        if (poolThreads) {
+            // 要先看完整个方法才知道线程对象有没有逃逸，先读成MethodNode改写完再往下传
+            return new ThreadPoolingMethodNode(api, className, registry, access, name, desc, signature, exceptions, threadVisitor);
+        }
+        return threadVisitor;
+    }
+
+    /**
+     * new Thread 换成 CustomThread
+     */
+    private class CustomThreadMethodAdapter extends MethodVisitor {
+
+        private final String methodName;
+        private final String methodDesc;
+        // 刚换掉一个 NEW Thread，等它的构造方法
+        private boolean find = false;
+
+        CustomThreadMethodAdapter(int api, MethodVisitor methodVisitor, String name, String desc) {
+            super(api, methodVisitor);
+            this.methodName = name;
+            this.methodDesc = desc;
+        }
+
+        // 字节码里对应到visitTypeInsn 一般都是 _new指令 ，s就是对应的type，举个例子：_new 'com/jeremyliao/gradle/CustomThread'
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            if (opcode == Opcodes.NEW && ThreadPoolingMethodNode.THREAD.equals(type)) {
+                find = true;
+                super.visitTypeInsn(Opcodes.NEW, ASMCode.CUSTOM_THREAD);
+                return;
+            }
+            super.visitTypeInsn(opcode, type);
+        }
+
+        /**
+         * 构造方法的owner也要换成 CustomThread，需要排除CustomThread自己
+         */
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            if (ThreadPoolingMethodNode.THREAD.equals(owner) && !className.equals(ASMCode.CUSTOM_THREAD)
+                    && opcode == Opcodes.INVOKESPECIAL && find) {
+                find = false;
+                super.visitMethodInsn(opcode, ASMCode.CUSTOM_THREAD, name, desc, itf);
+                if ("<init>".equals(name)) {
+                    // new 出来的对象还在栈顶(NEW、DUP、参数、<init>)，复制一份调用 setCallSiteId(methodId)，
+                    // 创建位置就是当前方法，运行时用同一张方法id表翻译
+                    super.visitInsn(Opcodes.DUP);
+                    pushInt(methodId());
+                    super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, ASMCode.CUSTOM_THREAD, "setCallSiteId", "(I)V", false);
+                }
+                Log.i("asmcode", "className:%s, method:%s, name:%s", className, methodName, name);
+                return;
+            }
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+        }
+
+        private int methodId() {
+            return registry != null ? registry.register(className, methodName, methodDesc)
+                    : MethodIdRegistry.idOf(className, methodName, methodDesc);
+        }
+
+        private void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                super.visitInsn(Opcodes.ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                super.visitIntInsn(Opcodes.BIPUSH, value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                super.visitIntInsn(Opcodes.SIPUSH, value);
+            } else {
+                super.visitLdcInsn(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.yl.gradle.study;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * threadMode = pool 时，先把整个方法读进来，找出只是 new 出来、配置一下就 start 的线程，换成 PooledThread，
+ * 同时把线程池、HandlerThread、Timer的创建交给 ThreadPoolRegistry 管理。
+ * <p>
+ * 能换的只有这两种写法，构造方法是 Thread(Runnable) 或 Thread(Runnable, String)：
+ * 1. new Thread(r[, name]).start()；
+ * 2. Thread t = new Thread(r[, name]); t.setName/setPriority/setDaemon(常量); ... t.start();
+ * 并且整个方法里 t 所在的局部变量除了上面这几处没有别的读取。
+ * 这样线程对象不会被 join、interrupt、传给别的方法，start 改成提交到线程池不会改变行为。
+ * 只改 NEW 的类型和构造方法的 owner，PooledThread 是 Thread 的子类，栈和局部变量的类型、栈帧都不用动；
+ * 不符合条件的 new Thread 原样交给下一个visitor，仍然换成 CustomThread。
+ * </p>
+ * <p>
+ * 另外三种不用看逃逸：
+ * 1. Executors.newFixedThreadPool / newCachedThreadPool / newSingleThreadExecutor 改成调用 ThreadPoolRegistry 里同名同参数的方法，
+ * 返回值类型一样，fixed、cached 返回的是 ThreadPoolExecutor，single 和 Executors 一样是包装过的，后面不管在哪里强转，结果都和不插桩时相同；
+ * 2. new HandlerThread(...) 换成 GovernedHandlerThread，new Timer(...) 换成 GovernedTimer，都是子类，和 PooledThread 一样只改 NEW 和 owner。
+ * </p>
+ */
+public class ThreadPoolingMethodNode extends MethodNode implements Opcodes {
+
+    static final String THREAD = "java/lang/Thread";
+    static final String POOLED_THREAD = "com/jeremyliao/gradle/PooledThread";
+
+    static final String THREAD_POOL_REGISTRY = "com/jeremyliao/gradle/ThreadPoolRegistry";
+    static final String GOVERNED_HANDLER_THREAD = "com/jeremyliao/gradle/GovernedHandlerThread";
+    static final String GOVERNED_TIMER = "com/jeremyliao/gradle/GovernedTimer";
+
+    static final String EXECUTORS = "java/util/concurrent/Executors";
+    static final String HANDLER_THREAD = "android/os/HandlerThread";
+    static final String TIMER = "java/util/Timer";
+
+    private static final Set<String> THREAD_INITS = new HashSet<>(Arrays.asList(
+            "(Ljava/lang/Runnable;)V", "(Ljava/lang/Runnable;Ljava/lang/String;)V"));
+    private static final Set<String> HANDLER_THREAD_INITS = new HashSet<>(Arrays.asList(
+            "(Ljava/lang/String;)V", "(Ljava/lang/String;I)V"));
+    private static final Set<String> TIMER_INITS = new HashSet<>(Arrays.asList(
+            "()V", "(Z)V", "(Ljava/lang/String;)V", "(Ljava/lang/String;Z)V"));
+    /**
+     * ThreadPoolRegistry 里有同样描述符的静态方法
+     */
+    private static final Set<String> EXECUTOR_FACTORIES = new HashSet<>(Arrays.asList(
+            "newFixedThreadPool(I)Ljava/util/concurrent/ExecutorService;",
+            "newFixedThreadPool(ILjava/util/concurrent/ThreadFactory;)Ljava/util/concurrent/ExecutorService;",
+            "newCachedThreadPool()Ljava/util/concurrent/ExecutorService;",
+            "newCachedThreadPool(Ljava/util/concurrent/ThreadFactory;)Ljava/util/concurrent/ExecutorService;",
+            "newSingleThreadExecutor()Ljava/util/concurrent/ExecutorService;",
+            "newSingleThreadExecutor(Ljava/util/concurrent/ThreadFactory;)Ljava/util/concurrent/ExecutorService;"));
+
+    private final String className;
+    private final MethodIdRegistry registry;
+    private final MethodVisitor next;
+
+    /**
+     * @param registry 和 ThreadClassAdapter 同一个，为null时只计算id
+     */
+    public ThreadPoolingMethodNode(int api, String className, MethodIdRegistry registry, int access, String name, String desc,
+                                   String signature, String[] exceptions, MethodVisitor next) {
+        super(api, access, name, desc, signature, exceptions);
+        this.className = className;
+        this.registry = registry;
+        this.next = next;
+    }
+
+    @Override
+    public void visitEnd() {
+        rewrite();
+        accept(next);
+    }
+
+    private void rewrite() {
+        for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn.getOpcode() == INVOKESTATIC) {
+                rewriteExecutorFactory((MethodInsnNode) insn);
+                continue;
+            }
+            if (insn.getOpcode() != NEW) {
+                continue;
+            }
+            TypeInsnNode newInsn = (TypeInsnNode) insn;
+            if (THREAD.equals(newInsn.desc)) {
+                MethodInsnNode init = findInit(newInsn, THREAD_INITS);
+                if (init != null && isConfinedUntilStart(init)) {
+                    retarget(newInsn, init, POOLED_THREAD);
+                    injectCallSite(init);
+                }
+            } else if (HANDLER_THREAD.equals(newInsn.desc)) {
+                retarget(newInsn, findInit(newInsn, HANDLER_THREAD_INITS), GOVERNED_HANDLER_THREAD);
+            } else if (TIMER.equals(newInsn.desc)) {
+                retarget(newInsn, findInit(newInsn, TIMER_INITS), GOVERNED_TIMER);
+            }
+        }
+    }
+
+    private void rewriteExecutorFactory(MethodInsnNode call) {
+        if (!EXECUTORS.equals(call.owner) || !EXECUTOR_FACTORIES.contains(call.name + call.desc)) {
+            return;
+        }
+        call.owner = THREAD_POOL_REGISTRY;
+        Log.i("asmcode", "governed %s className:%s, method:%s", call.name, className, name);
+    }
+
+    /**
+     * 子类的构造方法参数和父类一样，只改 NEW 的类型和 &lt;init&gt; 的 owner
+     */
+    private void retarget(TypeInsnNode newInsn, MethodInsnNode init, String subclass) {
+        if (init == null) {
+            return;
+        }
+        Log.i("asmcode", "replace %s with %s className:%s, method:%s", newInsn.desc, subclass, className, name);
+        newInsn.desc = subclass;
+        init.owner = subclass;
+    }
+
+    /**
+     * 和 TraceMethodAdapter 对 CustomThread 做的一样，构造完之后 dup 一份调用 setCallSiteId(当前方法的id)，
+     * 给 ThreadTelemetry 按创建位置统计；id从同一个 MethodIdRegistry 登记，和耗时统计、映射文件里的一致
+     */
+    private void injectCallSite(MethodInsnNode init) {
+        int methodId = registry != null ? registry.register(className, name, desc) : MethodIdRegistry.idOf(className, name, desc);
+        InsnList call = new InsnList();
+        call.add(new InsnNode(DUP));
+        call.add(new LdcInsnNode(methodId));
+        call.add(new MethodInsnNode(INVOKEVIRTUAL, POOLED_THREAD, "setCallSiteId", "(I)V", false));
+        instructions.insert(init, call);
+    }
+
+    /**
+     * @return 这个NEW对应的构造方法调用；不是 NEW、DUP、参数、INVOKESPECIAL 的形式，或者构造方法不支持时返回null
+     */
+    private static MethodInsnNode findInit(TypeInsnNode newInsn, Set<String> descs) {
+        AbstractInsnNode dup = nextReal(newInsn);
+        if (dup == null || dup.getOpcode() != DUP) {
+            return null;
+        }
+        // 参数里还可能 new 别的对象，按嵌套层数找到和这个NEW配对的<init>
+        int depth = 0;
+        for (AbstractInsnNode insn = dup.getNext(); insn != null; insn = insn.getNext()) {
+            if (insn.getOpcode() == NEW) {
+                depth++;
+            } else if (insn.getOpcode() == INVOKESPECIAL && "<init>".equals(((MethodInsnNode) insn).name)) {
+                if (depth > 0) {
+                    depth--;
+                    continue;
+                }
+                MethodInsnNode init = (MethodInsnNode) insn;
+                if (newInsn.desc.equals(init.owner) && descs.contains(init.desc)) {
+                    return init;
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private boolean isConfinedUntilStart(MethodInsnNode init) {
+        AbstractInsnNode insn = nextReal(init);
+        if (isThreadCall(insn, "start", "()V")) {
+            return true;
+        }
+        if (insn == null || insn.getOpcode() != ASTORE) {
+            return false;
+        }
+        int var = ((VarInsnNode) insn).var;
+        int loads = 0;
+        insn = nextReal(insn);
+        while (true) {
+            if (insn == null || insn.getOpcode() != ALOAD || ((VarInsnNode) insn).var != var) {
+                return false;
+            }
+            loads++;
+            insn = nextReal(insn);
+            if (isThreadCall(insn, "start", "()V")) {
+                break;
+            }
+            // t.setXxx(常量)
+            if (!isConstant(insn)) {
+                return false;
+            }
+            insn = nextReal(insn);
+            if (!isThreadCall(insn, "setName", "(Ljava/lang/String;)V")
+                    && !isThreadCall(insn, "setPriority", "(I)V")
+                    && !isThreadCall(insn, "setDaemon", "(Z)V")) {
+                return false;
+            }
+            insn = nextReal(insn);
+        }
+        // 别的地方还读了这个局部变量，线程对象可能被用到，不换
+        return loads == countLoads(var);
+    }
+
+    private int countLoads(int var) {
+        int count = 0;
+        for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn.getOpcode() == ALOAD && ((VarInsnNode) insn).var == var) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isThreadCall(AbstractInsnNode insn, String name, String desc) {
+        if (insn == null || insn.getOpcode() != INVOKEVIRTUAL) {
+            return false;
+        }
+        MethodInsnNode method = (MethodInsnNode) insn;
+        return THREAD.equals(method.owner) && name.equals(method.name) && desc.equals(method.desc);
+    }
+
+    private static boolean isConstant(AbstractInsnNode insn) {
+        if (insn == null) {
+            return false;
+        }
+        int opcode = insn.getOpcode();
+        if (opcode >= ICONST_M1 && opcode <= ICONST_5) {
+            return true;
+        }
+        if (opcode == BIPUSH || opcode == SIPUSH) {
+            return insn instanceof IntInsnNode;
+        }
+        return opcode == LDC && ((LdcInsnNode) insn).cst instanceof String;
+    }
+
+    /**
+     * 跳过label、行号、栈帧这些不是指令的节点
+     */
+    private static AbstractInsnNode nextReal(AbstractInsnNode insn) {
+        AbstractInsnNode next = insn.getNext();
+        while (next != null && next.getOpcode() == -1) {
+            next = next.getNext();
+        }
+        return next;
+    }
+}
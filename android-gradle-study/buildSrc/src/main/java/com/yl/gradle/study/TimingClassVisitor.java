@@ -0,0 +1,353 @@
+package com.yl.gradle.study;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.TypePath;
+
+/**
+ * {@link InstrumentationBus} 统计耗时用的，插在链上每个visitor的前面。
+ * <p>
+ * 记录调用下一个visitor(连同它后面整条链)花的时间，加到inclusive[index]上，
+ * 相邻两个的差就是中间那个visitor自己的耗时。方法体里的每条指令都会经过这里，只在需要统计时使用。
+ * 注解、字段的visitor不统计，耗时算在ClassReader里；原样拷贝的方法也不统计，不经过任何visitor。
+ * </p>
+ */
+class TimingClassVisitor extends ClassVisitor {
+
+    private final long[] inclusive;
+    private final int index;
+
+    TimingClassVisitor(ClassVisitor next, long[] inclusive, int index) {
+        super(Opcodes.ASM7, next);
+        this.inclusive = inclusive;
+        this.index = index;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        long start = System.nanoTime();
+        super.visit(version, access, name, signature, superName, interfaces);
+        inclusive[index] += System.nanoTime() - start;
+    }
+
+    @Override
+    public void visitSource(String source, String debug) {
+        long start = System.nanoTime();
+        super.visitSource(source, debug);
+        inclusive[index] += System.nanoTime() - start;
+    }
+
+    @Override
+    public void visitNestHost(String nestHost) {
+        long start = System.nanoTime();
+        super.visitNestHost(nestHost);
+        inclusive[index] += System.nanoTime() - start;
+    }
+
+    @Override
+    public void visitOuterClass(String owner, String name, String descriptor) {
+        long start = System.nanoTime();
+        super.visitOuterClass(owner, name, descriptor);
+        inclusive[index] += System.nanoTime() - start;
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+        long start = System.nanoTime();
+        AnnotationVisitor visitor = super.visitAnnotation(descriptor, visible);
+        inclusive[index] += System.nanoTime() - start;
+        return visitor;
+    }
+
+    @Override
+    public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+        long start = System.nanoTime();
+        AnnotationVisitor visitor = super.visitTypeAnnotation(typeRef, typePath, descriptor, visible);
+        inclusive[index] += System.nanoTime() - start;
+        return visitor;
+    }
+
+    @Override
+    public void visitAttribute(Attribute attribute) {
+        long start = System.nanoTime();
+        super.visitAttribute(attribute);
+        inclusive[index] += System.nanoTime() - start;
+    }
+
+    @Override
+    public void visitNestMember(String nestMember) {
+        long start = System.nanoTime();
+        super.visitNestMember(nestMember);
+        inclusive[index] += System.nanoTime() - start;
+    }
+
+    @Override
+    public void visitInnerClass(String name, String outerName, String innerName, int access) {
+        long start = System.nanoTime();
+        super.visitInnerClass(name, outerName, innerName, access);
+        inclusive[index] += System.nanoTime() - start;
+    }
+
+    @Override
+    public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+        long start = System.nanoTime();
+        FieldVisitor visitor = super.visitField(access, name, descriptor, signature, value);
+        inclusive[index] += System.nanoTime() - start;
+        return visitor;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        long start = System.nanoTime();
+        MethodVisitor visitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+        inclusive[index] += System.nanoTime() - start;
+        // 后面没有visitor改动这个方法，包一层会让它从原样拷贝变成重新生成
+        return visitor == null || HierarchyClassWriter.isMethodWriter(visitor) ? visitor : new TimingMethodVisitor(visitor);
+    }
+
+    @Override
+    public void visitEnd() {
+        long start = System.nanoTime();
+        super.visitEnd();
+        inclusive[index] += System.nanoTime() - start;
+    }
+
+    private final class TimingMethodVisitor extends MethodVisitor {
+
+        TimingMethodVisitor(MethodVisitor next) {
+            super(Opcodes.ASM7, next);
+        }
+
+        @Override
+        public void visitParameter(String name, int access) {
+            long start = System.nanoTime();
+            super.visitParameter(name, access);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotationDefault() {
+            long start = System.nanoTime();
+            AnnotationVisitor visitor = super.visitAnnotationDefault();
+            inclusive[index] += System.nanoTime() - start;
+            return visitor;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+            long start = System.nanoTime();
+            AnnotationVisitor visitor = super.visitAnnotation(descriptor, visible);
+            inclusive[index] += System.nanoTime() - start;
+            return visitor;
+        }
+
+        @Override
+        public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+            long start = System.nanoTime();
+            AnnotationVisitor visitor = super.visitTypeAnnotation(typeRef, typePath, descriptor, visible);
+            inclusive[index] += System.nanoTime() - start;
+            return visitor;
+        }
+
+        @Override
+        public void visitAnnotableParameterCount(int parameterCount, boolean visible) {
+            long start = System.nanoTime();
+            super.visitAnnotableParameterCount(parameterCount, visible);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public AnnotationVisitor visitParameterAnnotation(int parameter, String descriptor, boolean visible) {
+            long start = System.nanoTime();
+            AnnotationVisitor visitor = super.visitParameterAnnotation(parameter, descriptor, visible);
+            inclusive[index] += System.nanoTime() - start;
+            return visitor;
+        }
+
+        @Override
+        public void visitAttribute(Attribute attribute) {
+            long start = System.nanoTime();
+            super.visitAttribute(attribute);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitCode() {
+            long start = System.nanoTime();
+            super.visitCode();
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+            long start = System.nanoTime();
+            super.visitFrame(type, numLocal, local, numStack, stack);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            long start = System.nanoTime();
+            super.visitInsn(opcode);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            long start = System.nanoTime();
+            super.visitIntInsn(opcode, operand);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            long start = System.nanoTime();
+            super.visitVarInsn(opcode, var);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            long start = System.nanoTime();
+            super.visitTypeInsn(opcode, type);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            long start = System.nanoTime();
+            super.visitFieldInsn(opcode, owner, name, descriptor);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            long start = System.nanoTime();
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
+                                           Object... bootstrapMethodArguments) {
+            long start = System.nanoTime();
+            super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            long start = System.nanoTime();
+            super.visitJumpInsn(opcode, label);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            long start = System.nanoTime();
+            super.visitLabel(label);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitLdcInsn(Object value) {
+            long start = System.nanoTime();
+            super.visitLdcInsn(value);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            long start = System.nanoTime();
+            super.visitIincInsn(var, increment);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            long start = System.nanoTime();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            long start = System.nanoTime();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+            long start = System.nanoTime();
+            super.visitMultiANewArrayInsn(descriptor, numDimensions);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public AnnotationVisitor visitInsnAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+            long start = System.nanoTime();
+            AnnotationVisitor visitor = super.visitInsnAnnotation(typeRef, typePath, descriptor, visible);
+            inclusive[index] += System.nanoTime() - start;
+            return visitor;
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label startLabel, Label end, Label handler, String type) {
+            long start = System.nanoTime();
+            super.visitTryCatchBlock(startLabel, end, handler, type);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public AnnotationVisitor visitTryCatchAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+            long start = System.nanoTime();
+            AnnotationVisitor visitor = super.visitTryCatchAnnotation(typeRef, typePath, descriptor, visible);
+            inclusive[index] += System.nanoTime() - start;
+            return visitor;
+        }
+
+        @Override
+        public void visitLocalVariable(String name, String descriptor, String signature, Label startLabel, Label end, int index) {
+            long start = System.nanoTime();
+            super.visitLocalVariable(name, descriptor, signature, startLabel, end, index);
+            inclusive[TimingClassVisitor.this.index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath, Label[] startLabels,
+                                                              Label[] end, int[] index, String descriptor, boolean visible) {
+            long start = System.nanoTime();
+            AnnotationVisitor visitor = super.visitLocalVariableAnnotation(typeRef, typePath, startLabels, end, index, descriptor, visible);
+            inclusive[TimingClassVisitor.this.index] += System.nanoTime() - start;
+            return visitor;
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label startLabel) {
+            long start = System.nanoTime();
+            super.visitLineNumber(line, startLabel);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            long start = System.nanoTime();
+            super.visitMaxs(maxStack, maxLocals);
+            inclusive[index] += System.nanoTime() - start;
+        }
+
+        @Override
+        public void visitEnd() {
+            long start = System.nanoTime();
+            super.visitEnd();
+            inclusive[index] += System.nanoTime() - start;
+        }
+    }
+}
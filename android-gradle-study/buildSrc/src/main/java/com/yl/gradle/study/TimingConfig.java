@@ -0,0 +1,94 @@
+package com.yl.gradle.study;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ASMCode 插桩耗时代码的方式，由 build.gradle 里的 methodTiming {} 转换而来，transform期间不可变。
+ * <p>
+ * 1. {@link #MODE_TRACE}：每次进入、退出都交给 TraceRecorder，适合看完整的调用链；
+ * 2. {@link #MODE_SLOW}：方法里只记一个 System.nanoTime()，退出时超过阈值才上报，
+ * 阈值在编译期按包名算好，作为常量写进方法里；再加上1/N采样，不上报的路径只有一次计数和一次比较；
+ * 3. {@link #MODE_HISTOGRAM}：和slow一样计时、采样，退出时把耗时记进每个方法的耗时分布，运行时定时dump分位数。
+ * </p>
+ */
+public final class TimingConfig {
+
+    public static final String MODE_TRACE = "trace";
+    public static final String MODE_SLOW = "slow";
+    public static final String MODE_HISTOGRAM = "histogram";
+
+    public static final TimingConfig DEFAULT = new TimingConfig(MODE_TRACE, 0, Collections.<String, Long>emptyMap(), 1);
+
+    private final String mode;
+    private final long defaultThresholdNanos;
+    // '/'分隔的包名前缀 -> 阈值，按key倒序，更长(更具体)的前缀先匹配
+    private final TreeMap<String, Long> packageThresholdNanos = new TreeMap<>(Collections.<String>reverseOrder());
+    private final int sampleRate;
+
+    /**
+     * @param mode                   {@link #MODE_TRACE}、{@link #MODE_SLOW} 或 {@link #MODE_HISTOGRAM}
+     * @param defaultThresholdMicros 没有匹配到包名时的阈值
+     * @param packageThresholdMicros 包名('.'或'/'分隔都可以) -> 阈值，一个包的阈值对它的子包也生效
+     * @param sampleRate             每个线程每N次调用采样一次，小于等于1时每次都统计
+     */
+    public TimingConfig(String mode, long defaultThresholdMicros, Map<String, ? extends Number> packageThresholdMicros, int sampleRate) {
+        if (!MODE_TRACE.equals(mode) && !MODE_SLOW.equals(mode) && !MODE_HISTOGRAM.equals(mode)) {
+            throw new IllegalArgumentException("methodTiming.mode must be '" + MODE_TRACE + "', '" + MODE_SLOW
+                    + "' or '" + MODE_HISTOGRAM + "', but was " + mode);
+        }
+        this.mode = mode;
+        this.defaultThresholdNanos = TimeUnit.MICROSECONDS.toNanos(defaultThresholdMicros);
+        if (packageThresholdMicros != null) {
+            for (Map.Entry<String, ? extends Number> entry : packageThresholdMicros.entrySet()) {
+                String prefix = entry.getKey().replace('.', '/');
+                // 空字符串表示所有类
+                if (!prefix.isEmpty() && !prefix.endsWith("/")) {
+                    prefix += "/";
+                }
+                packageThresholdNanos.put(prefix, TimeUnit.MICROSECONDS.toNanos(entry.getValue().longValue()));
+            }
+        }
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    public boolean isTraceMode() {
+        return MODE_TRACE.equals(mode);
+    }
+
+    public boolean isSlowMode() {
+        return MODE_SLOW.equals(mode);
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @param className '/'分隔的类名
+     * @return 最长匹配的包名前缀的阈值
+     */
+    public long thresholdNanosOf(String className) {
+        // 从不大于className的key里从大到小找，前缀一定不大于className，而且越长的越先遇到
+        for (Map.Entry<String, Long> entry : packageThresholdNanos.tailMap(className, true).entrySet()) {
+            if (className.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return defaultThresholdNanos;
+    }
+
+    /**
+     * 参与 {@link TransformCache} 的指纹，阈值和采样率都是写进字节码里的
+     */
+    public String fingerprint() {
+        return mode + ";" + defaultThresholdNanos + ";" + packageThresholdNanos + ";" + sampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return "TimingConfig{" + fingerprint() + "}";
+    }
+}
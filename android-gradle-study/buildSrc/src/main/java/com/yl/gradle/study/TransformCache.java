@@ -0,0 +1,294 @@
+package com.yl.gradle.study;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按内容寻址的插桩结果缓存：
+ * <p>
+ * key = sha256(插桩配置的指纹 + 输入文件的字节)，value 是插桩后的输出文件。
+ * 缓存目录默认放在gradle user home下，./gradlew clean 之后第三方jar依然可以命中，完全跳过ASM。
+ * 命中时把缓存文件拷贝到输出，不用硬链接：输出和缓存互不影响，输出是普通的可写文件，
+ * Windows上删除输出目录、clean也不会失败。
+ * 每次命中都会刷新缓存文件的修改时间，{@link #trim(long, long)} 按它淘汰最久没用过的项。
+ * </p>
+ * 多个线程可以同时使用同一个实例。
+ */
+public class TransformCache {
+
+    private static final String TAG = "TransformCache";
+
+    private final File dir;
+    private final byte[] fingerprint;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * @param dir         缓存目录
+     * @param fingerprint 插桩配置的指纹，见 {@link #fingerprint(Object...)}，插桩逻辑或过滤条件变了，指纹必须跟着变
+     */
+    public TransformCache(File dir, String fingerprint) {
+        this.dir = dir;
+        this.fingerprint = fingerprint.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 把影响插桩结果的配置拼成指纹，比如 ASMCode.VERSION、过滤规则的版本、阈值等
+     */
+    public static String fingerprint(Object... parts) {
+        StringBuilder builder = new StringBuilder();
+        for (Object part : parts) {
+            builder.append(part).append('\n');
+        }
+        return toHex(newDigest().digest(builder.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * 计算input对应的缓存key，必须在input被修改之前调用
+     */
+    public String key(File input) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(fingerprint);
+        FileInputStream inputStream = new FileInputStream(input);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(Util.BUFFER_SIZE * 4);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            Util.closeQuietly(inputStream);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * 命中时把缓存的结果放到dest，dest原来的内容会被删除
+     *
+     * @return 是否命中
+     */
+    public boolean restore(String key, File dest) {
+        File cached = entry(key);
+        if (!cached.isFile()) {
+            misses.incrementAndGet();
+            return false;
+        }
+        try {
+            File parent = dest.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            Files.copy(cached.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            // 老版本存的缓存是只读的，拷贝会带上这个属性
+            dest.setWritable(true);
+            cached.setLastModified(System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.w(TAG, "restore %s to %s failed: %s", key, dest.getAbsolutePath(), e);
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 把插桩后的output存进缓存，失败只打日志，不影响构建
+     */
+    public void store(String key, File output) {
+        File cached = entry(key);
+        if (cached.isFile()) {
+            return;
+        }
+        File parent = cached.getParentFile();
+        if (!parent.exists() && !parent.mkdirs() && !parent.isDirectory()) {
+            Log.w(TAG, "mkdirs %s failed", parent.getAbsolutePath());
+            return;
+        }
+        File tmp = new File(parent, cached.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            Files.copy(output.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            // 先写临时文件再rename，并发写同一个key或者写到一半进程被杀，都不会留下残缺的缓存
+            try {
+                Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "store %s failed: %s", output.getAbsolutePath(), e);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * 和插桩结果一起缓存的附加信息，比如这个jar里插桩方法的id表，失败只打日志
+     *
+     * @param name 附加信息的名字，同一个key可以有多份
+     */
+    public void storeExtra(String key, String name, List<String> lines) {
+        File cached = new File(entry(key).getPath() + "." + name);
+        File tmp = new File(cached.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            Files.createDirectories(cached.getParentFile().toPath());
+            Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+            try {
+                Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "store %s.%s failed: %s", key, name, e);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * @return {@link #storeExtra} 存的附加信息，没有时返回null
+     */
+    public List<String> restoreExtra(String key, String name) {
+        File cached = new File(entry(key).getPath() + "." + name);
+        if (!cached.isFile()) {
+            return null;
+        }
+        try {
+            return Files.readAllLines(cached.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            Log.w(TAG, "restore %s.%s failed: %s", key, name, e);
+            return null;
+        }
+    }
+
+    /**
+     * 淘汰缓存：先删掉超过maxAgeMillis没有用过的项，总大小还超过maxBytes时，从最久没用过的开始删。
+     * 插桩结果和它的附加信息一起删；其他进程正在读的项被删掉，只会让那次restore变成未命中。
+     *
+     * @param maxBytes     缓存总大小上限，小于等于0表示不限制
+     * @param maxAgeMillis 多久没有用过就删除，小于等于0表示不限制
+     * @return 删除的项数
+     */
+    public int trim(long maxBytes, long maxAgeMillis) {
+        File[] buckets = dir.listFiles();
+        if (buckets == null) {
+            return 0;
+        }
+        // key -> 这个key的所有文件(插桩结果、附加信息、没删掉的临时文件)
+        Map<String, List<File>> groups = new HashMap<>();
+        final Map<String, Long> lastUsed = new HashMap<>();
+        long totalBytes = 0;
+        for (File bucket : buckets) {
+            File[] files = bucket.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                int dot = name.indexOf('.');
+                String key = dot < 0 ? name : name.substring(0, dot);
+                List<File> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    groups.put(key, group);
+                }
+                group.add(file);
+                Long time = lastUsed.get(key);
+                if (time == null || file.lastModified() > time) {
+                    lastUsed.put(key, file.lastModified());
+                }
+                totalBytes += file.length();
+            }
+        }
+
+        List<String> keys = new ArrayList<>(groups.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return Long.compare(lastUsed.get(o1), lastUsed.get(o2));
+            }
+        });
+        long expireBefore = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+        int removed = 0;
+        for (String key : keys) {
+            boolean expired = lastUsed.get(key) < expireBefore;
+            boolean oversize = maxBytes > 0 && totalBytes > maxBytes;
+            if (!expired && !oversize) {
+                // 按最近使用时间排好序，后面的都更新
+                break;
+            }
+            for (File file : groups.get(key)) {
+                long length = file.length();
+                // 老版本的缓存文件是只读的，Windows上要先去掉只读才能删
+                file.setWritable(true);
+                if (file.delete()) {
+                    totalBytes -= length;
+                }
+            }
+            removed++;
+        }
+        if (removed > 0) {
+            Log.i(TAG, "trim %d entries, %d bytes left in %s", removed, totalBytes, dir.getAbsolutePath());
+        }
+        return removed;
+    }
+
+    /**
+     * 缓存项不完整或者检查没通过，没有调用 {@link #restore} 就决定重新处理时，记一次未命中
+     */
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public int getHitCount() {
+        return hits.get();
+    }
+
+    public int getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TransformCache{hit=%d, miss=%d, dir=%s}", hits.get(), misses.get(), dir.getAbsolutePath());
+    }
+
+    private File entry(String key) {
+        // 按前两位分目录，避免单个目录下文件过多
+        return new File(new File(dir, key.substring(0, 2)), key);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = digits[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -27,6 +27,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -161,6 +162,36 @@ public final class Util {
         return fileData.toString();
     }
 
+    /**
+     * 用 {@link FileChannel#transferTo} 拷贝文件，数据不经过用户态的缓冲区
+     */
+    public static void copyFileUsingChannel(File source, File dest) throws IOException {
+        File parent = dest.getParentFile();
+        if (parent != null && (!parent.exists())) {
+            parent.mkdirs();
+        }
+        FileInputStream is = null;
+        FileOutputStream os = null;
+        try {
+            is = new FileInputStream(source);
+            os = new FileOutputStream(dest, false);
+            FileChannel in = is.getChannel();
+            FileChannel out = os.getChannel();
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long count = in.transferTo(position, size - position, out);
+                if (count <= 0) {
+                    break;
+                }
+                position += count;
+            }
+        } finally {
+            closeQuietly(is);
+            closeQuietly(os);
+        }
+    }
+
     public static void copyFileUsingStream(File source, File dest) throws IOException {
         FileInputStream is = null;
         FileOutputStream os = null;
@@ -0,0 +1,133 @@
+package com.yl.gradle.study;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * TraceMethodAdapter 插桩后的构造方法要能通过校验：super()/this() 在不同分支上调用时，
+ * 每个分支都会 onMethodEnter 一次，开始时间必须存在同一个局部变量里
+ */
+public class ASMCodeTest implements Opcodes {
+
+    private static final String OWNER = "com/yl/gradle/study/Branched";
+
+    @Test
+    public void slowMode_branchedSuperCall_passesVerifier() throws Exception {
+        instrumentAndLoad(new TimingConfig(TimingConfig.MODE_SLOW, 1000, Collections.<String, Long>emptyMap(), 1),
+                ClassWriter.COMPUTE_MAXS, ClassReader.EXPAND_FRAMES);
+    }
+
+    @Test
+    public void histogramMode_branchedSuperCall_passesVerifier() throws Exception {
+        instrumentAndLoad(new TimingConfig(TimingConfig.MODE_HISTOGRAM, 0, Collections.<String, Long>emptyMap(), 1),
+                ClassWriter.COMPUTE_MAXS, ClassReader.EXPAND_FRAMES);
+    }
+
+    @Test
+    public void sampledHistogramMode_computeFrames_passesVerifier() throws Exception {
+        instrumentAndLoad(new TimingConfig(TimingConfig.MODE_HISTOGRAM, 0, Collections.<String, Long>emptyMap(), 8),
+                ClassWriter.COMPUTE_FRAMES, ClassReader.SKIP_FRAMES);
+    }
+
+    private static void instrumentAndLoad(TimingConfig timing, int writerFlags, int readerFlags) throws Exception {
+        ClassWriter writer = new ClassWriter(writerFlags);
+        new ClassReader(branchedClass()).accept(new ASMCode.TraceClassAdapter(ASM7, writer, null, timing), readerFlags);
+        TestLoader loader = new TestLoader();
+        loader.define(ASMCode.METHOD_TIMER, methodTimerStub());
+        Class<?> type = loader.define(OWNER, writer.toByteArray());
+        // 两个分支都走一遍，校验失败时在这里抛 VerifyError
+        assertNotNull(type.getConstructor(boolean.class).newInstance(true));
+        assertNotNull(type.getConstructor(boolean.class).newInstance(false));
+        assertNotNull(type.getConstructor(long.class).newInstance(0L));
+        assertNotNull(type.getConstructor(long.class).newInstance(1L));
+    }
+
+    /**
+     * Branched(boolean b) { if (b) super(); else super(); }
+     * Branched(long l) { if (l != 0) this(true); else super(); }
+     */
+    private static byte[] branchedClass() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        writer.visit(V1_7, ACC_PUBLIC | ACC_SUPER, OWNER, null, "java/lang/Object", null);
+
+        MethodVisitor mv = writer.visitMethod(ACC_PUBLIC, "<init>", "(Z)V", null, null);
+        mv.visitCode();
+        Label otherwise = new Label();
+        Label end = new Label();
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitJumpInsn(IFEQ, otherwise);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitJumpInsn(GOTO, end);
+        mv.visitLabel(otherwise);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitLabel(end);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = writer.visitMethod(ACC_PUBLIC, "<init>", "(J)V", null, null);
+        mv.visitCode();
+        Label callSuper = new Label();
+        mv.visitVarInsn(LLOAD, 1);
+        mv.visitInsn(LCONST_0);
+        mv.visitInsn(LCMP);
+        mv.visitJumpInsn(IFEQ, callSuper);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ICONST_1);
+        mv.visitMethodInsn(INVOKESPECIAL, OWNER, "<init>", "(Z)V", false);
+        mv.visitInsn(RETURN);
+        mv.visitLabel(callSuper);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * 运行时的 MethodTimer 不在buildSrc里，生成一个同样签名、什么都不做的
+     */
+    private static byte[] methodTimerStub() {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(V1_7, ACC_PUBLIC | ACC_SUPER, ASMCode.METHOD_TIMER, null, "java/lang/Object", null);
+        MethodVisitor mv = writer.visitMethod(ACC_PUBLIC | ACC_STATIC, "start", "(I)J", null, null);
+        mv.visitCode();
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+        mv.visitInsn(LRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        for (String desc : new String[]{"(IJ)V", "(IJJ)V"}) {
+            mv = writer.visitMethod(ACC_PUBLIC | ACC_STATIC, desc.length() == 5 ? "aggregate" : "end", desc, null, null);
+            mv.visitCode();
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static final class TestLoader extends ClassLoader {
+
+        TestLoader() {
+            super(ASMCodeTest.class.getClassLoader());
+        }
+
+        Class<?> define(String internalName, byte[] bytes) {
+            return defineClass(internalName.replace('/', '.'), bytes, 0, bytes.length);
+        }
+    }
+}
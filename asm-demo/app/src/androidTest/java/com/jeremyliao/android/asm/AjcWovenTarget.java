@@ -0,0 +1,94 @@
+package com.jeremyliao.android.asm;
+
+import com.jeremyliao.android.base.stats.LatencyHistogram;
+
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.runtime.internal.AroundClosure;
+import org.aspectj.runtime.internal.Conversions;
+import org.aspectj.runtime.reflect.Factory;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * aspectj-demo 里的 ExecutionTimeAspect 织入 {@link TestTarget#parseLong(long)} 之后的样子。
+ * <p>
+ * asm-demo 没有接ajc，这里按ajc对注解风格 @Around 的输出手工展开：每次调用装箱参数、创建 JoinPoint、
+ * Object[] state 和 closure，再把 StaticPart 当key查map记进 {@link LatencyHistogram}，和 LatencyStats 一样。
+ * 源码里调用advice要处理受检异常，ajc生成的字节码里没有这一层，正常路径上没有额外开销。
+ * </p>
+ */
+public class AjcWovenTarget {
+
+    private static final JoinPoint.StaticPart ajc$tjp_0;
+
+    static {
+        Factory factory = new Factory("AjcWovenTarget.java", AjcWovenTarget.class);
+        ajc$tjp_0 = factory.makeSJP(JoinPoint.METHOD_EXECUTION, factory.makeMethodSig("1", "parseLong",
+                "com.jeremyliao.android.asm.AjcWovenTarget", "long", "value", "", "int"), 20);
+    }
+
+    public int parseLong(long value) {
+        JoinPoint joinPoint = Factory.makeJP(ajc$tjp_0, this, this, Conversions.longObject(value));
+        Object[] state = new Object[]{this, Conversions.longObject(value), joinPoint};
+        try {
+            // 69648 是ajc给注解风格的around生成的flags
+            return Conversions.intValue(Aspect.aspectOf().printExcutionTime(new Closure(state).linkClosureAndJoinPoint(69648)));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int parseLong_aroundBody0(AjcWovenTarget target, long value, JoinPoint joinPoint) {
+        return (int) value;
+    }
+
+    private static final class Closure extends AroundClosure {
+
+        Closure(Object[] state) {
+            super(state);
+        }
+
+        @Override
+        public Object run(Object[] args) throws Throwable {
+            Object[] state = this.state;
+            return Conversions.intObject(parseLong_aroundBody0((AjcWovenTarget) state[0],
+                    Conversions.longValue(state[1]), (JoinPoint) state[2]));
+        }
+    }
+
+    /**
+     * 和 ExecutionTimeAspect、LatencyStats 的逻辑一样
+     */
+    static final class Aspect {
+
+        private static final Aspect instance = new Aspect();
+
+        static final ConcurrentHashMap<Object, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+        static Aspect aspectOf() {
+            return instance;
+        }
+
+        Object printExcutionTime(ProceedingJoinPoint joinPoint) throws Throwable {
+            long startNanos = System.nanoTime();
+            Object result = joinPoint.proceed();
+            record(joinPoint.getStaticPart(), System.nanoTime() - startNanos);
+            return result;
+        }
+
+        private static void record(Object key, long nanos) {
+            LatencyHistogram histogram = histograms.get(key);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                LatencyHistogram previous = histograms.putIfAbsent(key, histogram);
+                if (previous != null) {
+                    histogram = previous;
+                }
+            }
+            histogram.record(nanos);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.jeremyliao.android.asm;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.jeremyliao.android.base.stats.ExecutionTimes;
+import com.jeremyliao.android.base.stats.LatencyHistogram;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 同一个方法体，比较不插桩、ASM织入(ExecutionTimeClassVisitor)、AspectJ织入(ExecutionTimeAspect)三种情况下每次调用的耗时。
+ * <p>
+ * 结果打到logcat：adb logcat -s ExecutionTimeBenchmark，每种跑几轮取最快的一轮，减少GC和JIT的干扰。
+ * 统计的调用本身也会被记进分布，ASM和AspectJ两边记录的内容是一样的。
+ * </p>
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExecutionTimeBenchmark {
+
+    private static final String TAG = "ExecutionTimeBenchmark";
+
+    private static final int ROUNDS = 5;
+    private static final int ITERATIONS = 1000000;
+
+    private static final String DEMO_CLASS = "com/jeremyliao/android/asm/ExecutionTimeDemo";
+    private static final String CONTROL_CLASS = "com/jeremyliao/android/asm/MethodControlDemo";
+
+    // 防止循环被优化掉
+    private static volatile long sink;
+
+    @Test
+    public void asmWovenMethodRecordsEveryCall() {
+        int methodId = ExecutionTimes.idOf(DEMO_CLASS, "parseLong", "(J)I");
+        long before = countOf(methodId);
+        ExecutionTimeDemo demo = new ExecutionTimeDemo();
+        for (int i = 0; i < 1000; i++) {
+            demo.parseLong(i);
+        }
+        assertEquals(1000, countOf(methodId) - before);
+    }
+
+    @Test
+    public void methodControlOnlyRecordsPublicMethods() {
+        MethodControlDemo demo = new MethodControlDemo();
+        demo.parseLong(1);
+        assertNotNull(ExecutionTimes.snapshotOf(ExecutionTimes.idOf(CONTROL_CLASS, "parseLong", "(J)I")));
+        assertNull(ExecutionTimes.snapshotOf(ExecutionTimes.idOf(CONTROL_CLASS, "clamp", "(J)I")));
+    }
+
+    @Test
+    public void compareWithAspectJ() {
+        final TestTarget plain = new TestTarget();
+        final ExecutionTimeDemo asm = new ExecutionTimeDemo();
+        final AjcWovenTarget aspectj = new AjcWovenTarget();
+
+        double plainNanos = measure(new Body() {
+            @Override
+            public long run(int iterations) {
+                long sum = 0;
+                for (int i = 0; i < iterations; i++) {
+                    sum += plain.parseLong(i);
+                }
+                return sum;
+            }
+        });
+        double asmNanos = measure(new Body() {
+            @Override
+            public long run(int iterations) {
+                long sum = 0;
+                for (int i = 0; i < iterations; i++) {
+                    sum += asm.parseLong(i);
+                }
+                return sum;
+            }
+        });
+        double aspectjNanos = measure(new Body() {
+            @Override
+            public long run(int iterations) {
+                long sum = 0;
+                for (int i = 0; i < iterations; i++) {
+                    sum += aspectj.parseLong(i);
+                }
+                return sum;
+            }
+        });
+        Log.i(TAG, String.format("plain %.1fns/op, asm %.1fns/op (+%.1f), aspectj %.1fns/op (+%.1f)",
+                plainNanos, asmNanos, asmNanos - plainNanos, aspectjNanos, aspectjNanos - plainNanos));
+        Log.i(TAG, ExecutionTimes.dump(false));
+    }
+
+    private interface Body {
+        long run(int iterations);
+    }
+
+    /**
+     * @return 最快一轮的平均每次调用耗时，第一轮当预热
+     */
+    private static double measure(Body body) {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            sink += body.run(ITERATIONS);
+            long elapsed = System.nanoTime() - start;
+            if (round > 0) {
+                best = Math.min(best, (double) elapsed / ITERATIONS);
+            }
+        }
+        return best;
+    }
+
+    private static long countOf(int methodId) {
+        LatencyHistogram.Snapshot snapshot = ExecutionTimes.snapshotOf(methodId);
+        return snapshot == null ? 0 : snapshot.count;
+    }
+}
@@ -0,0 +1,24 @@
+package com.jeremyliao.android.asm;
+
+import com.jeremyliao.android.base.annotation.ExecutionTime;
+
+/**
+ * 方法和 {@link TestTarget} 一样，加了@ExecutionTime，由 ExecutionTimeClassVisitor 在编译期织入耗时统计
+ */
+public class ExecutionTimeDemo {
+
+    @ExecutionTime
+    public int getIntValue() {
+        return 10;
+    }
+
+    @ExecutionTime
+    public boolean getBoolValue() {
+        return true;
+    }
+
+    @ExecutionTime
+    public int parseLong(long value) {
+        return (int) value;
+    }
+}
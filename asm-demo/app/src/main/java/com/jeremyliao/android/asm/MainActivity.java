@@ -2,6 +2,9 @@ package com.jeremyliao.android.asm;
 
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.util.Log;
+
+import com.jeremyliao.android.base.stats.ExecutionTimes;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -20,5 +23,15 @@ public class MainActivity extends AppCompatActivity {
         demo.getIntValue();
         demo.parseLong(100);
         demo.testLog();
+
+        ExecutionTimeDemo timeDemo = new ExecutionTimeDemo();
+        timeDemo.getBoolValue();
+        timeDemo.getIntValue();
+        timeDemo.parseLong(100);
+
+        MethodControlDemo controlDemo = new MethodControlDemo();
+        controlDemo.getIntValue();
+        controlDemo.parseLong(100);
+        Log.i("ExecutionTimes", ExecutionTimes.dump(false));
     }
 }
@@ -0,0 +1,23 @@
+package com.jeremyliao.android.asm;
+
+import com.jeremyliao.android.base.annotation.MethodControl;
+
+/**
+ * 类上加了@MethodControl，public方法都会织入耗时统计
+ */
+@MethodControl
+public class MethodControlDemo {
+
+    public int getIntValue() {
+        return 10;
+    }
+
+    public int parseLong(long value) {
+        return clamp(value);
+    }
+
+    // 不是public，不统计
+    private int clamp(long value) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+    }
+}
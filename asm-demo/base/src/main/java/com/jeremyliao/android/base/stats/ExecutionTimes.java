@@ -0,0 +1,157 @@
+package com.jeremyliao.android.base.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ExecutionTimeClassVisitor 织入的代码只调用这里，@ExecutionTime 方法、@MethodControl 类的public方法各对应一个 {@link LatencyHistogram}。
+ * <p>
+ * 织入的代码在方法开头记一个 System.nanoTime()，正常返回前调用 {@link #record(int, String, long)}，
+ * 方法id和方法名都是编译期写进去的常量，不创建JoinPoint、不装箱参数，也不用查以对象为key的map；
+ * 表是以方法id为key的开放寻址表，槽位用CAS占用，每个方法只在第一次调用时分配一次。
+ * 方法数超过容量时多出来的方法不统计，计数见 {@link #getOverflowCount()}。
+ * </p>
+ * base是纯java模块，没有logcat，由调用方把 {@link #dump(boolean)} 的结果打出来。
+ */
+public final class ExecutionTimes {
+
+    // 必须是2的幂
+    private static final int CAPACITY = 1 << 12;
+    private static final int MAX_PROBES = 32;
+
+    private static final AtomicReferenceArray<Entry> table = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicInteger overflow = new AtomicInteger();
+
+    private ExecutionTimes() {
+    }
+
+    private static final class Entry {
+        final int methodId;
+        final String name;
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        Entry(int methodId, String name) {
+            this.methodId = methodId;
+            this.name = name;
+        }
+    }
+
+    /**
+     * @param methodId   编译期由类名、方法名、描述符算出的id
+     * @param name       方法名，常量池里的字符串，只在第一次调用时保存下来
+     * @param startNanos 方法开头记下的 System.nanoTime()
+     */
+    public static void record(int methodId, String name, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        int index = (methodId ^ (methodId >>> 16)) & (CAPACITY - 1);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            Entry entry = table.get(index);
+            if (entry == null) {
+                Entry created = new Entry(methodId, name);
+                if (table.compareAndSet(index, null, created)) {
+                    created.histogram.record(nanos);
+                    return;
+                }
+                // 被别的线程抢先占了，重新看这个槽位
+                entry = table.get(index);
+            }
+            if (entry.methodId == methodId) {
+                entry.histogram.record(nanos);
+                return;
+            }
+            index = (index + 1) & (CAPACITY - 1);
+        }
+        overflow.incrementAndGet();
+    }
+
+    /**
+     * @return 这个方法到目前为止的分布，没有调用过时返回null
+     */
+    public static LatencyHistogram.Snapshot snapshotOf(int methodId) {
+        int index = (methodId ^ (methodId >>> 16)) & (CAPACITY - 1);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            Entry entry = table.get(index);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.methodId == methodId) {
+                return entry.histogram.snapshot(false);
+            }
+            index = (index + 1) & (CAPACITY - 1);
+        }
+        return null;
+    }
+
+    /**
+     * 和插件里算方法id的方式一致：类名('/'分隔)、方法名、描述符拼起来做FNV-1a，再折叠成32位
+     */
+    public static int idOf(String owner, String name, String desc) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, owner);
+        hash = fnv(hash, ".");
+        hash = fnv(hash, name);
+        hash = fnv(hash, desc);
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static long fnv(long hash, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * 每个方法一行，按p99从大到小排
+     *
+     * @param reset 是否清零，清零后下次dump只包含之后的调用
+     */
+    public static String dump(boolean reset) {
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < CAPACITY; i++) {
+            Entry entry = table.get(i);
+            if (entry == null) {
+                continue;
+            }
+            LatencyHistogram.Snapshot snapshot = entry.histogram.snapshot(reset);
+            if (snapshot.count > 0) {
+                rows.add(new Row(entry.name, snapshot));
+            }
+        }
+        Collections.sort(rows, new Comparator<Row>() {
+            @Override
+            public int compare(Row o1, Row o2) {
+                long p1 = o1.snapshot.p99;
+                long p2 = o2.snapshot.p99;
+                return p1 == p2 ? 0 : (p1 > p2 ? -1 : 1);
+            }
+        });
+        StringBuilder builder = new StringBuilder();
+        for (Row row : rows) {
+            builder.append(row.name).append(": ").append(row.snapshot).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static final class Row {
+        final String name;
+        final LatencyHistogram.Snapshot snapshot;
+
+        Row(String name, LatencyHistogram.Snapshot snapshot) {
+            this.name = name;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * @return 因为表满了没有统计的调用次数
+     */
+    public static int getOverflowCount() {
+        return overflow.get();
+    }
+}
@@ -13,6 +13,6 @@ class PrintLogPlugin implements Plugin<Project> {
     @Override
     void apply(Project project) {
         def app = project.extensions.findByType(AppExtension.class)
-        app.registerTransform(new PrintLogTransform())
+        app.registerTransform(new PrintLogTransform(app))
     }
 }
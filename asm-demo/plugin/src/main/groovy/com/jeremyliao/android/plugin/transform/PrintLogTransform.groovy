@@ -2,19 +2,28 @@ package com.jeremyliao.android.plugin.transform
 
 import com.android.build.api.transform.*
 import com.android.build.gradle.internal.pipeline.TransformManager
+import com.android.build.gradle.BaseExtension
 import com.android.utils.FileUtils
+import com.jeremyliao.android.plugin.ClassHierarchy
+import com.jeremyliao.android.plugin.ClassPrefilter
+import com.jeremyliao.android.plugin.ExecutionTimeClassVisitor
+import com.jeremyliao.android.plugin.HierarchyClassWriter
 import com.jeremyliao.android.plugin.PrintLogClassVisitor
 import com.jeremyliao.android.plugin.TestClassVisitor
+import com.jeremyliao.android.plugin.zip.RawZipFile
+import com.jeremyliao.android.plugin.zip.RawZipOutputStream
 import org.objectweb.asm.ClassReader
 import org.objectweb.asm.ClassVisitor
 import org.objectweb.asm.ClassWriter
-import org.apache.commons.codec.digest.DigestUtils
 import org.apache.commons.io.IOUtils
 
+import java.util.concurrent.Callable
 import java.util.jar.JarEntry
 import java.util.jar.JarFile
 import java.util.jar.JarOutputStream
+import java.util.zip.CRC32
 import java.util.zip.ZipEntry
+import java.util.zip.ZipException
 import static org.objectweb.asm.ClassReader.EXPAND_FRAMES
 
 /**
@@ -23,6 +32,14 @@ import static org.objectweb.asm.ClassReader.EXPAND_FRAMES
 class PrintLogTransform extends Transform {
 
     final String TAG = "[PrintLogTransform]"
+    static final String CLASS_HIERARCHY_NAME = "classHierarchy.txt"
+
+    //用来拿android.jar，app里的类大多继承自它，重新计算栈帧时要知道它们的父类
+    final BaseExtension android
+
+    PrintLogTransform(BaseExtension android) {
+        this.android = android
+    }
 
     @Override
     void transform(TransformInvocation transformInvocation) throws TransformException, InterruptedException, IOException {
@@ -31,23 +48,110 @@ class PrintLogTransform extends Transform {
         Collection<TransformInput> inputs = transformInvocation.inputs
         TransformOutputProvider outputProvider = transformInvocation.outputProvider
 
-        //删除之前的输出
-        if (outputProvider != null)
+        boolean incremental = transformInvocation.incremental
+        //没有@PrintLog、@ExecutionTime、@MethodControl的类不经过ASM，原样输出
+        ClassPrefilter prefilter = newPrefilter()
+        //所有输入和android.jar的类继承关系：TestClassVisitor按它找FragmentActivity的子类，重新计算栈帧时按它找公共父类；
+        //存在transform的临时目录里，增量时只更新变化的部分
+        File hierarchyFile = new File(transformInvocation.context.temporaryDir, CLASS_HIERARCHY_NAME)
+        ClassHierarchy hierarchy = new ClassHierarchy()
+        boolean hierarchyLoaded = incremental && hierarchy.load(hierarchyFile)
+        ClassHierarchy previous = hierarchyLoaded ? hierarchy.copy() : null
+        updateHierarchy(hierarchy, inputs, android.bootClasspath, hierarchyLoaded)
+        println TAG + "class hierarchy ${hierarchy.size()} classes, ${hierarchyLoaded ? 'incremental' : 'full scan'}"
+        if (incremental && !hierarchyLoaded) {
+            //不知道上次的继承关系，没法判断哪些没变的类受影响
+            println TAG + "no class hierarchy of last build, fall back to full transform"
+            incremental = false
+        } else if (previous != null) {
+            //父类、接口变了的类，它没变的子类也要重新处理：是不是FragmentActivity的子类、栈帧都可能不一样了
+            Set<String> affected = hierarchy.subtypesOf(hierarchy.changedSince(previous))
+            if (!affected.isEmpty()) {
+                println TAG + "supertypes of ${affected.size()} classes changed (e.g. ${affected.iterator().next()}), fall back to full transform"
+                incremental = false
+            }
+        }
+        //非增量时删除之前的输出，增量时只处理有变化的jar和文件
+        if (!incremental && outputProvider != null)
             outputProvider.deleteAll()
         //遍历inputs
         inputs.each { TransformInput input ->
             //遍历directoryInputs
             input.directoryInputs.each { DirectoryInput directoryInput ->
                 //处理directoryInputs
-                handleDirectoryInput(directoryInput, outputProvider)
+                handleDirectoryInput(directoryInput, outputProvider, prefilter, hierarchy, incremental)
             }
 
             //遍历jarInputs
             input.jarInputs.each { JarInput jarInput ->
                 //处理jarInputs
-                handleJarInputs(jarInput, outputProvider)
+                handleJarInputs(jarInput, outputProvider, hierarchy, incremental)
+            }
+        }
+        hierarchy.write(hierarchyFile)
+        println TAG + "prefilter skipped ${prefilter.skippedCount} of ${prefilter.scannedCount} classes"
+    }
+
+    /**
+     * 所有visitor关心的注解描述符，任意一个在常量池里就交给ASM
+     */
+    static ClassPrefilter newPrefilter() {
+        List<String> descriptors = [PrintLogClassVisitor.annotationDescriptor()]
+        descriptors.addAll(ExecutionTimeClassVisitor.annotationDescriptors())
+        return new ClassPrefilter(descriptors as String[])
+    }
+
+    /**
+     * 每个jar、目录一个任务并行扫描class头；增量时变化的jar整个重新扫描，目录只更新变化的文件
+     *
+     * @param bootClasspath android.jar，不会变，已经扫描过就跳过
+     * @param incremental 是否在上次的结果上更新，为false时hierarchy是空的
+     */
+    static void updateHierarchy(ClassHierarchy hierarchy, Collection<TransformInput> inputs, List<File> bootClasspath,
+                                boolean incremental) {
+        List<Callable<Void>> tasks = []
+        bootClasspath.each { File jar ->
+            if (jar.isFile() && !hierarchy.hasSource(jar.absolutePath)) {
+                tasks.add({ hierarchy.scanJar(jar); null } as Callable<Void>)
+            }
+        }
+        inputs.each { TransformInput input ->
+            input.jarInputs.each { JarInput jarInput ->
+                File jar = jarInput.file
+                String source = jar.absolutePath
+                if (incremental && hierarchy.hasSource(source)) {
+                    if (jarInput.status == Status.NOTCHANGED) {
+                        return
+                    }
+                    hierarchy.removeSource(source)
+                    if (jarInput.status == Status.REMOVED) {
+                        return
+                    }
+                }
+                if (jar.isFile()) {
+                    tasks.add({ hierarchy.scanJar(jar); null } as Callable<Void>)
+                }
+            }
+            input.directoryInputs.each { DirectoryInput directoryInput ->
+                File inputDir = directoryInput.file
+                String source = inputDir.absolutePath
+                if (!incremental || !hierarchy.hasSource(source)) {
+                    tasks.add({ hierarchy.scanDirectory(inputDir); null } as Callable<Void>)
+                    return
+                }
+                directoryInput.changedFiles.each { File file, Status status ->
+                    if (status == Status.REMOVED) {
+                        String path = FileUtils.relativePossiblyNonExistingPath(file, inputDir).replace(File.separatorChar, '/' as char)
+                        if (path.endsWith(".class")) {
+                            hierarchy.removeClass(source, path.substring(0, path.length() - ".class".length()))
+                        }
+                    } else {
+                        hierarchy.scanFile(source, file)
+                    }
+                }
             }
         }
+        ClassHierarchy.runAll(tasks, Runtime.runtime.availableProcessors())
     }
 
     @Override
@@ -67,91 +171,220 @@ class PrintLogTransform extends Transform {
 
     @Override
     boolean isIncremental() {
-        return false
+        return true
     }
 
     /**
      * 处理文件目录下的class文件
+     * 直接写到输出目录，不再改写输入目录，增量编译时没变的文件保持上次的输出
      */
-    static void handleDirectoryInput(DirectoryInput directoryInput, TransformOutputProvider outputProvider) {
-        //是否是目录
-        if (directoryInput.file.isDirectory()) {
+    static void handleDirectoryInput(DirectoryInput directoryInput, TransformOutputProvider outputProvider,
+                                     ClassPrefilter prefilter, ClassHierarchy hierarchy, boolean incremental) {
+        File inputDir = directoryInput.file
+        def dest = outputProvider.getContentLocation(directoryInput.name,
+                directoryInput.contentTypes, directoryInput.scopes,
+                Format.DIRECTORY)
+        if (incremental) {
+            //只处理有变化的文件
+            directoryInput.changedFiles.each { File file, Status status ->
+                String relativePath = FileUtils.relativePossiblyNonExistingPath(file, inputDir)
+                File outputFile = new File(dest, relativePath)
+                switch (status) {
+                    case Status.ADDED:
+                    case Status.CHANGED:
+                        FileUtils.deleteIfExists(outputFile)
+                        if (file.isFile()) {
+                            handleDirectoryFile(file, outputFile, relativePath, prefilter, hierarchy)
+                        }
+                        break
+                    case Status.REMOVED:
+                        FileUtils.deleteIfExists(outputFile)
+                        break
+                }
+            }
+        } else if (inputDir.isDirectory()) {
             //列出目录所有文件（包含子文件夹，子文件夹内文件）
-            directoryInput.file.eachFileRecurse { File file ->
-                def name = file.name
-                if (name.endsWith(".class") && !name.startsWith("R\$") &&
-                        !"R.class".equals(name) && !"BuildConfig.class".equals(name)) {
-                    println 'filename: ' + name
-                    ClassReader classReader = new ClassReader(file.bytes)
-                    ClassWriter classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_MAXS)
-                    ClassVisitor cv = new PrintLogClassVisitor(classWriter)
-                    classReader.accept(cv, EXPAND_FRAMES)
-                    byte[] code = classWriter.toByteArray()
-                    FileOutputStream fos = new FileOutputStream(
-                            file.parentFile.absolutePath + File.separator + name)
-                    fos.write(code)
-                    fos.close()
+            inputDir.eachFileRecurse(groovy.io.FileType.FILES) { File file ->
+                String relativePath = FileUtils.relativePath(file, inputDir)
+                handleDirectoryFile(file, new File(dest, relativePath), relativePath, prefilter, hierarchy)
+            }
+        }
+    }
+
+    /**
+     * @param relativePath 相对输入目录的路径，用来得到类名
+     */
+    static void handleDirectoryFile(File file, File outputFile, String relativePath, ClassPrefilter prefilter,
+                                    ClassHierarchy hierarchy) {
+        outputFile.parentFile.mkdirs()
+        def name = file.name
+        if (name.endsWith(".class") && !name.startsWith("R\$") &&
+                !"R.class".equals(name) && !"BuildConfig.class".equals(name)) {
+            byte[] bytes = file.bytes
+            String className = relativePath.replace(File.separatorChar, '/' as char) - ~/\.class$/
+            //没有要处理的注解、也不是FragmentActivity的子类，不用改写
+            if (prefilter.mayMatch(bytes) || TestClassVisitor.isTarget(hierarchy, className)) {
+                println 'filename: ' + name
+                outputFile.bytes = rewrite(bytes, hierarchy) { ClassWriter classWriter ->
+                    new PrintLogClassVisitor(new ExecutionTimeClassVisitor(new TestClassVisitor(classWriter, hierarchy)))
                 }
+                return
             }
         }
-        //处理完输入文件之后，要把输出给下一个任务
-        def dest = outputProvider.getContentLocation(directoryInput.name,
-                directoryInput.contentTypes, directoryInput.scopes,
-                Format.DIRECTORY)
-        FileUtils.copyDirectory(directoryInput.file, dest)
+        FileUtils.copyFile(file, outputFile)
     }
 
     /**
      * 处理Jar中的class文件
      */
-    static void handleJarInputs(JarInput jarInput, TransformOutputProvider outputProvider) {
+    static void handleJarInputs(JarInput jarInput, TransformOutputProvider outputProvider, ClassHierarchy hierarchy,
+                                boolean incremental) {
         if (jarInput.file.getAbsolutePath().endsWith(".jar")) {
-            //重名名输出文件,因为可能同名,会覆盖
-            def jarName = jarInput.name
-            def md5Name = DigestUtils.md5Hex(jarInput.file.getAbsolutePath())
-            if (jarName.endsWith(".jar")) {
-                jarName = jarName.substring(0, jarName.length() - 4)
+            //输出名用jarInput.name，它在同一个工程里是唯一且稳定的，不随工程路径变化，增量编译时才能找到上次的输出
+            def dest = outputProvider.getContentLocation(jarInput.name,
+                    jarInput.contentTypes, jarInput.scopes, Format.JAR)
+            if (incremental) {
+                switch (jarInput.status) {
+                    case Status.NOTCHANGED:
+                        //上次的输出还在，不用处理
+                        return
+                    case Status.REMOVED:
+                        FileUtils.deleteIfExists(dest)
+                        return
+                }
             }
-            JarFile jarFile = new JarFile(jarInput.file)
-            Enumeration enumeration = jarFile.entries()
-            File tmpFile = new File(jarInput.file.getParent() + File.separator + "classes_temp.jar")
-            //避免上次的缓存被重复插入
-            if (tmpFile.exists()) {
-                tmpFile.delete()
+            FileUtils.deleteIfExists(dest)
+            //增量构建退回全量处理时，删掉的jar也还在输入里
+            if (!jarInput.file.isFile()) {
+                return
+            }
+            dest.parentFile.mkdirs()
+            RawZipFile rawZipFile
+            try {
+                rawZipFile = RawZipFile.open(jarInput.file)
+            } catch (ZipException e) {
+                //zip64等格式不支持直接拷贝，走原来的解压+压缩
+                println '[PrintLogTransform]raw read ' + jarInput.file.name + ' failed(' + e.message + '), fallback to JarFile'
+                copyJarWithStream(jarInput.file, dest, hierarchy)
+                rawZipFile = null
+            }
+            if (rawZipFile != null) {
+                RawZipOutputStream rawZipOutputStream = new RawZipOutputStream(dest)
+                boolean success = false
+                try {
+                    rawZipFile.entries().each { RawZipFile.Entry entry ->
+                        String entryName = entry.name
+                        if (isTargetClass(entryName, hierarchy)) {
+                            //class文件处理，只有这里需要解压和重新压缩
+                            println '----------- deal with "jar" class file <' + entryName + '> -----------'
+                            byte[] code = visitJarClass(rawZipFile.read(entry), hierarchy)
+                            rawZipOutputStream.write(entry, RawZipOutputStream.compress(code))
+                        } else {
+                            //没改动的entry直接拷贝压缩数据
+                            rawZipOutputStream.copyRaw(rawZipFile, entry)
+                        }
+                    }
+                    rawZipOutputStream.finish()
+                    success = true
+                } finally {
+                    rawZipOutputStream.close()
+                    rawZipFile.close()
+                    //处理失败时不留下缺entry的jar
+                    if (!success) {
+                        FileUtils.deleteIfExists(dest)
+                    }
+                }
             }
-            JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(tmpFile))
-            //用于保存
+        }
+    }
+
+    /**
+     * jar里只处理FragmentActivity和它的子类，按类继承关系判断
+     */
+    static boolean isTargetClass(String entryName, ClassHierarchy hierarchy) {
+        return entryName.endsWith(".class") && !entryName.startsWith("R\$") &&
+                !"R.class".equals(entryName) && !"BuildConfig.class".equals(entryName) &&
+                TestClassVisitor.isTarget(hierarchy, entryName.substring(0, entryName.length() - ".class".length()))
+    }
+
+    static byte[] visitJarClass(byte[] bytes, ClassHierarchy hierarchy) {
+        return rewrite(bytes, hierarchy) { ClassWriter classWriter ->
+            new TestClassVisitor(classWriter, hierarchy)
+        }
+    }
+
+    /**
+     * 插桩过的方法按类继承关系重新计算栈帧，不加载类；visitor没有包过的方法原样拷贝。
+     * 继承关系里缺类、或者Java 7以下的class，按原来的 COMPUTE_MAXS 处理，保留展开的栈帧
+     *
+     * @param chain 参数是链尾的ClassWriter，返回链头的visitor
+     */
+    static byte[] rewrite(byte[] bytes, ClassHierarchy hierarchy, Closure<ClassVisitor> chain) {
+        ClassReader classReader = new ClassReader(bytes)
+        if (HierarchyClassWriter.canComputeFrames(classReader)) {
+            try {
+                ClassWriter classWriter = new HierarchyClassWriter(classReader, ClassWriter.COMPUTE_FRAMES, hierarchy)
+                //栈帧会重新计算，原来的不用展开
+                classReader.accept(chain.call(classWriter), ClassReader.SKIP_FRAMES)
+                return classWriter.toByteArray()
+            } catch (TypeNotPresentException e) {
+                println "[PrintLogTransform]${e.typeName()} not in class hierarchy, frames kept as is"
+            }
+        }
+        ClassWriter classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_MAXS)
+        classReader.accept(chain.call(classWriter), EXPAND_FRAMES)
+        return classWriter.toByteArray()
+    }
+
+    /**
+     * 原始格式解析不了的jar，逐个entry解压后重新写入
+     */
+    static void copyJarWithStream(File input, File output, ClassHierarchy hierarchy) {
+        JarFile jarFile = new JarFile(input)
+        JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(output))
+        boolean success = false
+        try {
+            Enumeration enumeration = jarFile.entries()
             while (enumeration.hasMoreElements()) {
                 JarEntry jarEntry = (JarEntry) enumeration.nextElement()
                 String entryName = jarEntry.getName()
-                ZipEntry zipEntry = new ZipEntry(entryName)
                 InputStream inputStream = jarFile.getInputStream(jarEntry)
-                //插桩class
-                if (entryName.endsWith(".class") && !entryName.startsWith("R\$")
-                        && !"R.class".equals(entryName) && !"BuildConfig.class".equals(entryName)
-                        && "android/support/v4/app/FragmentActivity.class".equals(entryName)) {
-                    //class文件处理
-                    println '----------- deal with "jar" class file <' + entryName + '> -----------'
-                    jarOutputStream.putNextEntry(zipEntry)
-                    ClassReader classReader = new ClassReader(IOUtils.toByteArray(inputStream))
-                    ClassWriter classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_MAXS)
-                    ClassVisitor cv = new TestClassVisitor(classWriter)
-                    classReader.accept(cv, EXPAND_FRAMES)
-                    byte[] code = classWriter.toByteArray()
-                    jarOutputStream.write(code)
-                } else {
-                    jarOutputStream.putNextEntry(zipEntry)
-                    jarOutputStream.write(IOUtils.toByteArray(inputStream))
+                byte[] bytes = IOUtils.toByteArray(inputStream)
+                inputStream.close()
+                if (isTargetClass(entryName, hierarchy)) {
+                    bytes = visitJarClass(bytes, hierarchy)
                 }
+                jarOutputStream.putNextEntry(copyEntry(jarEntry, bytes))
+                jarOutputStream.write(bytes)
                 jarOutputStream.closeEntry()
             }
-            //结束
+            jarOutputStream.finish()
+            success = true
+        } finally {
             jarOutputStream.close()
             jarFile.close()
-            def dest = outputProvider.getContentLocation(jarName + md5Name,
-                    jarInput.contentTypes, jarInput.scopes, Format.JAR)
-            FileUtils.copyFile(tmpFile, dest)
-            tmpFile.delete()
+            if (!success) {
+                FileUtils.deleteIfExists(output)
+            }
+        }
+    }
+
+    /**
+     * 沿用源entry的时间、压缩方式；不压缩的entry要提前给出大小和crc，按写入的数据重新算
+     */
+    static ZipEntry copyEntry(ZipEntry source, byte[] bytes) {
+        ZipEntry zipEntry = new ZipEntry(source.name)
+        zipEntry.time = source.time
+        zipEntry.extra = source.extra
+        zipEntry.comment = source.comment
+        if (source.method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32()
+            crc.update(bytes)
+            zipEntry.method = ZipEntry.STORED
+            zipEntry.size = bytes.length
+            zipEntry.compressedSize = bytes.length
+            zipEntry.crc = crc.value
         }
+        return zipEntry
     }
 }
@@ -0,0 +1,127 @@
+package com.jeremyliao.android.plugin;
+
+import com.jeremyliao.android.base.annotation.ExecutionTime;
+import com.jeremyliao.android.base.annotation.MethodControl;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+/**
+ * 编译期织入 @ExecutionTime 方法、@MethodControl 类的public方法的耗时统计，代替 aspectj-demo 里的 ExecutionTimeAspect、MethodControlAspect。
+ * <p>
+ * AspectJ的 @Around 每次调用都要把参数装箱进 Object[]、创建closure和 ProceedingJoinPoint，再按 StaticPart 查一次map；
+ * 这里织入的只有基本类型的代码：
+ * <pre>
+ * long start = System.nanoTime();
+ * ...原来的方法体...
+ * ExecutionTimes.record(方法id, "类名.方法名描述符", start); // 每个return前
+ * </pre>
+ * 方法id和方法名都是常量，和切面一样只统计正常返回的调用，抛异常的不统计。
+ * 构造方法、静态初始化、abstract/native、编译器生成的方法不处理。
+ * </p>
+ */
+public class ExecutionTimeClassVisitor extends ClassVisitor implements Opcodes {
+
+    private static final String EXECUTION_TIME = Type.getDescriptor(ExecutionTime.class);
+    private static final String METHOD_CONTROL = Type.getDescriptor(MethodControl.class);
+
+    private static final String RECORDER = "com/jeremyliao/android/base/stats/ExecutionTimes";
+
+    private String className;
+    private boolean methodControl = false;
+
+    public ExecutionTimeClassVisitor(ClassVisitor cv) {
+        super(Opcodes.ASM5, cv);
+    }
+
+    /**
+     * 类上有@MethodControl或者某个方法上有@ExecutionTime才会插桩，用于 {@link ClassPrefilter}
+     */
+    public static String[] annotationDescriptors() {
+        return new String[]{EXECUTION_TIME, METHOD_CONTROL};
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        this.className = name;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        if (METHOD_CONTROL.equals(desc)) {
+            methodControl = true;
+        }
+        return super.visitAnnotation(desc, visible);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, final String name, final String desc, String signature, String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+        if (mv == null || "<init>".equals(name) || "<clinit>".equals(name)
+                || (access & (ACC_ABSTRACT | ACC_NATIVE | ACC_SYNTHETIC | ACC_BRIDGE)) != 0) {
+            return mv;
+        }
+        // 和 MethodControlAspect 的 execution(public * *(..)) 一致
+        final boolean byClass = methodControl && (access & ACC_PUBLIC) != 0;
+        return new AdviceAdapter(Opcodes.ASM5, mv, access, name, desc) {
+
+            // 方法上的注解在visitCode之前访问，onMethodEnter时已经知道要不要插桩
+            private boolean inject = byClass;
+            private int startLocal;
+
+            @Override
+            public AnnotationVisitor visitAnnotation(String annotationDesc, boolean visible) {
+                if (EXECUTION_TIME.equals(annotationDesc)) {
+                    inject = true;
+                }
+                return super.visitAnnotation(annotationDesc, visible);
+            }
+
+            @Override
+            protected void onMethodEnter() {
+                if (!inject) {
+                    return;
+                }
+                startLocal = newLocal(Type.LONG_TYPE);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+                mv.visitVarInsn(LSTORE, startLocal);
+            }
+
+            @Override
+            protected void onMethodExit(int opcode) {
+                if (!inject || opcode == ATHROW) {
+                    return;
+                }
+                mv.visitLdcInsn(idOf(className, name, desc));
+                mv.visitLdcInsn(className.replace('/', '.') + "." + name + desc);
+                mv.visitVarInsn(LLOAD, startLocal);
+                mv.visitMethodInsn(INVOKESTATIC, RECORDER, "record", "(ILjava/lang/String;J)V", false);
+            }
+        };
+    }
+
+    /**
+     * 和运行时 ExecutionTimes.idOf 一致：FNV-1a 64位，再折叠成32位
+     */
+    static int idOf(String owner, String name, String desc) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, owner);
+        hash = fnv(hash, ".");
+        hash = fnv(hash, name);
+        hash = fnv(hash, desc);
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static long fnv(long hash, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
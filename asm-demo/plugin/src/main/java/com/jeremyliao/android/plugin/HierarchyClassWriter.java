@@ -0,0 +1,70 @@
+package com.jeremyliao.android.plugin;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * 用 {@link ClassHierarchy} 回答 getCommonSuperClass 的ClassWriter，COMPUTE_FRAMES 不再通过ClassLoader加载类。
+ * <p>
+ * 1. 总是用 ClassWriter(ClassReader, flags) 构造：visitor没有包过的方法原样拷贝，不重新计算栈帧，
+ * 只有插桩过的方法才会重新计算；
+ * 2. 继承关系里查不到的类抛 TypeNotPresentException，调用方按原来的 COMPUTE_MAXS 方式重新处理这个类。
+ * </p>
+ */
+public class HierarchyClassWriter extends ClassWriter {
+
+    private final ClassHierarchy hierarchy;
+
+    public HierarchyClassWriter(ClassReader classReader, int flags, ClassHierarchy hierarchy) {
+        super(classReader, flags);
+        this.hierarchy = hierarchy;
+    }
+
+    /**
+     * Java 7 以下的class栈帧不是必须的，还可能有JSR/RET，ASM算不了，这些类仍用 COMPUTE_MAXS
+     */
+    public static boolean canComputeFrames(ClassReader classReader) {
+        // 第6、7个字节是major version
+        return classReader.readUnsignedShort(6) >= Opcodes.V1_7;
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        // 父类链不完整时下面的判断会得出过于宽泛的类型，宁可退回原来的方式
+        checkSuperChain(type1);
+        checkSuperChain(type2);
+        if (hierarchy.isSubtype(type1, type2)) {
+            return type2;
+        }
+        if (hierarchy.isSubtype(type2, type1)) {
+            return type1;
+        }
+        if (hierarchy.isInterface(type1) || hierarchy.isInterface(type2)) {
+            // 和ASM默认的实现一样，接口的公共父类按Object处理
+            return ClassHierarchy.OBJECT;
+        }
+        // 沿着type1的父类往上找，第一个是type2父类的就是公共父类，最晚到Object为止
+        String type = type1;
+        do {
+            type = hierarchy.getSuperName(type);
+        } while (!hierarchy.isSubtype(type2, type));
+        return type;
+    }
+
+    /**
+     * 这个类和它所有的父类(不含接口)都要在继承关系里，一直到Object；输入有环时也按找不到处理
+     */
+    private void checkSuperChain(String type) {
+        String current = type;
+        for (int depth = 0; !ClassHierarchy.OBJECT.equals(current); depth++) {
+            if (!hierarchy.contains(current) || depth > hierarchy.size()) {
+                throw new TypeNotPresentException(current, null);
+            }
+            current = hierarchy.getSuperName(current);
+            if (current == null) {
+                throw new TypeNotPresentException(type, null);
+            }
+        }
+    }
+}
@@ -21,6 +21,17 @@ public class PrintLogClassVisitor extends ClassVisitor implements Opcodes {
         super(Opcodes.ASM5, cv);
     }
 
+    /**
+     * 只有类上有@PrintLog才会插桩，注解的描述符不在常量池里时可以直接跳过
+     */
+    public static ClassPrefilter newPrefilter() {
+        return new ClassPrefilter(annotationDescriptor());
+    }
+
+    public static String annotationDescriptor() {
+        return Type.getDescriptor(PrintLog.class);
+    }
+
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
         this.className = name;
@@ -6,13 +6,28 @@ import org.objectweb.asm.Opcodes;
 
 /**
  * Created by liaohailiang on 2019-09-30.
+ * <p>
+ * 给FragmentActivity和它所有的子类(包括app里的Activity)的onCreate、onDestroy插入日志，
+ * 是不是子类按 {@link ClassHierarchy} 判断，不加载类。
+ * </p>
  */
 public class TestClassVisitor extends ClassVisitor implements Opcodes {
 
+    static final String FRAGMENT_ACTIVITY = "android/support/v4/app/FragmentActivity";
+
+    private final ClassHierarchy mHierarchy;
     private String mClassName;
 
-    public TestClassVisitor(ClassVisitor cv) {
+    public TestClassVisitor(ClassVisitor cv, ClassHierarchy hierarchy) {
         super(Opcodes.ASM5, cv);
+        this.mHierarchy = hierarchy;
+    }
+
+    /**
+     * @param className '/'分隔、不带.class
+     */
+    public static boolean isTarget(ClassHierarchy hierarchy, String className) {
+        return hierarchy.isSubtype(className, FRAGMENT_ACTIVITY);
     }
 
     @Override
@@ -26,8 +41,9 @@ public class TestClassVisitor extends ClassVisitor implements Opcodes {
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
         //System.out.println("LifecycleClassVisitor : visitMethod : " + name);
         MethodVisitor mv = cv.visitMethod(access, name, desc, signature, exceptions);
-        //匹配FragmentActivity
-        if ("android/support/v4/app/FragmentActivity".equals(this.mClassName)) {
+        //匹配FragmentActivity及其子类
+        //插入的代码用到this，静态方法不处理
+        if ((access & ACC_STATIC) == 0 && isTarget(mHierarchy, this.mClassName)) {
             if ("onCreate".equals(name)) {
                 //处理onCreate
                 System.out.println("LifecycleClassVisitor : change method ----> " + name);
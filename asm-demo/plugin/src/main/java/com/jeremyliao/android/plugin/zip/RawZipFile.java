@@ -0,0 +1,288 @@
+package com.jeremyliao.android.plugin.zip;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * 直接解析zip的central directory，可以拿到每个entry的压缩数据、crc和大小，而不需要解压。
+ * <p>
+ * 配合 {@link RawZipOutputStream}，没有修改过的entry可以原样拷贝压缩数据，省掉一次inflate + deflate。
+ * 不支持zip64，遇到时抛出ZipException，调用方回退到ZipFile。
+ * 读取都是基于FileChannel的定位读，多个线程可以同时读不同的entry。
+ * </p>
+ */
+public final class RawZipFile implements Closeable {
+
+    static final int LOCSIG = 0x04034b50;
+    static final int CENSIG = 0x02014b50;
+    static final int ENDSIG = 0x06054b50;
+    static final int LOCHDR = 30;
+    static final int CENHDR = 46;
+    static final int ENDHDR = 22;
+
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    public static final class Entry {
+        final byte[] rawName;
+        final String name;
+        final int versionMadeBy;
+        final int versionNeeded;
+        final int flags;
+        final int method;
+        final int time;
+        final int date;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final int internalAttributes;
+        final long externalAttributes;
+        final long localHeaderOffset;
+        volatile long dataOffset = -1;
+
+        Entry(byte[] rawName, int versionMadeBy, int versionNeeded, int flags, int method, int time, int date,
+              long crc, long compressedSize, long size, int internalAttributes, long externalAttributes,
+              long localHeaderOffset) {
+            this.rawName = rawName;
+            this.name = new String(rawName, StandardCharsets.UTF_8);
+            this.versionMadeBy = versionMadeBy;
+            this.versionNeeded = versionNeeded;
+            this.flags = flags;
+            this.method = method;
+            this.time = time;
+            this.date = date;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.internalAttributes = internalAttributes;
+            this.externalAttributes = externalAttributes;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final List<Entry> entries;
+
+    private RawZipFile(File file, RandomAccessFile randomAccessFile, List<Entry> entries) {
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.channel = randomAccessFile.getChannel();
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    public static RawZipFile open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            List<Entry> entries = readCentralDirectory(randomAccessFile.getChannel());
+            return new RawZipFile(file, randomAccessFile, entries);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return central directory里的顺序
+     */
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * 读出entry解压后的内容
+     */
+    public byte[] read(Entry entry) throws IOException {
+        byte[] raw = readRaw(entry);
+        if (entry.method == STORED) {
+            return raw;
+        }
+        if (entry.method != DEFLATED) {
+            throw new ZipException("unsupported compression method " + entry.method + " for " + entry.name);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(raw);
+            byte[] out = new byte[(int) entry.size];
+            int offset = 0;
+            while (offset < out.length && !inflater.finished()) {
+                int count = inflater.inflate(out, offset, out.length - offset);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("unexpected end of " + entry.name);
+                }
+                offset += count;
+            }
+            if (offset != out.length) {
+                throw new ZipException("invalid size of " + entry.name);
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new ZipException(entry.name + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 读出entry的原始压缩数据
+     */
+    public byte[] readRaw(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) entry.compressedSize);
+        readFully(channel, buffer, dataOffset(entry));
+        return buffer.array();
+    }
+
+    /**
+     * 把entry的原始压缩数据直接传给target，不经过用户态的解压
+     */
+    long transferRaw(Entry entry, FileChannel target) throws IOException {
+        long position = dataOffset(entry);
+        long remaining = entry.compressedSize;
+        while (remaining > 0) {
+            long count = channel.transferTo(position, remaining, target);
+            if (count <= 0) {
+                throw new EOFException("unexpected end of " + entry.name);
+            }
+            position += count;
+            remaining -= count;
+        }
+        return entry.compressedSize;
+    }
+
+    private long dataOffset(Entry entry) throws IOException {
+        long offset = entry.dataOffset;
+        if (offset >= 0) {
+            return offset;
+        }
+        ByteBuffer header = ByteBuffer.allocate(LOCHDR).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, entry.localHeaderOffset);
+        if (header.getInt(0) != LOCSIG) {
+            throw new ZipException("invalid local header of " + entry.name);
+        }
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        offset = entry.localHeaderOffset + LOCHDR + nameLength + extraLength;
+        entry.dataOffset = offset;
+        return offset;
+    }
+
+    private static List<Entry> readCentralDirectory(FileChannel channel) throws IOException {
+        long fileLength = channel.size();
+        int tailLength = (int) Math.min(fileLength, 0xFFFF + ENDHDR);
+        ByteBuffer tail = ByteBuffer.allocate(tailLength).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, tail, fileLength - tailLength);
+
+        int end = -1;
+        for (int i = tailLength - ENDHDR; i >= 0; i--) {
+            if (tail.getInt(i) == ENDSIG && i + ENDHDR + (tail.getShort(i + 20) & 0xFFFF) == tailLength) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new ZipException("end of central directory not found");
+        }
+        int total = tail.getShort(end + 10) & 0xFFFF;
+        long centralSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long centralOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (total == 0xFFFF || centralSize == ZIP64_MAGIC || centralOffset == ZIP64_MAGIC) {
+            throw new ZipException("zip64 is not supported");
+        }
+
+        ByteBuffer central = ByteBuffer.allocate((int) centralSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, central, centralOffset);
+        List<Entry> entries = new ArrayList<>(total);
+        int position = 0;
+        for (int i = 0; i < total; i++) {
+            if (central.getInt(position) != CENSIG) {
+                throw new ZipException("invalid central directory header");
+            }
+            int nameLength = central.getShort(position + 28) & 0xFFFF;
+            int extraLength = central.getShort(position + 30) & 0xFFFF;
+            int commentLength = central.getShort(position + 32) & 0xFFFF;
+            long compressedSize = central.getInt(position + 20) & 0xFFFFFFFFL;
+            long size = central.getInt(position + 24) & 0xFFFFFFFFL;
+            long localHeaderOffset = central.getInt(position + 42) & 0xFFFFFFFFL;
+            if (compressedSize == ZIP64_MAGIC || size == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+                throw new ZipException("zip64 is not supported");
+            }
+            byte[] rawName = new byte[nameLength];
+            central.position(position + CENHDR);
+            central.get(rawName);
+            entries.add(new Entry(rawName,
+                    central.getShort(position + 4) & 0xFFFF,
+                    central.getShort(position + 6) & 0xFFFF,
+                    central.getShort(position + 8) & 0xFFFF,
+                    central.getShort(position + 10) & 0xFFFF,
+                    central.getShort(position + 12) & 0xFFFF,
+                    central.getShort(position + 14) & 0xFFFF,
+                    central.getInt(position + 16) & 0xFFFFFFFFL,
+                    compressedSize,
+                    size,
+                    central.getShort(position + 36) & 0xFFFF,
+                    central.getInt(position + 38) & 0xFFFFFFFFL,
+                    localHeaderOffset));
+            position += CENHDR + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            position += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+}
@@ -19,4 +19,11 @@ public class TestTarget {
     public int parseLong(long value) {
         return (int) value;
     }
+
+    /**
+     * 刷新回调，500ms内最多执行一次，连续触发时多出来的调用直接丢弃
+     */
+    @MethodControl(value = MethodControl.Policy.THROTTLE, windowMillis = 500)
+    public void onRefresh() {
+    }
 }
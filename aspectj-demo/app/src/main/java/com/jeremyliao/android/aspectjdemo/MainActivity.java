@@ -6,6 +6,7 @@ import android.os.Bundle;
 import com.jeremyliao.android.apilib.PrintLogDemo;
 import com.jeremyliao.android.apilib.TestTarget;
 import com.jeremyliao.android.base.annotation.ExecutionTime;
+import com.jeremyliao.android.base.stats.LatencyStats;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -13,11 +14,16 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        // 切面统计的耗时每10秒汇总打印一次
+        LatencyStats.startPeriodicDump(10);
         test();
         TestTarget target = new TestTarget();
         target.getBoolValue();
         target.getIntValue();
         target.parseLong(100);
+        target.onRefresh();
+        // 被节流，不会执行
+        target.onRefresh();
         PrintLogDemo demo = new PrintLogDemo();
         demo.getBoolValue();
         demo.getIntValue();
@@ -5,7 +5,52 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
-@Retention(RetentionPolicy.CLASS)
-@Target({ElementType.TYPE})
+/**
+ * 控制方法怎么执行，由 MethodControlAspect 处理。
+ * <p>
+ * 加在类上时对类里所有public方法生效，加在方法上时只对这个方法生效，方法上的优先。
+ * 不指定策略时只统计耗时。被丢弃、延后或者转到后台执行的调用立即返回null，基本类型返回0/false，
+ * 所以 {@link Policy#DEBOUNCE}、{@link Policy#OFFLOAD} 一般只用在void方法上。
+ * 运行时要读取策略，所以保留到RUNTIME，每个方法只在第一次调用时读一次。
+ * </p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
 public @interface MethodControl {
+
+    Policy value() default Policy.NONE;
+
+    /**
+     * {@link Policy#THROTTLE} 每个窗口内最多执行的次数
+     */
+    int permits() default 1;
+
+    /**
+     * {@link Policy#THROTTLE} 的窗口长度，{@link Policy#DEBOUNCE} 的静默时间
+     */
+    long windowMillis() default 0;
+
+    enum Policy {
+        /**
+         * 直接执行，只统计耗时
+         */
+        NONE,
+        /**
+         * 每 windowMillis 最多执行 permits 次，多出来的调用直接丢弃
+         */
+        THROTTLE,
+        /**
+         * 连续调用时只执行最后一次：最后一次调用之后 windowMillis 内没有新的调用才执行。
+         * 在有Looper的线程上调用时回到这个线程执行，否则在后台线程执行
+         */
+        DEBOUNCE,
+        /**
+         * 同一个对象、参数相同的调用同时进来时只执行一次，其他调用等它的结果
+         */
+        COALESCE,
+        /**
+         * 转到共享的后台线程池执行
+         */
+        OFFLOAD
+    }
 }
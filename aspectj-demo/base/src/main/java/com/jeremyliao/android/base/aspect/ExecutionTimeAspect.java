@@ -1,6 +1,6 @@
 package com.jeremyliao.android.base.aspect;
 
-import android.util.Log;
+import com.jeremyliao.android.base.stats.LatencyStats;
 
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
@@ -13,18 +13,16 @@ import org.aspectj.lang.annotation.Pointcut;
 @Aspect
 public class ExecutionTimeAspect {
 
-    private static String TAG = "[ExecutionTime]";
-
     @Pointcut("execution(@com.jeremyliao.android.base.annotation.ExecutionTime * *(..))")
     public void executeMethod() {
     }
 
     @Around("executeMethod()")
     public Object printExcutionTime(ProceedingJoinPoint joinPoint) throws Throwable {
-        long startTimeMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         Object result = joinPoint.proceed();
-        long executionTime = System.currentTimeMillis() - startTimeMillis;
-        Log.d(TAG, joinPoint.getSignature() + " execution cost time: " + executionTime + "ms");
+        // 只记进耗时分布，不拼字符串、不打日志，结果由 LatencyStats 定时汇总输出
+        LatencyStats.record(joinPoint.getStaticPart(), System.nanoTime() - startNanos);
         return result;
     }
 
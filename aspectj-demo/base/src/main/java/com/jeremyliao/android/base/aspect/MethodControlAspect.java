@@ -1,19 +1,26 @@
 package com.jeremyliao.android.base.aspect;
 
-import android.util.Log;
+import com.jeremyliao.android.base.control.MethodGuard;
 
+import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Pointcut;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Created by liaohailiang on 2019-09-26.
+ * <p>
+ * 按 @MethodControl 的策略执行方法，策略和状态在 {@link MethodGuard} 里，每个织入点第一次调用时创建，
+ * 之后每次调用只是一次map查找加上策略自己的原子操作。
+ * </p>
  */
 @Aspect
 public class MethodControlAspect {
 
-    private static String TAG = "[ExecutionTime]";
+    private static final ConcurrentHashMap<JoinPoint.StaticPart, MethodGuard> guards = new ConcurrentHashMap<>();
 
     @Pointcut("within(@com.jeremyliao.android.base.annotation.MethodControl *)")
     public void codeInTarget() {
@@ -23,13 +30,22 @@ public class MethodControlAspect {
     public void publicMethod() {
     }
 
-    @Around("codeInTarget() && publicMethod()")
-    public Object printExcutionTime(ProceedingJoinPoint joinPoint) throws Throwable {
-        long startTimeMillis = System.currentTimeMillis();
-        Object result = joinPoint.proceed();
-        long executionTime = System.currentTimeMillis() - startTimeMillis;
-        Log.d(TAG, joinPoint.getSignature() + " execution cost time: " + executionTime + "ms");
-        return result;
+    @Pointcut("execution(@com.jeremyliao.android.base.annotation.MethodControl * *(..))")
+    public void controlledMethod() {
+    }
+
+    @Around("(codeInTarget() && publicMethod()) || controlledMethod()")
+    public Object control(ProceedingJoinPoint joinPoint) throws Throwable {
+        JoinPoint.StaticPart staticPart = joinPoint.getStaticPart();
+        MethodGuard guard = guards.get(staticPart);
+        if (guard == null) {
+            guard = MethodGuard.of(staticPart);
+            MethodGuard previous = guards.putIfAbsent(staticPart, guard);
+            if (previous != null) {
+                guard = previous;
+            }
+        }
+        return guard.proceed(joinPoint);
     }
 
 }
@@ -5,6 +5,8 @@ import android.os.Looper;
 import android.os.Trace;
 import android.util.Log;
 
+import com.jeremyliao.android.base.stats.LatencyStats;
+
 import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.Signature;
@@ -14,16 +16,50 @@ import org.aspectj.lang.annotation.Pointcut;
 import org.aspectj.lang.reflect.CodeSignature;
 import org.aspectj.lang.reflect.MethodSignature;
 
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Created by liaohailiang on 2019-09-26.
  * <p>
  * 验证Hugo的代码，顺便熟悉Aspect
+ * <p>
+ * 快速模式(默认)下可以在内部版本里一直开着：
+ * 1. tag、方法名、参数名、Trace的section名每个织入点只算一次，缓存在 {@link Meta} 里；
+ * 2. 拼字符串之前先用 Log.isLoggable(tag, VERBOSE) 判断，默认不打印，
+ * 需要看某个类的日志时 adb shell setprop log.tag.类名 VERBOSE；
+ * 3. 只有要打印时才取参数、渲染参数和返回值，每个值最多 {@link #setMaxValueLength(int)} 个字符，数组和集合渲染到上限为止。
+ * </p>
  */
 @Aspect
 public class PrintLogAspect {
 
+    // Log.isLoggable 在 API 24 以下要求tag不超过23个字符，否则抛异常
+    private static final int MAX_TAG_LENGTH = 23;
+    // Trace.beginSection 的section名不能超过127个字符
+    private static final int MAX_SECTION_LENGTH = 127;
+
+    private static final ConcurrentHashMap<JoinPoint.StaticPart, Meta> metas = new ConcurrentHashMap<>();
+
+    private static volatile boolean fastMode = true;
+    private static volatile int maxValueLength = 64;
+
+    /**
+     * @param enabled false时回到原来每次都打印、每次都重新计算的方式
+     */
+    public static void setFastMode(boolean enabled) {
+        fastMode = enabled;
+    }
+
+    /**
+     * 快速模式下每个参数、返回值最多渲染的字符数
+     */
+    public static void setMaxValueLength(int length) {
+        maxValueLength = Math.max(1, length);
+    }
+
     @Pointcut("within(@com.jeremyliao.android.base.annotation.PrintLog *)")
     public void withinAnnotatedClass() {
     }
@@ -47,11 +83,15 @@ public class PrintLogAspect {
 
     @Around("method() || constructor()")
     public Object logAndExecute(ProceedingJoinPoint joinPoint) throws Throwable {
+        if (fastMode) {
+            return logAndExecuteFast(joinPoint);
+        }
         enterMethod(joinPoint);
 
         long startNanos = System.nanoTime();
         Object result = joinPoint.proceed();
         long stopNanos = System.nanoTime();
+        LatencyStats.record(joinPoint.getStaticPart(), stopNanos - startNanos);
         long lengthMillis = TimeUnit.NANOSECONDS.toMillis(stopNanos - startNanos);
 
         exitMethod(joinPoint, result, lengthMillis);
@@ -59,6 +99,140 @@ public class PrintLogAspect {
         return result;
     }
 
+    private static Object logAndExecuteFast(ProceedingJoinPoint joinPoint) throws Throwable {
+        JoinPoint.StaticPart staticPart = joinPoint.getStaticPart();
+        Meta meta = metas.get(staticPart);
+        if (meta == null) {
+            meta = new Meta(staticPart);
+            Meta previous = metas.putIfAbsent(staticPart, meta);
+            if (previous != null) {
+                meta = previous;
+            }
+        }
+        // 日志级别检查放在所有字符串操作之前
+        boolean loggable = Log.isLoggable(meta.loggableTag, Log.VERBOSE);
+        if (loggable) {
+            Log.v(meta.tag, renderEnter(meta, joinPoint.getArgs()));
+        }
+        boolean traced = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+        if (traced) {
+            Trace.beginSection(meta.section);
+        }
+
+        long startNanos = System.nanoTime();
+        Object result;
+        try {
+            result = joinPoint.proceed();
+        } finally {
+            if (traced) {
+                Trace.endSection();
+            }
+        }
+        long stopNanos = System.nanoTime();
+        LatencyStats.record(staticPart, stopNanos - startNanos);
+
+        if (loggable) {
+            StringBuilder builder = new StringBuilder("\u21E0 ")
+                    .append(meta.methodName)
+                    .append(" [")
+                    .append(TimeUnit.NANOSECONDS.toMillis(stopNanos - startNanos))
+                    .append("ms]");
+            if (meta.hasReturnType) {
+                builder.append(" = ");
+                appendValue(builder, result, maxValueLength);
+            }
+            Log.v(meta.tag, builder.toString());
+        }
+        return result;
+    }
+
+    private static String renderEnter(Meta meta, Object[] parameterValues) {
+        StringBuilder builder = new StringBuilder("\u21E2 ");
+        builder.append(meta.methodName).append('(');
+        int limit = maxValueLength;
+        for (int i = 0; i < parameterValues.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(meta.parameterNames[i]).append('=');
+            appendValue(builder, parameterValues[i], limit);
+        }
+        builder.append(')');
+
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            builder.append(" [Thread:\"").append(Thread.currentThread().getName()).append("\"]");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 最多追加limit个字符，超出的用"..."表示；数组和集合逐个元素渲染，到上限就停，不会先把整个集合转成字符串
+     */
+    static void appendValue(StringBuilder builder, Object value, int limit) {
+        int end = builder.length() + limit;
+        if (value != null && value.getClass().isArray()) {
+            builder.append('[');
+            int length = Array.getLength(value);
+            for (int i = 0; i < length && builder.length() < end; i++) {
+                if (i > 0) {
+                    builder.append(", ");
+                }
+                builder.append(Array.get(value, i));
+            }
+            builder.append(']');
+        } else if (value instanceof Collection) {
+            builder.append('[');
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (builder.length() >= end) {
+                    break;
+                }
+                if (!first) {
+                    builder.append(", ");
+                }
+                first = false;
+                builder.append(item);
+            }
+            builder.append(']');
+        } else if (value instanceof CharSequence) {
+            CharSequence chars = (CharSequence) value;
+            builder.append(chars, 0, Math.min(chars.length(), limit + 1));
+        } else {
+            builder.append(value);
+        }
+        if (builder.length() > end) {
+            builder.setLength(end);
+            builder.append("...");
+        }
+    }
+
+    /**
+     * 一个织入点不变的信息，第一次调用时计算
+     */
+    private static final class Meta {
+        final String tag;
+        final String loggableTag;
+        final String methodName;
+        final String[] parameterNames;
+        final boolean hasReturnType;
+        final String section;
+
+        Meta(JoinPoint.StaticPart staticPart) {
+            Signature signature = staticPart.getSignature();
+            Class<?> cls = signature.getDeclaringType();
+            tag = asTag(cls);
+            loggableTag = tag.length() > MAX_TAG_LENGTH ? tag.substring(0, MAX_TAG_LENGTH) : tag;
+            methodName = signature.getName();
+            String[] names = signature instanceof CodeSignature ? ((CodeSignature) signature).getParameterNames() : null;
+            parameterNames = names != null ? names : new String[0];
+            hasReturnType = signature instanceof MethodSignature
+                    && ((MethodSignature) signature).getReturnType() != void.class;
+            // section名不带参数值，每次调用都一样
+            String name = tag + "." + methodName;
+            section = name.length() > MAX_SECTION_LENGTH ? name.substring(0, MAX_SECTION_LENGTH) : name;
+        }
+    }
+
     private static void enterMethod(JoinPoint joinPoint) {
         CodeSignature codeSignature = (CodeSignature) joinPoint.getSignature();
 
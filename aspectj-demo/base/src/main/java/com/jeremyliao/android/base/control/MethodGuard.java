@@ -0,0 +1,462 @@
+package com.jeremyliao.android.base.control;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.jeremyliao.android.base.annotation.MethodControl;
+import com.jeremyliao.android.base.stats.LatencyStats;
+
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.Signature;
+import org.aspectj.lang.reflect.MethodSignature;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 一个 @MethodControl 方法的执行策略和运行时状态，每个织入点一个实例，见 MethodControlAspect。
+ * <p>
+ * THROTTLE、DEBOUNCE 的状态按接收者分开，见 {@link PerTarget}：实例方法每个对象一份，
+ * 一个View被限流、防抖不会影响另一个View；静态方法共用一份。取状态时加一次锁，状态本身是原子变量：
+ * 1. THROTTLE：窗口序号和窗口内的次数合在一个AtomicLong里，放行时只有一次CAS；
+ * 2. DEBOUNCE：只保存最后一次调用，同一时间最多挂着一个延时任务，到期时发现又有新调用就顺延；
+ * 3. COALESCE：按(this, 参数)把正在执行的调用放进map，后来的相同调用等同一个 FutureTask；
+ * 4. OFFLOAD：交给共享的后台线程池。
+ * 真正执行时统一记进 {@link LatencyStats}，延后执行的调用记的是实际执行的耗时。
+ * </p>
+ */
+public abstract class MethodGuard {
+
+    /**
+     * @return 方法的返回值；被丢弃、延后执行的调用返回null
+     */
+    public abstract Object proceed(ProceedingJoinPoint joinPoint) throws Throwable;
+
+    /**
+     * 方法上的注解优先，没有时用类上的
+     */
+    public static MethodGuard of(JoinPoint.StaticPart staticPart) {
+        Signature signature = staticPart.getSignature();
+        MethodControl control = null;
+        if (signature instanceof MethodSignature) {
+            control = ((MethodSignature) signature).getMethod().getAnnotation(MethodControl.class);
+        }
+        if (control == null) {
+            Class<?> type = signature.getDeclaringType();
+            control = type.getAnnotation(MethodControl.class);
+        }
+        if (control == null) {
+            return new Direct();
+        }
+        switch (control.value()) {
+            case THROTTLE:
+                return new Throttle(control.permits(), windowNanosOf(control, staticPart));
+            case DEBOUNCE:
+                return new Debounce(windowNanosOf(control, staticPart));
+            case COALESCE:
+                return new Coalesce();
+            case OFFLOAD:
+                return new Offload();
+            default:
+                return new Direct();
+        }
+    }
+
+    private static long windowNanosOf(MethodControl control, JoinPoint.StaticPart staticPart) {
+        if (control.windowMillis() <= 0) {
+            throw new IllegalArgumentException("@MethodControl(" + control.value() + ") needs windowMillis > 0: "
+                    + staticPart.getSignature());
+        }
+        return TimeUnit.MILLISECONDS.toNanos(control.windowMillis());
+    }
+
+    static Object timedProceed(ProceedingJoinPoint joinPoint) throws Throwable {
+        long startNanos = System.nanoTime();
+        Object result = joinPoint.proceed();
+        LatencyStats.record(joinPoint.getStaticPart(), System.nanoTime() - startNanos);
+        return result;
+    }
+
+    /**
+     * 在别的线程上执行时，方法抛出的异常照常抛出去，受检异常包一层
+     */
+    static void proceedDetached(ProceedingJoinPoint joinPoint) {
+        try {
+            timedProceed(joinPoint);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    static final class Direct extends MethodGuard {
+        @Override
+        public Object proceed(ProceedingJoinPoint joinPoint) throws Throwable {
+            return timedProceed(joinPoint);
+        }
+    }
+
+    /**
+     * 按接收者分开的状态：实例方法每个对象一份，和 {@link CallKey} 一样按引用区分；
+     * 只弱引用接收者，对象被回收后状态跟着清掉。静态方法(getThis()为null)共用一份
+     */
+    abstract static class PerTarget<T> {
+        private final Map<TargetRef, T> states = new HashMap<>();
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+        private T staticState;
+
+        abstract T create();
+
+        synchronized T get(Object target) {
+            if (target == null) {
+                if (staticState == null) {
+                    staticState = create();
+                }
+                return staticState;
+            }
+            expunge();
+            T state = states.get(new TargetRef(target, null));
+            if (state == null) {
+                state = create();
+                states.put(new TargetRef(target, queue), state);
+            }
+            return state;
+        }
+
+        synchronized int size() {
+            expunge();
+            return states.size();
+        }
+
+        private void expunge() {
+            Reference<?> ref;
+            while ((ref = queue.poll()) != null) {
+                states.remove(ref);
+            }
+        }
+    }
+
+    static final class TargetRef extends WeakReference<Object> {
+        private final int hash;
+
+        TargetRef(Object target, ReferenceQueue<Object> queue) {
+            super(target, queue);
+            this.hash = System.identityHashCode(target);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TargetRef)) {
+                return false;
+            }
+            Object target = get();
+            return target != null && target == ((TargetRef) o).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * 延时执行和时钟，测试时可以替换
+     */
+    interface Scheduler {
+        long nanoTime();
+
+        void schedule(Runnable task, long delayNanos);
+    }
+
+    static final Scheduler DEFAULT_SCHEDULER = new Scheduler() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayNanos) {
+            // 在UI回调里用得最多，有Looper时回到原来的线程执行
+            Looper looper = Looper.myLooper();
+            if (looper != null) {
+                new Handler(looper).postDelayed(task, TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1);
+            } else {
+                Pools.SCHEDULER.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    };
+
+    static final class Throttle extends MethodGuard {
+        private final int permits;
+        private final long windowNanos;
+        // 高32位：窗口序号，低32位：这个窗口里已经放行的次数
+        private final PerTarget<AtomicLong> states = new PerTarget<AtomicLong>() {
+            @Override
+            AtomicLong create() {
+                return new AtomicLong();
+            }
+        };
+
+        Throttle(int permits, long windowNanos) {
+            this.permits = Math.max(1, permits);
+            this.windowNanos = windowNanos;
+        }
+
+        @Override
+        public Object proceed(ProceedingJoinPoint joinPoint) throws Throwable {
+            if (!tryAcquire(joinPoint.getThis(), System.nanoTime())) {
+                return null;
+            }
+            return timedProceed(joinPoint);
+        }
+
+        boolean tryAcquire(Object target, long nowNanos) {
+            AtomicLong state = states.get(target);
+            long window = (nowNanos / windowNanos) & 0xFFFFFFFFL;
+            while (true) {
+                long current = state.get();
+                long next;
+                if ((current >>> 32) == window) {
+                    if ((int) current >= permits) {
+                        return false;
+                    }
+                    next = current + 1;
+                } else {
+                    // 进入新窗口，计数从1开始
+                    next = (window << 32) | 1;
+                }
+                if (state.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    static final class Debounce extends MethodGuard {
+        private final long windowNanos;
+        private final Scheduler scheduler;
+        private final PerTarget<State> states = new PerTarget<State>() {
+            @Override
+            State create() {
+                return new State();
+            }
+        };
+
+        Debounce(long windowNanos) {
+            this(windowNanos, DEFAULT_SCHEDULER);
+        }
+
+        Debounce(long windowNanos, Scheduler scheduler) {
+            this.windowNanos = windowNanos;
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public Object proceed(ProceedingJoinPoint joinPoint) throws Throwable {
+            states.get(joinPoint.getThis()).call(joinPoint);
+            return null;
+        }
+
+        /**
+         * 一个接收者的防抖状态
+         */
+        final class State implements Runnable {
+            private final AtomicReference<ProceedingJoinPoint> pending = new AtomicReference<>();
+            private final AtomicLong lastCallNanos = new AtomicLong();
+
+            void call(ProceedingJoinPoint joinPoint) {
+                // 先更新时间再放调用，run() 取走调用后再看时间就不会漏掉这次调用
+                lastCallNanos.set(scheduler.nanoTime());
+                // 已经有延时任务在等时只替换要执行的调用，不再多挂一个任务
+                if (pending.getAndSet(joinPoint) == null) {
+                    scheduler.schedule(this, windowNanos);
+                }
+            }
+
+            @Override
+            public void run() {
+                long remaining = remainingNanos();
+                if (remaining > 0) {
+                    // 等待期间又有调用，顺延到最后一次调用之后
+                    scheduler.schedule(this, remaining);
+                    return;
+                }
+                ProceedingJoinPoint joinPoint = pending.getAndSet(null);
+                if (joinPoint == null) {
+                    return;
+                }
+                remaining = remainingNanos();
+                if (remaining > 0) {
+                    // 上面检查完、取走之前又来了调用：它看到还有调用在等，没有挂新任务，这里放回去顺延；
+                    // 放不回去说明取走之后又有调用，它已经自己挂了任务，手上这个是旧的，丢掉
+                    if (pending.compareAndSet(null, joinPoint)) {
+                        scheduler.schedule(this, remaining);
+                    }
+                    return;
+                }
+                proceedDetached(joinPoint);
+            }
+
+            private long remainingNanos() {
+                return lastCallNanos.get() + windowNanos - scheduler.nanoTime();
+            }
+        }
+    }
+
+    static final class Coalesce extends MethodGuard {
+        private final ConcurrentHashMap<CallKey, FutureTask<Object>> inFlight = new ConcurrentHashMap<>();
+
+        @Override
+        public Object proceed(final ProceedingJoinPoint joinPoint) throws Throwable {
+            CallKey key = new CallKey(joinPoint.getThis(), joinPoint.getArgs());
+            FutureTask<Object> task = inFlight.get(key);
+            if (task == null) {
+                FutureTask<Object> created = new FutureTask<>(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        try {
+                            return timedProceed(joinPoint);
+                        } catch (Exception | Error e) {
+                            throw e;
+                        } catch (Throwable e) {
+                            throw new UndeclaredThrowableException(e);
+                        }
+                    }
+                });
+                task = inFlight.putIfAbsent(key, created);
+                if (task == null) {
+                    // 由第一个调用在自己的线程上执行
+                    task = created;
+                    try {
+                        created.run();
+                    } finally {
+                        inFlight.remove(key, created);
+                    }
+                }
+            }
+            return await(task);
+        }
+
+        private static Object await(FutureTask<Object> task) throws Throwable {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return task.get();
+                    } catch (InterruptedException e) {
+                        // 和直接调用一样等到结果，中断状态留给调用方处理
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        throw e.getCause();
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * 同一个对象(按引用)、参数相同(按equals)的调用算同一个调用
+     */
+    static final class CallKey {
+        private final Object target;
+        private final Object[] args;
+        private final int hash;
+
+        CallKey(Object target, Object[] args) {
+            this.target = target;
+            this.args = args;
+            this.hash = 31 * System.identityHashCode(target) + Arrays.hashCode(args);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CallKey)) {
+                return false;
+            }
+            CallKey other = (CallKey) o;
+            return target == other.target && Arrays.equals(args, other.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    static final class Offload extends MethodGuard {
+        @Override
+        public Object proceed(final ProceedingJoinPoint joinPoint) {
+            Pools.BACKGROUND.execute(new Runnable() {
+                @Override
+                public void run() {
+                    proceedDetached(joinPoint);
+                }
+            });
+            return null;
+        }
+    }
+
+    /**
+     * 第一次用到时才创建线程
+     */
+    private static final class Pools {
+
+        static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("method-control-debounce"));
+
+        static final ThreadPoolExecutor BACKGROUND;
+
+        static {
+            int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+            BACKGROUND = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("method-control-offload"));
+            BACKGROUND.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
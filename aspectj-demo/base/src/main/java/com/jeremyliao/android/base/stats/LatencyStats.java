@@ -0,0 +1,114 @@
+package com.jeremyliao.android.base.stats;
+
+import android.util.Log;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 切面统计的耗时都汇总到这里，每个方法一个 {@link LatencyHistogram}，不再每次调用打一行日志。
+ * <p>
+ * key 用 JoinPoint.StaticPart，每个织入点只有一个实例，记录时只是一次map查找和一次原子加；
+ * 方法名只在dump时才通过 key.toString() 生成。
+ * 调用 {@link #startPeriodicDump(long)} 后每隔N秒把这段时间的 p50/p90/p99/max 打到logcat，也可以随时调用 {@link #dump(boolean)}。
+ * </p>
+ */
+public final class LatencyStats {
+
+    private static final String TAG = "[LatencyStats]";
+
+    private static final ConcurrentHashMap<Object, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService scheduler;
+    private static ScheduledFuture<?> periodicDump;
+
+    private LatencyStats() {
+    }
+
+    /**
+     * @param key   方法的标识，同一个方法每次要传同一个对象，比如 joinPoint.getStaticPart()
+     * @param nanos 耗时
+     */
+    public static void record(Object key, long nanos) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram previous = histograms.putIfAbsent(key, histogram);
+            if (previous != null) {
+                histogram = previous;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * 每个方法一行，按p99从大到小排
+     *
+     * @param reset 是否清零，清零后下次dump只包含之后的调用
+     */
+    public static String dump(boolean reset) {
+        List<Map.Entry<String, LatencyHistogram.Snapshot>> snapshots = new ArrayList<>();
+        for (Map.Entry<Object, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram.Snapshot snapshot = entry.getValue().snapshot(reset);
+            if (snapshot.count > 0) {
+                snapshots.add(new AbstractMap.SimpleEntry<String, LatencyHistogram.Snapshot>(String.valueOf(entry.getKey()), snapshot));
+            }
+        }
+        Collections.sort(snapshots, new Comparator<Map.Entry<String, LatencyHistogram.Snapshot>>() {
+            @Override
+            public int compare(Map.Entry<String, LatencyHistogram.Snapshot> o1, Map.Entry<String, LatencyHistogram.Snapshot> o2) {
+                long p1 = o1.getValue().p99;
+                long p2 = o2.getValue().p99;
+                return p1 == p2 ? 0 : (p1 > p2 ? -1 : 1);
+            }
+        });
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : snapshots) {
+            builder.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 每隔period秒把这段时间内的分布打到logcat，重复调用时按新的周期重新开始
+     */
+    public static synchronized void startPeriodicDump(long periodSeconds) {
+        stopPeriodicDump();
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "latency-stats-dump");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        periodicDump = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                String dump = dump(true);
+                if (!dump.isEmpty()) {
+                    Log.i(TAG, dump);
+                }
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopPeriodicDump() {
+        if (periodicDump != null) {
+            periodicDump.cancel(false);
+            periodicDump = null;
+        }
+    }
+}
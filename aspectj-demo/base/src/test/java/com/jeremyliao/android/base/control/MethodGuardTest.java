@@ -0,0 +1,302 @@
+package com.jeremyliao.android.base.control;
+
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MethodGuard 的策略逻辑，时间和延时任务用 {@link FakeScheduler} 控制，不依赖Looper
+ */
+public class MethodGuardTest {
+
+    private static final JoinPoint.StaticPart STATIC_PART = (JoinPoint.StaticPart) Proxy.newProxyInstance(
+            MethodGuardTest.class.getClassLoader(), new Class<?>[]{JoinPoint.StaticPart.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("hashCode".equals(method.getName())) {
+                        return 0;
+                    }
+                    if ("equals".equals(method.getName())) {
+                        return proxy == args[0];
+                    }
+                    return "MethodGuardTest.target()";
+                }
+            });
+
+    @Test
+    public void throttle_allowsPermitsPerWindow() {
+        MethodGuard.Throttle throttle = new MethodGuard.Throttle(2, 100);
+        Object view = new Object();
+        assertTrue(throttle.tryAcquire(view, 0));
+        assertTrue(throttle.tryAcquire(view, 10));
+        assertFalse(throttle.tryAcquire(view, 99));
+        // 下一个窗口重新计数
+        assertTrue(throttle.tryAcquire(view, 100));
+        assertTrue(throttle.tryAcquire(view, 150));
+        assertFalse(throttle.tryAcquire(view, 199));
+    }
+
+    @Test
+    public void throttle_keepsStatePerReceiver() {
+        MethodGuard.Throttle throttle = new MethodGuard.Throttle(1, 100);
+        Object a = new Object();
+        Object b = new Object();
+        assertTrue(throttle.tryAcquire(a, 0));
+        assertFalse(throttle.tryAcquire(a, 1));
+        // a用完了不影响b，静态方法是单独的一份
+        assertTrue(throttle.tryAcquire(b, 2));
+        assertTrue(throttle.tryAcquire(null, 3));
+        assertFalse(throttle.tryAcquire(null, 4));
+    }
+
+    @Test
+    public void perTarget_distinguishesEqualReceiversByReference() {
+        MethodGuard.PerTarget<AtomicInteger> states = new MethodGuard.PerTarget<AtomicInteger>() {
+            @Override
+            AtomicInteger create() {
+                return new AtomicInteger();
+            }
+        };
+        String a = new String("view");
+        String b = new String("view");
+        assertSame(states.get(a), states.get(a));
+        assertTrue(states.get(a) != states.get(b));
+        assertEquals(2, states.size());
+    }
+
+    @Test
+    public void debounce_runsOnlyLastCallAfterQuietWindow() {
+        FakeScheduler scheduler = new FakeScheduler();
+        MethodGuard.Debounce debounce = new MethodGuard.Debounce(100, scheduler);
+        Object view = new Object();
+        Call first = new Call(view);
+        Call second = new Call(view);
+
+        proceed(debounce, first);
+        scheduler.now = 50;
+        proceed(debounce, second);
+        assertEquals("只挂一个延时任务", 1, scheduler.tasks.size());
+
+        scheduler.advanceTo(100);
+        assertEquals("最后一次调用之后还没满100，顺延", 0, second.count.get());
+        scheduler.advanceTo(150);
+        assertEquals(0, first.count.get());
+        assertEquals(1, second.count.get());
+        assertTrue(scheduler.tasks.isEmpty());
+    }
+
+    @Test
+    public void debounce_keepsStatePerReceiver() {
+        FakeScheduler scheduler = new FakeScheduler();
+        MethodGuard.Debounce debounce = new MethodGuard.Debounce(100, scheduler);
+        Call onA = new Call(new Object());
+        Call onB = new Call(new Object());
+
+        proceed(debounce, onA);
+        scheduler.now = 10;
+        proceed(debounce, onB);
+        scheduler.advanceTo(200);
+        // B的调用不会替换掉A还在等的调用
+        assertEquals(1, onA.count.get());
+        assertEquals(1, onB.count.get());
+    }
+
+    @Test
+    public void debounce_callArrivingWhileTaskRunsIsNotExecutedEarly() {
+        final FakeScheduler scheduler = new FakeScheduler();
+        final MethodGuard.Debounce debounce = new MethodGuard.Debounce(100, scheduler);
+        Object view = new Object();
+        Call first = new Call(view);
+        final Call second = new Call(view);
+
+        proceed(debounce, first);
+        scheduler.now = 100;
+        // 延时任务检查完时间、取走调用之前，第二次调用进来
+        scheduler.onNextNanoTime = new Runnable() {
+            @Override
+            public void run() {
+                proceed(debounce, second);
+            }
+        };
+        scheduler.runDue();
+        assertEquals(0, first.count.get());
+        assertEquals("刚进来的调用要等满窗口", 0, second.count.get());
+
+        scheduler.advanceTo(199);
+        assertEquals(0, second.count.get());
+        scheduler.advanceTo(200);
+        assertEquals(0, first.count.get());
+        assertEquals(1, second.count.get());
+    }
+
+    @Test
+    public void coalesce_sharesInFlightCallForSameReceiverAndArgs() throws Exception {
+        final MethodGuard.Coalesce coalesce = new MethodGuard.Coalesce();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger executions = new AtomicInteger();
+        final Object view = new Object();
+        final Callable<Object> body = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                executions.incrementAndGet();
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return "result";
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> leader = executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return coalesceCall(coalesce, view, body, "key");
+                }
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<Object> follower = executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return coalesceCall(coalesce, view, body, "key");
+                }
+            });
+            // 等follower进入等待，再放行第一个调用
+            Thread.sleep(50);
+            release.countDown();
+            assertEquals("result", leader.get(5, TimeUnit.SECONDS));
+            assertEquals("result", follower.get(5, TimeUnit.SECONDS));
+            assertEquals(1, executions.get());
+
+            // 不同的对象、不同的参数各自执行
+            coalesceCall(coalesce, new Object(), body, "key");
+            coalesceCall(coalesce, view, body, "other");
+            assertEquals(3, executions.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Object coalesceCall(MethodGuard.Coalesce coalesce, Object target, Callable<Object> body, Object arg)
+            throws Exception {
+        try {
+            return coalesce.proceed(joinPoint(target, new Object[]{arg}, body));
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void proceed(MethodGuard guard, Call call) {
+        try {
+            guard.proceed(joinPoint(call.target, new Object[0], call));
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static ProceedingJoinPoint joinPoint(final Object target, final Object[] args, final Callable<Object> body) {
+        return (ProceedingJoinPoint) Proxy.newProxyInstance(MethodGuardTest.class.getClassLoader(),
+                new Class<?>[]{ProceedingJoinPoint.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] methodArgs) throws Throwable {
+                        switch (method.getName()) {
+                            case "getThis":
+                                return target;
+                            case "getArgs":
+                                return args;
+                            case "getStaticPart":
+                                return STATIC_PART;
+                            case "proceed":
+                                return body.call();
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == methodArgs[0];
+                            default:
+                                return null;
+                        }
+                    }
+                });
+    }
+
+    /**
+     * 一次被防抖的调用，记录真正执行的次数
+     */
+    private static final class Call implements Callable<Object> {
+        final Object target;
+        final AtomicInteger count = new AtomicInteger();
+
+        Call(Object target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object call() {
+            count.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * 手动推进的时钟，到期的任务在调用线程上执行
+     */
+    private static final class FakeScheduler implements MethodGuard.Scheduler {
+        final List<long[]> dueTimes = new ArrayList<>();
+        final List<Runnable> tasks = new ArrayList<>();
+        long now;
+        Runnable onNextNanoTime;
+
+        @Override
+        public long nanoTime() {
+            Runnable hook = onNextNanoTime;
+            if (hook != null) {
+                onNextNanoTime = null;
+                hook.run();
+            }
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayNanos) {
+            dueTimes.add(new long[]{now + delayNanos});
+            tasks.add(task);
+        }
+
+        void advanceTo(long time) {
+            now = time;
+            runDue();
+        }
+
+        void runDue() {
+            for (int i = 0; i < tasks.size(); ) {
+                if (dueTimes.get(i)[0] <= now) {
+                    dueTimes.remove(i);
+                    tasks.remove(i).run();
+                    i = 0;
+                } else {
+                    i++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.jeremyliao.android.plugin
+
+/**
+ * AspectJPlugin 的配置，在build.gradle里通过 aspectj {} 声明
+ */
+class AspectJExtension {
+    // 增量织入：只织入javac这次重新生成的class，aspect变化时才全量织入
+    boolean incremental = true
+    // 增量织入时使用常驻daemon的ajc，复用上次解析好的类型和aspect；
+    // 各个variant的织入通过Worker API并行，同时织入的个数由 --max-workers 控制
+    boolean warm = true
+    // 包含aspect的依赖，project依赖写':base'，外部依赖写'group:name'，也可以写jar的文件名；
+    // 为空时整个编译classpath都作为aspectpath
+    List<String> aspectArtifacts = []
+    // 增量织入时只把可能匹配pointcut(按pointcut里的注解判断)的class交给ajc
+    boolean prefilter = true
+    // 每个variant最近一次织入的耗时(ms)，只读，方便在脚本里统计
+    final Map<String, Long> weaveTimes = new LinkedHashMap<>()
+}
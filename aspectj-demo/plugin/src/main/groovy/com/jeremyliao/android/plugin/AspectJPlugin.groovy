@@ -2,18 +2,33 @@ package com.jeremyliao.android.plugin
 
 import com.android.build.gradle.AppPlugin
 import com.android.build.gradle.LibraryPlugin
-import org.aspectj.bridge.IMessage
-import org.aspectj.bridge.MessageHandler
-import org.aspectj.tools.ajc.Main
+import org.gradle.api.Action
 import org.gradle.api.Plugin
 import org.gradle.api.Project
+import org.gradle.api.artifacts.component.ModuleComponentIdentifier
+import org.gradle.api.artifacts.component.ProjectComponentIdentifier
+import org.gradle.api.artifacts.result.ResolvedArtifactResult
+import org.gradle.api.attributes.Attribute
 import org.gradle.api.tasks.compile.JavaCompile
 
+import org.gradle.workers.IsolationMode
+import org.gradle.workers.WorkerConfiguration
+import org.gradle.workers.WorkerExecutor
+
+import javax.inject.Inject
+
 /**
  * Created by liaohailiang on 2018/12/26.
  */
 class AspectJPlugin implements Plugin<Project> {
 
+    private final WorkerExecutor workerExecutor
+
+    @Inject
+    AspectJPlugin(WorkerExecutor workerExecutor) {
+        this.workerExecutor = workerExecutor
+    }
+
     @Override
     void apply(Project project) {
 
@@ -35,42 +50,91 @@ class AspectJPlugin implements Plugin<Project> {
             implementation 'org.aspectj:aspectjrt:1.9.1'
         }
 
+        final AspectJExtension config = project.extensions.create("aspectj", AspectJExtension.class)
+        final WeaverService service = WeaverService.get()
+
         variants.all { variant ->
             JavaCompile javaCompile = variant.javaCompile
+            def stateDir = new File(project.buildDir, "intermediates/aspectj/${variant.name}")
             javaCompile.doLast {
-                String[] args = ["-showWeaveInfo",
-                                 "-1.7",
-                                 "-inpath", javaCompile.destinationDir.toString(),
-                                 "-aspectpath", javaCompile.classpath.asPath,
-                                 "-d", javaCompile.destinationDir.toString(),
-                                 "-classpath", javaCompile.classpath.asPath,
-                                 "-bootclasspath", project.android.bootClasspath.join(File.pathSeparator)]
-                def argsStr = Arrays.toString(args)
-
-                println("ajc args: " + argsStr)
-                log.debug "ajc args: " + Arrays.toString(args)
+                ArrayList<File> aspectPath = aspectPathOf(variant, javaCompile, config, log)
+                String aspectPathStr = aspectPath.join(File.pathSeparator)
+                String bootClasspath = project.android.bootClasspath.join(File.pathSeparator)
+                ArrayList<String> ajcArgs
+                if (config.incremental) {
+                    // -inpath、-d、-classpath 由IncrementalWeaver填
+                    ajcArgs = ["-showWeaveInfo",
+                               "-1.7",
+                               "-aspectpath", aspectPathStr,
+                               "-bootclasspath", bootClasspath]
+                } else {
+                    ajcArgs = ["-showWeaveInfo",
+                               "-1.7",
+                               "-inpath", javaCompile.destinationDir.toString(),
+                               "-aspectpath", aspectPathStr,
+                               "-d", javaCompile.destinationDir.toString(),
+                               "-classpath", javaCompile.classpath.asPath,
+                               "-bootclasspath", bootClasspath]
+                    println("ajc args: " + ajcArgs)
+                }
+                // javac任务等织入结束才算完成，之后才记录输出；等待时别的variant可以同时编译、织入
+                workerExecutor.submit(WeaveAction.class, new Action<WorkerConfiguration>() {
+                    @Override
+                    void execute(WorkerConfiguration worker) {
+                        worker.isolationMode = IsolationMode.NONE
+                        worker.displayName = "AspectJ weave ${variant.name}".toString()
+                        worker.params(variant.name, stateDir, javaCompile.destinationDir, ajcArgs, aspectPath,
+                                javaCompile.classpath.asPath, config.incremental, config.warm, config.prefilter)
+                    }
+                })
+            }
+        }
 
-                MessageHandler handler = new MessageHandler(true)
-                new Main().run(args, handler)
-                for (IMessage message : handler.getMessages(null, true)) {
-                    switch (message.getKind()) {
-                        case IMessage.ABORT:
-                        case IMessage.ERROR:
-                        case IMessage.FAIL:
-                            log.error message.message, message.thrown
-                            break
-                        case IMessage.WARNING:
-                            log.warn message.message, message.thrown
-                            break
-                        case IMessage.INFO:
-                            log.info message.message, message.thrown
-                            break
-                        case IMessage.DEBUG:
-                            log.debug message.message, message.thrown
-                            break
+        project.gradle.taskGraph.afterTask { task ->
+            variants.each { variant ->
+                if (task == variant.javaCompile) {
+                    Long cost = service.takeCost(new File(project.buildDir, "intermediates/aspectj/${variant.name}"))
+                    if (cost != null) {
+                        config.weaveTimes.put(variant.name, cost)
                     }
                 }
             }
         }
     }
+
+    /**
+     * 没有配置aspectArtifacts时整个编译classpath都是aspectpath；
+     * 配置了就只保留这些依赖的class，ajc不用再去每个jar里找aspect
+     */
+    private static ArrayList<File> aspectPathOf(def variant, JavaCompile javaCompile, AspectJExtension config, def log) {
+        if (config.aspectArtifacts.isEmpty()) {
+            return new ArrayList<File>(javaCompile.classpath.files)
+        }
+        // 和javac用的是同一种产物：project依赖和aar的classes.jar、普通jar
+        def artifacts = variant.compileConfiguration.incoming.artifactView {
+            attributes {
+                it.attribute(Attribute.of("artifactType", String), "android-classes")
+            }
+        }.artifacts
+        ArrayList<File> files = []
+        artifacts.each { ResolvedArtifactResult artifact ->
+            def id = artifact.id.componentIdentifier
+            String name
+            if (id instanceof ProjectComponentIdentifier) {
+                name = id.projectPath
+            } else if (id instanceof ModuleComponentIdentifier) {
+                name = "${id.group}:${id.module}"
+            } else {
+                name = id.displayName
+            }
+            if (config.aspectArtifacts.contains(name) || config.aspectArtifacts.contains(artifact.file.name)) {
+                files.add(artifact.file)
+            }
+        }
+        if (files.isEmpty()) {
+            log.warn "[AspectJ] ${variant.name}: none of ${config.aspectArtifacts} found in compile classpath"
+        }
+        log.info "[AspectJ] ${variant.name} aspectpath: ${files}"
+        return files
+    }
 }
@@ -0,0 +1,41 @@
+package com.jeremyliao.android.plugin;
+
+import org.aspectj.bridge.IMessage;
+import org.aspectj.bridge.MessageHandler;
+import org.aspectj.tools.ajc.Main;
+import org.gradle.api.logging.Logger;
+
+/**
+ * 执行一次ajc，把ajc的消息转到gradle的日志里
+ */
+final class AjcRunner {
+
+    private AjcRunner() {
+    }
+
+    /**
+     * @return 没有错误时返回true
+     */
+    static boolean run(String[] args, Logger log) {
+        MessageHandler handler = new MessageHandler(true);
+        new Main().run(args, handler);
+        return report(handler, log);
+    }
+
+    static boolean report(MessageHandler handler, Logger log) {
+        boolean success = true;
+        for (IMessage message : handler.getMessages(null, true)) {
+            if (message.isAbort() || message.isError() || message.isFailed()) {
+                log.error(message.getMessage(), message.getThrown());
+                success = false;
+            } else if (message.isWarning()) {
+                log.warn(message.getMessage(), message.getThrown());
+            } else if (message.isInfo()) {
+                log.info(message.getMessage(), message.getThrown());
+            } else if (message.isDebug()) {
+                log.debug(message.getMessage(), message.getThrown());
+            }
+        }
+        return success;
+    }
+}
@@ -0,0 +1,86 @@
+package com.jeremyliao.android.plugin;
+
+import org.aspectj.ajdt.ajc.BuildArgParser;
+import org.aspectj.ajdt.internal.core.builder.AjBuildConfig;
+import org.aspectj.ajdt.internal.core.builder.AjBuildManager;
+import org.aspectj.bridge.AbortException;
+import org.aspectj.bridge.IMessage;
+import org.aspectj.bridge.MessageHandler;
+import org.gradle.api.logging.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 常驻daemon的ajc，一个variant一个。
+ * <p>
+ * ajc.Main 每次都新建 AjBuildManager，从整个classpath和aspectpath重新解析类型(World)和aspect。
+ * 这里保留上次的 AjBuildManager，参数和aspectpath指纹都没变时走ajc自己的增量构建，
+ * 已经解析好的类型和aspect直接复用，只织入inpath里变化的class；参数或者指纹变了才重新全量构建。
+ * </p>
+ */
+final class AjcSession {
+
+    private AjBuildManager buildManager;
+    private List<String> lastArgs;
+    private String lastFingerprint;
+    private int warmBuilds;
+    private int coldBuilds;
+
+    /**
+     * @return 上次构建成功、参数和指纹都没变，可以复用上次的World做增量构建
+     */
+    synchronized boolean canRepeat(List<String> args, String fingerprint) {
+        return buildManager != null && args.equals(lastArgs) && fingerprint.equals(lastFingerprint);
+    }
+
+    /**
+     * @param incremental 为false或者不能复用时，新建AjBuildManager全量构建
+     * @return 没有错误时返回true
+     */
+    synchronized boolean run(List<String> args, String fingerprint, boolean incremental, Logger log) {
+        boolean warm = incremental && canRepeat(args, fingerprint);
+        MessageHandler handler = new MessageHandler(true);
+        boolean success = false;
+        try {
+            AjBuildConfig config = new BuildArgParser(handler).genBuildConfig(args.toArray(new String[args.size()]));
+            if (!handler.hasAnyMessage(IMessage.ERROR, true)) {
+                if (warm) {
+                    success = buildManager.incrementalBuild(config, handler);
+                    warmBuilds++;
+                } else {
+                    buildManager = new AjBuildManager(handler);
+                    // 不设置的话构建完不会保留增量状态，下次还是全量
+                    buildManager.environmentSupportsIncrementalCompilation(true);
+                    success = buildManager.batchBuild(config, handler);
+                    coldBuilds++;
+                }
+            }
+        } catch (IOException e) {
+            log.error("[AspectJ] ajc failed", e);
+        } catch (AbortException e) {
+            log.error("[AspectJ] ajc aborted", e);
+        }
+        success = AjcRunner.report(handler, log) && success;
+        if (success) {
+            lastArgs = new ArrayList<>(args);
+            lastFingerprint = fingerprint;
+        } else {
+            // 失败后的状态不可信，下次全量
+            reset();
+        }
+        return success;
+    }
+
+    synchronized void reset() {
+        buildManager = null;
+        lastArgs = null;
+        lastFingerprint = null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("AjcSession{warm=%d, cold=%d, resident=%b}", warmBuilds, coldBuilds, buildManager != null);
+    }
+}
@@ -0,0 +1,152 @@
+package com.jeremyliao.android.plugin;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 织入前的快速预过滤：
+ * <p>
+ * 只扫描class文件的常量池，看里面有没有pointcut用到的注解描述符，不解析整个class。
+ * 类、方法、构造函数上的注解描述符都会以Utf8常量的形式出现在常量池里，
+ * 所以一个都没有时可以确定ajc不会织入这个类，不用交给ajc。
+ * </p>
+ * 无状态，除了统计计数，可以被多个线程同时使用。
+ */
+public final class ClassPrefilter {
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private final byte[][] targets;
+    private final AtomicInteger scanned = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    /**
+     * @param constants 任意一个出现在常量池里就认为需要织入，只支持ascii字符
+     */
+    public ClassPrefilter(String... constants) {
+        targets = new byte[constants.length][];
+        for (int i = 0; i < constants.length; i++) {
+            targets[i] = constants[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return false表示可以确定不需要织入；格式不认识时保守地返回true，交给ajc处理
+     */
+    public boolean mayMatch(byte[] classBytes) {
+        scanned.incrementAndGet();
+        boolean match;
+        try {
+            match = scan(classBytes);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            match = true;
+        }
+        if (!match) {
+            skipped.incrementAndGet();
+        }
+        return match;
+    }
+
+    private boolean scan(byte[] b) {
+        if (readInt(b, 0) != 0xCAFEBABE) {
+            return true;
+        }
+        int count = readUnsignedShort(b, 8);
+        int offset = 10;
+        for (int i = 1; i < count; i++) {
+            int tag = b[offset];
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    int length = readUnsignedShort(b, offset + 1);
+                    if (matches(b, offset + 3, length)) {
+                        return true;
+                    }
+                    offset += 3 + length;
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    offset += 3;
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    offset += 4;
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    offset += 5;
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    // long和double占两个常量池位置
+                    offset += 9;
+                    i++;
+                    break;
+                default:
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matches(byte[] b, int offset, int length) {
+        for (byte[] target : targets) {
+            if (target.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && b[offset + i] == target[i]) {
+                i++;
+            }
+            if (i == length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int readUnsignedShort(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+                | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+
+    public int getScannedCount() {
+        return scanned.get();
+    }
+
+    public int getSkippedCount() {
+        return skipped.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ClassPrefilter{scanned=%d, skipped=%d}", scanned.get(), skipped.get());
+    }
+}
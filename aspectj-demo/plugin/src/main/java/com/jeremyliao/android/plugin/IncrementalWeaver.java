@@ -0,0 +1,579 @@
+package com.jeremyliao.android.plugin;
+
+import org.gradle.api.logging.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * 增量织入：
+ * <p>
+ * stateDir下保存javac原始输出的副本(pristine)和上次织入后每个class的hash。
+ * 下次编译后，classesDir里hash和上次织入结果一致的class说明javac没有动过，直接保留；
+ * 不一致的就是javac新生成的，只把这些class(加上模块自己的aspect)交给ajc织入，再拷回classesDir。
+ * aspectpath、ajc参数或者模块里的aspect有变化时，从pristine全量重新织入。
+ * </p>
+ * state丢失或者ajc报错时，下次自动退回全量织入。
+ * 有 {@link AjcSession} 时用常驻的ajc织入，增量织入时复用上次解析好的类型和aspect。
+ * 开启预过滤时，用 {@link PointcutAnalyzer} 算出pointcut要求的注解，不包含这些注解的class不交给ajc。
+ */
+public class IncrementalWeaver {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] ASPECT_ANNOTATION = "Lorg/aspectj/lang/annotation/Aspect;".getBytes(UTF_8);
+    private static final String STATE_FILE = "weave-state.properties";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    // pointcut要求的注解，','分隔；"*"表示不能预过滤
+    private static final String KEY_PREFILTER = "prefilter";
+    private static final String NO_PREFILTER = "*";
+    // class:<相对路径> = <织入后的hash>[:aspect]
+    private static final String PREFIX_CLASS = "class:";
+    // gen:<相对路径> = <所属class的相对路径>:<hash>，ajc生成的类，比如 Foo$AjcClosure1.class
+    private static final String PREFIX_GENERATED = "gen:";
+
+    private final File stateDir;
+    private final File pristineDir;
+    private final AjcSession session;
+    private final Logger log;
+    private boolean prefilterEnabled;
+
+    public static class Result {
+        public final boolean full;
+        public final boolean warm;
+        public final int wovenClasses;
+        public final int filteredClasses;
+        public final int totalClasses;
+        public final long costMillis;
+        public final boolean success;
+
+        Result(boolean full, boolean warm, int wovenClasses, int filteredClasses, int totalClasses, long costMillis, boolean success) {
+            this.full = full;
+            this.warm = warm;
+            this.wovenClasses = wovenClasses;
+            this.filteredClasses = filteredClasses;
+            this.totalClasses = totalClasses;
+            this.costMillis = costMillis;
+            this.success = success;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s weave %d of %d classes%s%s in %d ms%s", full ? "full" : "incremental",
+                    wovenClasses, totalClasses, filteredClasses > 0 ? ", " + filteredClasses + " skipped by prefilter" : "",
+                    warm ? " (warm ajc)" : "", costMillis, success ? "" : " (failed)");
+        }
+    }
+
+    private static final class Record {
+        final String hash;
+        final boolean aspect;
+
+        Record(String hash, boolean aspect) {
+            this.hash = hash;
+            this.aspect = aspect;
+        }
+    }
+
+    public IncrementalWeaver(File stateDir, Logger log) {
+        this(stateDir, null, log);
+    }
+
+    /**
+     * @param session 常驻的ajc，为null时每次新建ajc
+     */
+    public IncrementalWeaver(File stateDir, AjcSession session, Logger log) {
+        this.stateDir = stateDir;
+        this.pristineDir = new File(stateDir, "pristine");
+        this.session = session;
+        this.log = log;
+    }
+
+    /**
+     * 只把可能匹配pointcut的class交给ajc
+     */
+    public void setPrefilterEnabled(boolean prefilterEnabled) {
+        this.prefilterEnabled = prefilterEnabled;
+    }
+
+    /**
+     * @param classesDir javac的输出目录，织入结果也写回这里
+     * @param ajcArgs    除了 -inpath、-d 之外的ajc参数，也参与指纹
+     * @param aspectPath 参与指纹，其中的文件变化会触发全量织入；开启预过滤时从这里读取aspect
+     * @param classpath  ajc的-classpath，classesDir会被加在前面
+     */
+    public Result weave(File classesDir, List<String> ajcArgs, List<File> aspectPath, String classpath) throws IOException {
+        long start = System.currentTimeMillis();
+        Properties state = loadState();
+        String fingerprint = fingerprint(ajcArgs, aspectPath, prefilterEnabled);
+        if (state.isEmpty() || !pristineDir.isDirectory()) {
+            // 没有上次的状态，pristine也就不可信了
+            state.clear();
+            deleteRecursively(pristineDir);
+        }
+        // 指纹变了还是要读上次的状态，没被javac重新生成的class要用pristine里的原始版本
+        boolean full = !fingerprint.equals(state.getProperty(KEY_FINGERPRINT));
+
+        Map<String, Record> classes = new HashMap<>();
+        Map<String, String[]> generated = new HashMap<>();
+        for (String key : state.stringPropertyNames()) {
+            String value = state.getProperty(key);
+            if (key.startsWith(PREFIX_CLASS)) {
+                classes.put(key.substring(PREFIX_CLASS.length()),
+                        new Record(value.split(":")[0], value.endsWith(":aspect")));
+            } else if (key.startsWith(PREFIX_GENERATED)) {
+                generated.put(key.substring(PREFIX_GENERATED.length()), value.split(":"));
+            }
+        }
+
+        // 找出javac这次新生成的class
+        Map<String, File> current = new HashMap<>();
+        listClasses(classesDir, "", current);
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, File> entry : current.entrySet()) {
+            String path = entry.getKey();
+            String hash = hash(entry.getValue());
+            Record record = classes.get(path);
+            if (record != null && record.hash.equals(hash)) {
+                continue;
+            }
+            String[] owner = generated.get(path);
+            if (record == null && owner != null && owner[1].equals(hash)) {
+                continue;
+            }
+            if (record == null && path.contains("$AjcClosure")) {
+                // 没有状态时遗留下来的ajc生成类，织入时会重新生成
+                entry.getValue().delete();
+                continue;
+            }
+            changed.add(path);
+            generated.remove(path);
+            File pristine = new File(pristineDir, path);
+            pristine.getParentFile().mkdirs();
+            Files.copy(entry.getValue().toPath(), pristine.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            boolean aspect = isAspect(pristine);
+            if (!full && (aspect || (record != null && record.aspect))) {
+                // 模块里的aspect变了，影响范围没法判断，全量织入
+                log.lifecycle("[AspectJ] aspect {} changed, reweave all", path);
+                full = true;
+            }
+            classes.put(path, new Record(hash, aspect));
+        }
+
+        // javac删掉的class，连同ajc给它生成的类一起删
+        for (String path : new ArrayList<>(classes.keySet())) {
+            if (!current.containsKey(path)) {
+                Record record = classes.remove(path);
+                new File(pristineDir, path).delete();
+                if (record.aspect && !full) {
+                    log.lifecycle("[AspectJ] aspect {} removed, reweave all", path);
+                    full = true;
+                }
+            }
+        }
+        for (Map.Entry<String, String[]> entry : new ArrayList<>(generated.entrySet())) {
+            String owner = entry.getValue()[0];
+            if (full || !classes.containsKey(owner) || changed.contains(owner)) {
+                new File(classesDir, entry.getKey()).delete();
+                generated.remove(entry.getKey());
+            }
+        }
+
+        // aspect不变时pointcut要求的注解也不变，沿用上次的结果
+        String annotations = null;
+        ClassPrefilter prefilter = null;
+        if (prefilterEnabled) {
+            annotations = full ? null : state.getProperty(KEY_PREFILTER);
+            if (annotations == null) {
+                annotations = analyzePointcuts(aspectPath, classes);
+            }
+            if (!NO_PREFILTER.equals(annotations)) {
+                prefilter = newPrefilter(annotations);
+            }
+        }
+
+        // 要织入的class：全量时是全部，增量时是变化的class，开启预过滤时再去掉不可能匹配的
+        Set<String> targets = new HashSet<>();
+        Map<String, Boolean> matches = new HashMap<>();
+        int filtered = 0;
+        for (Map.Entry<String, Record> entry : classes.entrySet()) {
+            String path = entry.getKey();
+            if (entry.getValue().aspect || !(full || changed.contains(path))) {
+                continue;
+            }
+            if (prefilter == null || mayWeave(path, prefilter, classes, matches)) {
+                targets.add(path);
+            } else {
+                filtered++;
+            }
+        }
+        if (prefilter != null && !full) {
+            // within(@X *) 也会匹配X的内部类，外部类变了，没变的内部类也要重新织入
+            for (String path : new ArrayList<>(targets)) {
+                String prefix = path.substring(0, path.length() - ".class".length()) + "$";
+                for (Map.Entry<String, Record> entry : classes.entrySet()) {
+                    if (!entry.getValue().aspect && entry.getKey().startsWith(prefix)) {
+                        targets.add(entry.getKey());
+                    }
+                }
+            }
+        }
+        if (full && prefilter != null) {
+            // 过滤掉的class不再织入，classesDir里上次织入的结果换回javac的原始版本
+            for (Map.Entry<String, Record> entry : new ArrayList<>(classes.entrySet())) {
+                String path = entry.getKey();
+                if (entry.getValue().aspect || targets.contains(path) || changed.contains(path)) {
+                    continue;
+                }
+                File target = new File(classesDir, path);
+                Files.copy(new File(pristineDir, path).toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                classes.put(path, new Record(hash(target), false));
+            }
+        }
+
+        // 交给ajc的是要织入的class加上模块自己的aspect
+        List<String> inputs = new ArrayList<>(targets);
+        for (Map.Entry<String, Record> entry : classes.entrySet()) {
+            if (entry.getValue().aspect) {
+                inputs.add(entry.getKey());
+            }
+        }
+        if (inputs.isEmpty() || (!full && targets.isEmpty())) {
+            saveState(fingerprint, annotations, classes, generated);
+            return new Result(full, false, 0, filtered, classes.size(), System.currentTimeMillis() - start, true);
+        }
+        Set<String> changedTargets = new HashSet<>(targets);
+        changedTargets.retainAll(changed);
+
+        File inDir = new File(stateDir, "in");
+        File outDir = new File(stateDir, "out");
+        List<String> args = new ArrayList<>(ajcArgs);
+        args.add("-inpath");
+        args.add(inDir.getAbsolutePath());
+        args.add("-d");
+        args.add(outDir.getAbsolutePath());
+        args.add("-classpath");
+        args.add(classesDir.getAbsolutePath() + File.pathSeparator + classpath);
+        log.debug("ajc args: {}", args);
+
+        // 常驻ajc做增量构建时按文件时间判断inpath里哪些class变了，没变的aspect要保留原来的文件
+        boolean warm = !full && session != null && session.canRepeat(args, fingerprint);
+        prepareInputs(inDir, inputs, changed, warm);
+        deleteRecursively(outDir);
+        outDir.mkdirs();
+        boolean success = runAjc(args, fingerprint, warm);
+        if (success && warm && !containsAll(outDir, changedTargets)) {
+            // ajc的增量构建漏掉了变化的class，新建ajc全量织入这些输入
+            log.info("[AspectJ] warm ajc missed changed classes, retry cold");
+            warm = false;
+            prepareInputs(inDir, inputs, changed, false);
+            deleteRecursively(outDir);
+            outDir.mkdirs();
+            success = runAjc(args, fingerprint, false);
+        }
+
+        // 织入结果拷回classesDir，记录hash
+        Map<String, File> woven = new HashMap<>();
+        listClasses(outDir, "", woven);
+        for (Map.Entry<String, File> entry : woven.entrySet()) {
+            String path = entry.getKey();
+            File target = new File(classesDir, path);
+            target.getParentFile().mkdirs();
+            Files.copy(entry.getValue().toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            String hash = hash(target);
+            Record record = classes.get(path);
+            if (record != null) {
+                classes.put(path, new Record(hash, record.aspect));
+            } else {
+                generated.put(path, new String[]{ownerOf(path), hash});
+            }
+        }
+        if (session == null || !success) {
+            // 常驻ajc下次增量构建还要对比inpath，保留
+            deleteRecursively(inDir);
+        }
+        deleteRecursively(outDir);
+
+        if (success) {
+            saveState(fingerprint, annotations, classes, generated);
+        } else {
+            // 下次全量
+            new File(stateDir, STATE_FILE).delete();
+        }
+        return new Result(full, warm, inputs.size(), filtered, classes.size(), System.currentTimeMillis() - start, success);
+    }
+
+    /**
+     * 读取aspectpath和模块自己的aspect
+     *
+     * @return pointcut要求的注解，','分隔；不能预过滤时返回 {@link #NO_PREFILTER}
+     */
+    private String analyzePointcuts(List<File> aspectPath, Map<String, Record> classes) throws IOException {
+        PointcutAnalyzer analyzer = new PointcutAnalyzer();
+        for (File file : aspectPath) {
+            analyzer.addPath(file);
+        }
+        for (Map.Entry<String, Record> entry : classes.entrySet()) {
+            if (entry.getValue().aspect) {
+                analyzer.addPath(new File(pristineDir, entry.getKey()));
+            }
+        }
+        Set<String> required = analyzer.requiredAnnotations();
+        if (required == null) {
+            log.lifecycle("[AspectJ] pointcuts of {} aspects may match any class, prefilter disabled", analyzer.getAspectCount());
+            return NO_PREFILTER;
+        }
+        log.info("[AspectJ] {} aspects, only weave classes with {}", analyzer.getAspectCount(), required);
+        StringBuilder builder = new StringBuilder();
+        for (String annotation : required) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(annotation);
+        }
+        return builder.toString();
+    }
+
+    private static ClassPrefilter newPrefilter(String annotations) {
+        if (annotations.isEmpty()) {
+            return new ClassPrefilter();
+        }
+        String[] names = annotations.split(",");
+        String[] descriptors = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            descriptors[i] = "L" + names[i].replace('.', '/') + ";";
+        }
+        return new ClassPrefilter(descriptors);
+    }
+
+    /**
+     * 自己的常量池里有pointcut要求的注解，或者外部类有，都可能被织入
+     */
+    private boolean mayWeave(String path, ClassPrefilter prefilter, Map<String, Record> classes,
+                             Map<String, Boolean> matches) throws IOException {
+        Boolean match = matches.get(path);
+        if (match == null) {
+            match = prefilter.mayMatch(Files.readAllBytes(new File(pristineDir, path).toPath()));
+            int index = path.lastIndexOf('$');
+            if (!match && index > 0) {
+                String outer = path.substring(0, index) + ".class";
+                match = classes.containsKey(outer) && mayWeave(outer, prefilter, classes, matches);
+            }
+            matches.put(path, match);
+        }
+        return match;
+    }
+
+    /**
+     * 把要织入的class从pristine放到inDir。
+     * incremental为true时只拷变化和缺少的class，其余保持原样，ajc的增量构建才会把它们当成没变
+     */
+    private void prepareInputs(File inDir, List<String> inputs, Set<String> changed, boolean incremental) throws IOException {
+        if (!incremental) {
+            deleteRecursively(inDir);
+        } else {
+            Map<String, File> existing = new HashMap<>();
+            listClasses(inDir, "", existing);
+            existing.keySet().removeAll(inputs);
+            for (File file : existing.values()) {
+                file.delete();
+            }
+        }
+        for (String path : inputs) {
+            File target = new File(inDir, path);
+            if (incremental && !changed.contains(path) && target.isFile()) {
+                continue;
+            }
+            target.getParentFile().mkdirs();
+            Files.copy(new File(pristineDir, path).toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private boolean runAjc(List<String> args, String fingerprint, boolean incremental) {
+        if (session == null) {
+            return AjcRunner.run(args.toArray(new String[args.size()]), log);
+        }
+        return session.run(args, fingerprint, incremental, log);
+    }
+
+    private static boolean containsAll(File dir, Set<String> paths) {
+        for (String path : paths) {
+            if (!new File(dir, path).isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Foo$AjcClosure1.class 属于 Foo.class
+     */
+    private static String ownerOf(String path) {
+        int index = path.indexOf("$AjcClosure");
+        return index > 0 ? path.substring(0, index) + ".class" : path;
+    }
+
+    private static String fingerprint(List<String> ajcArgs, List<File> aspectPath, boolean prefilter) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("prefilter=").append(prefilter).append('\n');
+        for (String arg : ajcArgs) {
+            builder.append(arg).append('\n');
+        }
+        for (File file : aspectPath) {
+            appendFileState(builder, file);
+        }
+        return toHex(newDigest().digest(builder.toString().getBytes(UTF_8)));
+    }
+
+    private static void appendFileState(StringBuilder builder, File file) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                java.util.Arrays.sort(children);
+                for (File child : children) {
+                    appendFileState(builder, child);
+                }
+            }
+        } else {
+            builder.append(file.getAbsolutePath()).append(':').append(file.length())
+                    .append(':').append(file.lastModified()).append('\n');
+        }
+    }
+
+    private static boolean isAspect(File classFile) throws IOException {
+        byte[] bytes = Files.readAllBytes(classFile.toPath());
+        outer:
+        for (int i = 0; i <= bytes.length - ASPECT_ANNOTATION.length; i++) {
+            for (int j = 0; j < ASPECT_ANNOTATION.length; j++) {
+                if (bytes[i + j] != ASPECT_ANNOTATION[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static void listClasses(File dir, String prefix, Map<String, File> out) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String path = prefix + file.getName();
+            if (file.isDirectory()) {
+                listClasses(file, path + "/", out);
+            } else if (path.endsWith(".class")) {
+                out.put(path, file);
+            }
+        }
+    }
+
+    private Properties loadState() {
+        Properties properties = new Properties();
+        File file = new File(stateDir, STATE_FILE);
+        if (!file.isFile()) {
+            return properties;
+        }
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            properties.load(inputStream);
+        } catch (IOException e) {
+            log.warn("[AspectJ] read weave state failed, reweave all", e);
+            properties.clear();
+        } finally {
+            closeQuietly(inputStream);
+        }
+        return properties;
+    }
+
+    private void saveState(String fingerprint, String annotations, Map<String, Record> classes,
+                           Map<String, String[]> generated) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_FINGERPRINT, fingerprint);
+        if (annotations != null) {
+            properties.setProperty(KEY_PREFILTER, annotations);
+        }
+        for (Map.Entry<String, Record> entry : classes.entrySet()) {
+            Record record = entry.getValue();
+            properties.setProperty(PREFIX_CLASS + entry.getKey(), record.aspect ? record.hash + ":aspect" : record.hash);
+        }
+        for (Map.Entry<String, String[]> entry : generated.entrySet()) {
+            properties.setProperty(PREFIX_GENERATED + entry.getKey(), entry.getValue()[0] + ":" + entry.getValue()[1]);
+        }
+        stateDir.mkdirs();
+        OutputStream outputStream = new FileOutputStream(new File(stateDir, STATE_FILE));
+        try {
+            properties.store(outputStream, null);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, length);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException ignored) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package com.jeremyliao.android.plugin;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 读取注解风格aspect里的pointcut，算出一个class要包含哪些注解才可能被织入。
+ * <p>
+ * 每个advice的pointcut表达式按 &&、||、! 拆开，引用的具名pointcut展开后计算：
+ * execution(@X ...)、within(@X *)、@annotation(X)、@within(X) 这类以注解开头的表达式要求class里有X；
+ * &&只要求其中一边，||要求两边之一，其余写法(call、this、args、!等)任何class都可能匹配。
+ * 只要有一个advice任何class都可能匹配，或者有代码风格的aspect、declare语句，就不做预过滤。
+ * </p>
+ */
+public class PointcutAnalyzer {
+
+    private static final String ANNOTATION_PACKAGE = "Lorg/aspectj/lang/annotation/";
+    private static final String ASPECT_DESC = "Lorg/aspectj/lang/annotation/Aspect;";
+    private static final String POINTCUT_DESC = "Lorg/aspectj/lang/annotation/Pointcut;";
+    // 代码风格的aspect和ajc处理过的aspect都有这个属性
+    private static final String WEAVER_ASPECT_ATTRIBUTE = "org.aspectj.weaver.Aspect";
+    private static final Set<String> ADVICE_DESCS = new HashSet<>();
+    // 这些表达式以 @X 开头时，要求class里有注解X
+    private static final Set<String> MEMBER_DESIGNATORS = new HashSet<>();
+    // 这些表达式的参数是注解类型
+    private static final Set<String> ANNOTATION_DESIGNATORS = new HashSet<>();
+    private static final Set<String> OTHER_DESIGNATORS = new HashSet<>();
+
+    static {
+        ADVICE_DESCS.add("Lorg/aspectj/lang/annotation/Before;");
+        ADVICE_DESCS.add("Lorg/aspectj/lang/annotation/After;");
+        ADVICE_DESCS.add("Lorg/aspectj/lang/annotation/AfterReturning;");
+        ADVICE_DESCS.add("Lorg/aspectj/lang/annotation/AfterThrowing;");
+        ADVICE_DESCS.add("Lorg/aspectj/lang/annotation/Around;");
+        MEMBER_DESIGNATORS.add("execution");
+        MEMBER_DESIGNATORS.add("within");
+        MEMBER_DESIGNATORS.add("withincode");
+        MEMBER_DESIGNATORS.add("initialization");
+        MEMBER_DESIGNATORS.add("preinitialization");
+        MEMBER_DESIGNATORS.add("staticinitialization");
+        ANNOTATION_DESIGNATORS.add("@annotation");
+        ANNOTATION_DESIGNATORS.add("@within");
+        ANNOTATION_DESIGNATORS.add("@withincode");
+        OTHER_DESIGNATORS.add("call");
+        OTHER_DESIGNATORS.add("get");
+        OTHER_DESIGNATORS.add("set");
+        OTHER_DESIGNATORS.add("handler");
+        OTHER_DESIGNATORS.add("adviceexecution");
+        OTHER_DESIGNATORS.add("this");
+        OTHER_DESIGNATORS.add("target");
+        OTHER_DESIGNATORS.add("args");
+        OTHER_DESIGNATORS.add("cflow");
+        OTHER_DESIGNATORS.add("cflowbelow");
+        OTHER_DESIGNATORS.add("if");
+        OTHER_DESIGNATORS.add("@this");
+        OTHER_DESIGNATORS.add("@target");
+        OTHER_DESIGNATORS.add("@args");
+    }
+
+    private static final class Aspect {
+        final String name;
+        final Map<String, String> pointcuts = new HashMap<>();
+        final List<String> advices = new ArrayList<>();
+        boolean opaque;
+
+        Aspect(String name) {
+            this.name = name;
+        }
+    }
+
+    private final ClassPrefilter aspectFilter = new ClassPrefilter(ASPECT_DESC, WEAVER_ASPECT_ATTRIBUTE);
+    private final List<Aspect> aspects = new ArrayList<>();
+
+    /**
+     * 读取目录或jar里的aspect
+     */
+    public void addPath(File file) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    addPath(child);
+                }
+            }
+        } else if (file.getName().endsWith(".class")) {
+            addClass(Files.readAllBytes(file.toPath()));
+        } else if (file.getName().endsWith(".jar") && file.isFile()) {
+            ZipFile zipFile = new ZipFile(file);
+            try {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.getName().endsWith(".class")) {
+                        InputStream inputStream = zipFile.getInputStream(entry);
+                        try {
+                            addClass(readFully(inputStream));
+                        } finally {
+                            inputStream.close();
+                        }
+                    }
+                }
+            } finally {
+                zipFile.close();
+            }
+        }
+    }
+
+    /**
+     * 不是aspect的class直接忽略
+     */
+    public void addClass(byte[] classBytes) {
+        if (!aspectFilter.mayMatch(classBytes)) {
+            return;
+        }
+        final Aspect[] holder = new Aspect[1];
+        new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM5) {
+            private String className;
+            private boolean aspect;
+            private boolean weaverAttribute;
+            private final Map<String, String> pointcuts = new HashMap<>();
+            private final List<String> advices = new ArrayList<>();
+            private boolean opaque;
+
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                className = name;
+            }
+
+            @Override
+            public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                if (ASPECT_DESC.equals(desc)) {
+                    aspect = true;
+                } else if (desc.startsWith(ANNOTATION_PACKAGE)) {
+                    // DeclarePrecedence之外的declare都可能影响任意class
+                    opaque |= !desc.equals("Lorg/aspectj/lang/annotation/DeclarePrecedence;");
+                }
+                return null;
+            }
+
+            @Override
+            public void visitAttribute(Attribute attribute) {
+                if (WEAVER_ASPECT_ATTRIBUTE.equals(attribute.type)) {
+                    weaverAttribute = true;
+                }
+            }
+
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                return new FieldVisitor(Opcodes.ASM5) {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String annotationDesc, boolean visible) {
+                        // DeclareParents、DeclareError、DeclareWarning都写在字段上
+                        opaque |= annotationDesc.startsWith(ANNOTATION_PACKAGE);
+                        return null;
+                    }
+                };
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, final String name, String desc, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM5) {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String annotationDesc, boolean visible) {
+                        final boolean pointcut = POINTCUT_DESC.equals(annotationDesc);
+                        final boolean advice = ADVICE_DESCS.contains(annotationDesc);
+                        if (!pointcut && !advice) {
+                            if (annotationDesc.startsWith(ANNOTATION_PACKAGE)) {
+                                // DeclareParents、DeclareMixin等
+                                opaque |= !annotationDesc.equals("Lorg/aspectj/lang/annotation/AdviceName;");
+                            }
+                            return null;
+                        }
+                        return new AnnotationVisitor(Opcodes.ASM5) {
+                            @Override
+                            public void visit(String key, Object value) {
+                                // AfterReturning、AfterThrowing的表达式可以写在pointcut里
+                                if (!(value instanceof String) || !("value".equals(key) || "pointcut".equals(key))) {
+                                    return;
+                                }
+                                String expression = (String) value;
+                                if (expression.isEmpty()) {
+                                    return;
+                                }
+                                if (pointcut) {
+                                    pointcuts.put(name, expression);
+                                } else {
+                                    advices.add(expression);
+                                }
+                            }
+                        };
+                    }
+                };
+            }
+
+            @Override
+            public void visitEnd() {
+                if (!aspect && !weaverAttribute) {
+                    return;
+                }
+                Aspect result = new Aspect(className);
+                result.pointcuts.putAll(pointcuts);
+                result.advices.addAll(advices);
+                // 代码风格的aspect没有这些注解，advice在ajc的属性里，看不到
+                result.opaque = opaque || (!aspect && advices.isEmpty());
+                holder[0] = result;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        if (holder[0] != null) {
+            aspects.add(holder[0]);
+        }
+    }
+
+    public int getAspectCount() {
+        return aspects.size();
+    }
+
+    /**
+     * @return 被织入的class至少要包含其中一个注解(类名，'.'分隔)；返回null表示任何class都可能被织入
+     */
+    public Set<String> requiredAnnotations() {
+        Set<String> required = new LinkedHashSet<>();
+        for (Aspect aspect : aspects) {
+            if (aspect.opaque) {
+                return null;
+            }
+            for (String advice : aspect.advices) {
+                Set<String> guard = new Parser(advice, aspect, new HashSet<String>()).parse();
+                if (guard == null) {
+                    return null;
+                }
+                required.addAll(guard);
+            }
+        }
+        return required;
+    }
+
+    /**
+     * 在所有aspect里找具名pointcut，先找当前aspect
+     */
+    private String findPointcut(Aspect current, String reference) {
+        int dot = reference.lastIndexOf('.');
+        String name = dot >= 0 ? reference.substring(dot + 1) : reference;
+        if (dot < 0 && current.pointcuts.containsKey(name)) {
+            return current.pointcuts.get(name);
+        }
+        String owner = dot >= 0 ? reference.substring(0, dot).replace('.', '/') : null;
+        for (Aspect aspect : aspects) {
+            if (owner != null && !aspect.name.endsWith(owner)) {
+                continue;
+            }
+            if (aspect.pointcuts.containsKey(name)) {
+                return aspect.pointcuts.get(name);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 递归下降解析pointcut表达式，结果为null表示任何class都可能匹配
+     */
+    private final class Parser {
+        private final String text;
+        private final Aspect aspect;
+        private final Set<String> visiting;
+        private int pos;
+
+        Parser(String text, Aspect aspect, Set<String> visiting) {
+            this.text = text;
+            this.aspect = aspect;
+            this.visiting = visiting;
+        }
+
+        Set<String> parse() {
+            try {
+                Set<String> result = parseOr();
+                skipSpaces();
+                return pos == text.length() ? result : null;
+            } catch (IndexOutOfBoundsException e) {
+                // 不认识的写法
+                return null;
+            }
+        }
+
+        private Set<String> parseOr() {
+            Set<String> result = parseAnd();
+            while (consume("||")) {
+                Set<String> right = parseAnd();
+                if (result == null || right == null) {
+                    result = null;
+                } else {
+                    result.addAll(right);
+                }
+            }
+            return result;
+        }
+
+        private Set<String> parseAnd() {
+            Set<String> result = parseUnary();
+            while (consume("&&")) {
+                Set<String> right = parseUnary();
+                // 两边都要满足，任选一边作为条件都不会漏，选范围小的
+                if (result == null || (right != null && right.size() < result.size())) {
+                    result = right;
+                }
+            }
+            return result;
+        }
+
+        private Set<String> parseUnary() {
+            if (consume("!")) {
+                parseUnary();
+                return null;
+            }
+            if (consume("(")) {
+                Set<String> result = parseOr();
+                expect(')');
+                return result;
+            }
+            return parsePrimitive();
+        }
+
+        private Set<String> parsePrimitive() {
+            skipSpaces();
+            int start = pos;
+            while (pos < text.length() && isNameChar(text.charAt(pos))) {
+                pos++;
+            }
+            String name = text.substring(start, pos);
+            expect('(');
+            int depth = 1;
+            int contentStart = pos;
+            while (depth > 0) {
+                char c = text.charAt(pos++);
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                }
+            }
+            String content = text.substring(contentStart, pos - 1).trim();
+            if (name.isEmpty()) {
+                return null;
+            }
+            if (MEMBER_DESIGNATORS.contains(name)) {
+                return leadingAnnotation(content);
+            }
+            if (ANNOTATION_DESIGNATORS.contains(name)) {
+                return annotationType(content);
+            }
+            if (OTHER_DESIGNATORS.contains(name)) {
+                return null;
+            }
+            // 具名pointcut
+            String expression = findPointcut(aspect, name);
+            if (expression == null || !visiting.add(name)) {
+                return null;
+            }
+            try {
+                return new Parser(expression, aspect, visiting).parse();
+            } finally {
+                visiting.remove(name);
+            }
+        }
+
+        private void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private boolean consume(String token) {
+            skipSpaces();
+            if (text.startsWith(token, pos)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            skipSpaces();
+            if (text.charAt(pos) != c) {
+                throw new IndexOutOfBoundsException("expect " + c + " at " + pos + ": " + text);
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * execution(@X * *(..))、within(@X *) 这类以注解开头的表达式
+     */
+    private static Set<String> leadingAnnotation(String content) {
+        if (!content.startsWith("@")) {
+            return null;
+        }
+        int end = 1;
+        while (end < content.length() && isTypeChar(content.charAt(end))) {
+            end++;
+        }
+        return annotationType(content.substring(1, end));
+    }
+
+    /**
+     * 只接受完整的类名，通配符、绑定的参数名都认为可能匹配任何class
+     */
+    private static Set<String> annotationType(String type) {
+        if (type.indexOf('.') < 0 || type.startsWith(".") || type.endsWith(".") || type.contains("..")) {
+            return null;
+        }
+        for (int i = 0; i < type.length(); i++) {
+            if (!isTypeChar(type.charAt(i))) {
+                return null;
+            }
+        }
+        Set<String> result = new LinkedHashSet<>();
+        result.add(type);
+        return result;
+    }
+
+    private static boolean isTypeChar(char c) {
+        return Character.isJavaIdentifierPart(c) || c == '.';
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isJavaIdentifierPart(c) || c == '.' || c == '@';
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        java.io.ByteArrayOutputStream outputStream = new java.io.ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, length);
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,85 @@
+package com.jeremyliao.android.plugin;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+
+/**
+ * 一个variant的织入，由javac的doLast通过Worker API提交。
+ * <p>
+ * javac任务会等提交的work结束才算执行完，之后gradle才记录它的输出，所以记录下来的是织入后的class，
+ * 下次javac仍然可以增量编译；等待期间gradle会放开project锁，别的variant的javac、织入可以同时进行，
+ * 并行度由 --max-workers 控制。织入失败时抛异常，javac任务失败，构建也随之失败。
+ * </p>
+ * 参数都要能序列化，{@link AjcSession} 这种不能序列化的状态按stateDir从 {@link WeaverService} 里取。
+ */
+public class WeaveAction implements Runnable {
+
+    private static final Logger LOG = Logging.getLogger(WeaveAction.class);
+
+    private final String variantName;
+    private final File stateDir;
+    private final File classesDir;
+    private final ArrayList<String> ajcArgs;
+    private final ArrayList<File> aspectPath;
+    private final String classpath;
+    private final boolean incremental;
+    private final boolean warm;
+    private final boolean prefilter;
+
+    /**
+     * @param ajcArgs 增量织入时不含 -inpath、-d、-classpath，由 {@link IncrementalWeaver} 填；全量织入时是完整的ajc参数
+     */
+    @Inject
+    public WeaveAction(String variantName, File stateDir, File classesDir, ArrayList<String> ajcArgs,
+                       ArrayList<File> aspectPath, String classpath, Boolean incremental, Boolean warm, Boolean prefilter) {
+        this.variantName = variantName;
+        this.stateDir = stateDir;
+        this.classesDir = classesDir;
+        this.ajcArgs = ajcArgs;
+        this.aspectPath = aspectPath;
+        this.classpath = classpath;
+        this.incremental = incremental;
+        this.warm = warm;
+        this.prefilter = prefilter;
+    }
+
+    @Override
+    public void run() {
+        WeaverService service = WeaverService.get();
+        long startTime = System.currentTimeMillis();
+        if (incremental) {
+            IncrementalWeaver weaver = new IncrementalWeaver(stateDir, warm ? service.session(stateDir) : null, LOG);
+            weaver.setPrefilterEnabled(prefilter);
+            IncrementalWeaver.Result result;
+            try {
+                result = weaver.weave(classesDir, ajcArgs, aspectPath, classpath);
+            } catch (IOException e) {
+                throw new GradleException("[AspectJ] " + variantName + " weave failed", e);
+            }
+            service.recordCost(stateDir, result.costMillis);
+            if (!result.success) {
+                throw new GradleException("[AspectJ] " + variantName + " weave failed, see ajc errors above");
+            }
+            LOG.lifecycle("[AspectJ] {}: {}", variantName, result);
+            return;
+        }
+
+        List<String> args = new ArrayList<>(ajcArgs);
+        LOG.debug("ajc args: {}", args);
+        boolean success = AjcRunner.run(args.toArray(new String[0]), LOG);
+        long cost = System.currentTimeMillis() - startTime;
+        service.recordCost(stateDir, cost);
+        if (!success) {
+            throw new GradleException("[AspectJ] " + variantName + " weave failed, see ajc errors above");
+        }
+        LOG.lifecycle("[AspectJ] {}: full weave in {} ms", variantName, cost);
+    }
+}
@@ -0,0 +1,69 @@
+package com.jeremyliao.android.plugin;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 常驻gradle daemon的织入状态，插件的classloader被daemon缓存时，多次构建之间共用一个实例。
+ * <p>
+ * 1. 每个variant(以stateDir区分)保留一个 {@link AjcSession}，下次构建时复用ajc已经解析好的类型和aspect；
+ * 2. {@link WeaveAction} 在gradle的worker线程里执行，参数只能是可序列化的值，
+ * 织入耗时先记在这里，javac任务结束后由插件取出来。
+ * </p>
+ */
+public final class WeaverService {
+
+    // 每个session都持有一份World，常驻太多会占daemon的内存
+    private static final int MAX_SESSIONS = 8;
+
+    private static final WeaverService INSTANCE = new WeaverService();
+
+    private final LinkedHashMap<String, AjcSession> sessions = new LinkedHashMap<String, AjcSession>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, AjcSession> eldest) {
+            return size() > MAX_SESSIONS;
+        }
+    };
+    private final Map<String, Long> costs = new ConcurrentHashMap<>();
+
+    private WeaverService() {
+    }
+
+    public static WeaverService get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return stateDir对应的常驻ajc，没有时新建
+     */
+    public synchronized AjcSession session(File stateDir) {
+        String key = stateDir.getAbsolutePath();
+        AjcSession session = sessions.get(key);
+        if (session == null) {
+            session = new AjcSession();
+            sessions.put(key, session);
+        }
+        return session;
+    }
+
+    /**
+     * 记录stateDir对应的variant最近一次织入的耗时
+     */
+    public void recordCost(File stateDir, long costMillis) {
+        costs.put(stateDir.getAbsolutePath(), costMillis);
+    }
+
+    /**
+     * @return {@link #recordCost} 记录的耗时，取出后清掉；没有织入过时返回null
+     */
+    public Long takeCost(File stateDir) {
+        return costs.remove(stateDir.getAbsolutePath());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("WeaverService{sessions=%d, pending costs=%d}", sessions.size(), costs.size());
+    }
+}
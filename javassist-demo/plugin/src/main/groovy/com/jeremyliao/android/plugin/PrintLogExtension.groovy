@@ -0,0 +1,9 @@
+package com.jeremyliao.android.plugin
+
+/**
+ * PrintLogTransform 的配置，在build.gradle里通过 printLog {} 声明
+ */
+class PrintLogExtension {
+    // 插桩的worker数，每个worker有自己的子ClassPool，小于等于1时在transform线程里串行处理
+    int parallelism = Runtime.runtime.availableProcessors()
+}
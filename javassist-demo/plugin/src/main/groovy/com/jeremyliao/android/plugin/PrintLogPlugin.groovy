@@ -12,6 +12,7 @@ class PrintLogPlugin implements Plugin<Project> {
 
     @Override
     void apply(Project project) {
+        project.extensions.create("printLog", PrintLogExtension.class)
         def app = project.extensions.findByType(AppExtension.class)
         app.registerTransform(new PrintLogTransform(project))
     }
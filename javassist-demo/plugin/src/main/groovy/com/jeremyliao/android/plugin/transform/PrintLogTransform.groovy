@@ -3,10 +3,10 @@ package com.jeremyliao.android.plugin.transform
 import com.android.build.api.transform.*
 import com.android.build.gradle.internal.pipeline.TransformManager
 import com.android.utils.FileUtils
-import com.jeremyliao.android.base.annotation.PrintLog
-import javassist.ClassPool
-import javassist.CtClass
-import javassist.CtMethod
+import com.jeremyliao.android.plugin.PrintLogExtension
+import com.jeremyliao.android.plugin.handler.JavassistHandler
+import com.jeremyliao.android.plugin.handler.PeakHeapMeter
+import com.jeremyliao.android.plugin.handler.ScopedClassPool
 import org.apache.commons.codec.digest.DigestUtils
 import org.apache.commons.io.IOUtils
 import org.gradle.api.Project
@@ -29,8 +29,6 @@ class PrintLogTransform extends Transform {
 
     final String TAG = "[PrintLogTransform]"
 
-    final static ClassPool pool = ClassPool.getDefault()
-
     final Project project
 
     PrintLogTransform(Project project) {
@@ -47,19 +45,40 @@ class PrintLogTransform extends Transform {
         //删除之前的输出
         if (outputProvider != null)
             outputProvider.deleteAll()
-        //遍历inputs
-        inputs.each { TransformInput input ->
-            //遍历directoryInputs
-            input.directoryInputs.each { DirectoryInput directoryInput ->
-                //处理directoryInputs
-                handleDirectoryInput(directoryInput, outputProvider)
+        PeakHeapMeter heapMeter = PeakHeapMeter.start()
+        //每次transform一个新的类池，结束后释放，不留在daemon里
+        ScopedClassPool pool = new ScopedClassPool()
+        try {
+            //boot classpath和import只需要加一次
+            pool.appendClassPath(project.android.bootClasspath[0].toString())
+            pool.importPackage("android.util.Log")
+            //所有目录先加入共享的父类池，跨目录的父类也能找到
+            inputs.each { TransformInput input ->
+                input.directoryInputs.each { DirectoryInput directoryInput ->
+                    pool.appendClassPath(directoryInput.file.absolutePath)
+                }
             }
+            def config = project.extensions.findByType(PrintLogExtension.class) ?: new PrintLogExtension()
+            JavassistHandler handler = new JavassistHandler(pool, config.parallelism)
+            //遍历inputs
+            inputs.each { TransformInput input ->
+                //遍历directoryInputs
+                input.directoryInputs.each { DirectoryInput directoryInput ->
+                    //处理directoryInputs
+                    handleDirectoryInput(directoryInput, outputProvider, pool, handler)
+                }
 
-            //遍历jarInputs
-            input.jarInputs.each { JarInput jarInput ->
-                //处理jarInputs
-                handleJarInputs(jarInput, outputProvider)
+                //遍历jarInputs
+                input.jarInputs.each { JarInput jarInput ->
+                    //处理jarInputs
+                    handleJarInputs(jarInput, outputProvider)
+                }
             }
+            println TAG + "injected ${handler.injector.injectedMethodCount} methods in ${handler.injector.injectedClassCount} classes"
+        } finally {
+            println TAG + pool
+            pool.close()
+            println TAG + heapMeter
         }
     }
 
@@ -86,14 +105,12 @@ class PrintLogTransform extends Transform {
     /**
      * 处理文件目录下的class文件
      */
-    void handleDirectoryInput(DirectoryInput directoryInput, TransformOutputProvider outputProvider) {
-        //将当前路径加入类池,不然找不到这个类
-        pool.appendClassPath(directoryInput.file.absolutePath)
-        pool.appendClassPath(project.android.bootClasspath[0].toString())
-        pool.importPackage("android.util.Log")
+    void handleDirectoryInput(DirectoryInput directoryInput, TransformOutputProvider outputProvider, ScopedClassPool pool,
+                              JavassistHandler handler) {
         String packageName = project.android.defaultConfig.applicationId
         println 'packageName: ' + packageName
         if (directoryInput.file.isDirectory()) {
+            List<String> classNames = new ArrayList<>()
             directoryInput.file.eachFileRecurse { File file ->
                 def name = file.name
                 if (name.endsWith(".class") && !name.startsWith("R\$") &&
@@ -107,27 +124,15 @@ class PrintLogTransform extends Transform {
                         int end = filePath.length() - 6
                         String className = filePathWithDot.substring(start, end)
                         println 'className: ' + className
-                        CtClass ctClass = pool.getCtClass(className)
-                        if (ctClass.isFrozen()) {
-                            ctClass.defrost()
-                        }
-                        if (ctClass.hasAnnotation(PrintLog.class)) {
-                            for (CtMethod ctMethod : ctClass.getDeclaredMethods()) {
-                                println 'method: ' + ctMethod
-                                String code = """ android.util.Log.d("PrintLog","enter method");
-                                                """
-                                ctMethod.insertBefore(code)
-                                code = """ android.util.Log.d("PrintLog","exit method");
-                                                """
-                                ctMethod.insertAfter(code)
-                            }
-                        }
-                        ctClass.writeFile(directoryInput.file.absolutePath)
-                        ctClass.detach()
+                        classNames.add(className)
                     }
                 }
             }
+            //分给各个worker插桩，修改过的类写回原目录
+            handler.handle(directoryInput.file, classNames)
         }
+        //这个目录处理完了，缓存的父类、引用类一起释放
+        pool.detachAll()
         //处理完输入文件之后，要把输出给下一个任务
         def dest = outputProvider.getContentLocation(directoryInput.name,
                 directoryInput.contentTypes, directoryInput.scopes,
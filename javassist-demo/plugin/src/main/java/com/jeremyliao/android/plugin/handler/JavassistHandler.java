@@ -1,27 +1,124 @@
 package com.jeremyliao.android.plugin.handler;
 
-import com.android.build.api.transform.DirectoryInput;
-
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javassist.CannotCompileException;
 import javassist.ClassPool;
-import javassist.NotFoundException;
+import javassist.CtClass;
 
 /**
  * Created by liaohailiang on 2019-10-15.
+ * <p>
+ * 把一个目录下的类分给多个worker插桩。
+ * 每个worker有自己的子ClassPool，父ClassPool（boot classpath和所有输入目录）只读共享；
+ * 子ClassPool优先从自己的目录加载类，被修改的CtClass只存在于各自的子ClassPool里，worker之间互不影响。
+ * parallelism小于等于1时在调用线程里用一个子ClassPool处理。
+ * </p>
  */
 public class JavassistHandler {
 
-    //初始化类池
-    private final static ClassPool pool = ClassPool.getDefault();
+    private final ClassPool parent;
+    private final int parallelism;
+    private final PrintLogInjector injector;
+
+    /**
+     * @param parent 共享的父ClassPool，需要已经加好boot classpath
+     */
+    public JavassistHandler(ClassPool parent, int parallelism) throws CannotCompileException {
+        this.parent = parent;
+        this.parallelism = parallelism;
+        // 进入/退出的代码在这里编译一次，之后每个方法只拷贝字节码
+        this.injector = new PrintLogInjector(parent);
+    }
+
+    public PrintLogInjector getInjector() {
+        return injector;
+    }
+
+    /**
+     * 插桩dir下的classNames，修改过的类写回dir
+     *
+     * @return 修改过的类的个数
+     */
+    public int handle(final File dir, List<String> classNames) throws Exception {
+        int workers = Math.max(1, Math.min(parallelism, classNames.size()));
+        if (workers <= 1) {
+            return handleChunk(dir, classNames);
+        }
+
+        // 按步长交错分组，同一个包里的大类不会都落在一个worker上
+        List<List<String>> chunks = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            chunks.add(new ArrayList<String>());
+        }
+        for (int i = 0; i < classNames.size(); i++) {
+            chunks.get(i % workers).add(classNames.get(i));
+        }
 
-    public static void handle(DirectoryInput directoryInput) throws NotFoundException {
-        File file = directoryInput.getFile();
-        String absolutePath = file.getAbsolutePath();
-        pool.appendClassPath(absolutePath);
+        ExecutorService executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
 
-        if (file.isDirectory()){
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "javassist-worker-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<Integer>> futures = new ArrayList<>(workers);
+            for (final List<String> chunk : chunks) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return handleChunk(dir, chunk);
+                    }
+                }));
+            }
+            int modified = 0;
+            for (Future<Integer> future : futures) {
+                try {
+                    modified += future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw e;
+                }
+            }
+            return modified;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
+    private int handleChunk(File dir, List<String> classNames) throws Exception {
+        ClassPool pool = new ClassPool(parent);
+        // 先从自己的目录找，修改过的类不会进到共享的父ClassPool里
+        pool.childFirstLookup = true;
+        pool.appendClassPath(dir.getAbsolutePath());
+        int modified = 0;
+        for (String className : classNames) {
+            CtClass ctClass = pool.get(className);
+            if (ctClass.isFrozen()) {
+                ctClass.defrost();
+            }
+            if (injector.inject(ctClass)) {
+                ctClass.writeFile(dir.getAbsolutePath());
+                modified++;
+            }
+            ctClass.detach();
         }
+        return modified;
     }
 }
@@ -0,0 +1,53 @@
+package com.jeremyliao.android.plugin.handler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+/**
+ * 统计一次transform期间的堆内存峰值，基于各个堆内存池的peak usage。
+ * daemon里其他任务并行时，峰值里也包含它们的占用，只能作为参考。
+ */
+public class PeakHeapMeter {
+
+    private final long startUsed;
+
+    private PeakHeapMeter(long startUsed) {
+        this.startUsed = startUsed;
+    }
+
+    /**
+     * 重置各个内存池的峰值并开始统计
+     */
+    public static PeakHeapMeter start() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+        return new PeakHeapMeter(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    }
+
+    /**
+     * @return 开始统计以来堆内存的峰值，各个内存池的峰值相加，单位字节
+     */
+    public long peakBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isValid()) {
+                continue;
+            }
+            MemoryUsage usage = pool.getPeakUsage();
+            if (usage != null) {
+                peak += usage.getUsed();
+            }
+        }
+        return peak;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("heap at start %d MB, peak %d MB", startUsed >> 20, peakBytes() >> 20);
+    }
+}
@@ -0,0 +1,139 @@
+package com.jeremyliao.android.plugin.handler;
+
+import com.jeremyliao.android.base.annotation.PrintLog;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+/**
+ * 给@PrintLog的类的每个方法插入进入/退出日志。
+ * <p>
+ * insertBefore/insertAfter 每个方法都要跑一遍javassist的源码编译器，这里把两段代码在构造时各编译一次，
+ * 之后每个类只是把编译好的字节码拷贝到自己的常量池，再插到方法开头和每个return之前，效果和 insertBefore/insertAfter 一样。
+ * </p>
+ * 构造完成后只读，可以被多个线程同时使用。
+ */
+public class PrintLogInjector {
+
+    private static final String SNIPPET_CLASS = "com.jeremyliao.android.plugin.handler.PrintLogSnippets";
+    private static final String ENTER_CODE = "android.util.Log.d(\"PrintLog\",\"enter method\");";
+    private static final String EXIT_CODE = "android.util.Log.d(\"PrintLog\",\"exit method\");";
+
+    private final CodeAttribute enterSnippet;
+    private final CodeAttribute exitSnippet;
+    private final AtomicInteger injectedClasses = new AtomicInteger();
+    private final AtomicInteger injectedMethods = new AtomicInteger();
+
+    /**
+     * @param pool 需要能找到android.util.Log，也就是加过boot classpath
+     */
+    public PrintLogInjector(ClassPool pool) throws CannotCompileException {
+        CtClass snippets = pool.makeClass(SNIPPET_CLASS);
+        try {
+            enterSnippet = compile(snippets, "enter", ENTER_CODE);
+            exitSnippet = compile(snippets, "exit", EXIT_CODE);
+        } finally {
+            snippets.detach();
+        }
+    }
+
+    private static CodeAttribute compile(CtClass owner, String name, String code) throws CannotCompileException {
+        CtMethod method = CtNewMethod.make("public static void " + name + "() {" + code + "}", owner);
+        return method.getMethodInfo().getCodeAttribute();
+    }
+
+    /**
+     * @return ctClass 是否被修改，没有@PrintLog时不会修改
+     */
+    public boolean inject(CtClass ctClass) throws BadBytecode {
+        if (!ctClass.hasAnnotation(PrintLog.class)) {
+            return false;
+        }
+        ClassFile classFile = ctClass.getClassFile();
+        ConstPool constPool = classFile.getConstPool();
+        byte[] enterCode = copySnippet(enterSnippet, constPool);
+        byte[] exitCode = copySnippet(exitSnippet, constPool);
+        for (CtMethod ctMethod : ctClass.getDeclaredMethods()) {
+            MethodInfo methodInfo = ctMethod.getMethodInfo();
+            CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+            if (codeAttribute == null) {
+                // abstract、native 方法没有方法体
+                continue;
+            }
+            // 插在方法开头，跳回开头的分支不会再执行一遍
+            codeAttribute.iterator().insertEx(0, enterCode);
+            // 插在每个return之前，跳到return的分支也会先执行插入的代码
+            int returns = countReturns(codeAttribute.iterator());
+            for (int i = 0; i < returns; i++) {
+                CodeIterator iterator = codeAttribute.iterator();
+                iterator.insert(findReturn(iterator, i), exitCode);
+            }
+            codeAttribute.setMaxStack(codeAttribute.computeMaxStack());
+            methodInfo.rebuildStackMapIf6(ctClass.getClassPool(), classFile);
+            injectedMethods.incrementAndGet();
+        }
+        injectedClasses.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 把编译好的代码拷到目标常量池，去掉末尾的return
+     */
+    private static byte[] copySnippet(CodeAttribute snippet, ConstPool constPool) {
+        CodeAttribute copy;
+        synchronized (snippet) {
+            copy = (CodeAttribute) snippet.copy(constPool, null);
+        }
+        byte[] code = copy.getCode();
+        return Arrays.copyOf(code, code.length - 1);
+    }
+
+    private static int countReturns(CodeIterator iterator) throws BadBytecode {
+        int count = 0;
+        while (iterator.hasNext()) {
+            if (isReturn(iterator.byteAt(iterator.next()))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 每次插入后指令位置都会变，所以按序号重新找；插入的代码里没有return，序号不变
+     */
+    private static int findReturn(CodeIterator iterator, int ordinal) throws BadBytecode {
+        int count = 0;
+        while (iterator.hasNext()) {
+            int pos = iterator.next();
+            if (isReturn(iterator.byteAt(pos)) && count++ == ordinal) {
+                return pos;
+            }
+        }
+        throw new BadBytecode("return #" + ordinal + " not found");
+    }
+
+    private static boolean isReturn(int opcode) {
+        return opcode >= Opcode.IRETURN && opcode <= Opcode.RETURN;
+    }
+
+    public int getInjectedClassCount() {
+        return injectedClasses.get();
+    }
+
+    public int getInjectedMethodCount() {
+        return injectedMethods.get();
+    }
+}
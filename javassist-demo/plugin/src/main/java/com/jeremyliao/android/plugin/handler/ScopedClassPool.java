@@ -0,0 +1,166 @@
+package com.jeremyliao.android.plugin.handler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javassist.ClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.NotFoundException;
+
+/**
+ * 只在一次transform里使用的ClassPool，用完调用 {@link #close()} 释放，不会像 ClassPool.getDefault() 一样一直留在daemon里。
+ * <p>
+ * 1. 同一个路径只会加入一次classpath，避免每次构建classpath链都变长，查找越来越慢；
+ * 2. 缓存的CtClass数量有上限，按LRU淘汰没有被修改过的类，被修改过的类要等写出并detach后才释放；
+ * 3. {@link #detachAll()} 一次性释放所有缓存的类。
+ * </p>
+ */
+public class ScopedClassPool extends ClassPool implements Closeable {
+
+    public static final int DEFAULT_MAX_CACHED_CLASSES = 4096;
+
+    private final int maxCachedClasses;
+    // accessOrder = true，按访问顺序排列，最久没用的在最前面
+    private final LinkedHashMap<String, CtClass> lru = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, ClassPath> classPaths = new HashMap<>();
+    private int peakCachedClasses;
+    private int evictedClasses;
+
+    public ScopedClassPool() {
+        this(DEFAULT_MAX_CACHED_CLASSES);
+    }
+
+    public ScopedClassPool(int maxCachedClasses) {
+        super(true);
+        this.maxCachedClasses = Math.max(16, maxCachedClasses);
+    }
+
+    /**
+     * 加入classpath，同一个路径重复加入时直接返回上次的结果
+     */
+    @Override
+    public synchronized ClassPath appendClassPath(String pathname) throws NotFoundException {
+        String key = canonicalPath(pathname);
+        ClassPath classPath = classPaths.get(key);
+        if (classPath == null) {
+            classPath = super.appendClassPath(pathname);
+            classPaths.put(key, classPath);
+        }
+        return classPath;
+    }
+
+    @Override
+    public synchronized ClassPath insertClassPath(String pathname) throws NotFoundException {
+        String key = canonicalPath(pathname);
+        ClassPath classPath = classPaths.get(key);
+        if (classPath == null) {
+            classPath = super.insertClassPath(pathname);
+            classPaths.put(key, classPath);
+        }
+        return classPath;
+    }
+
+    @Override
+    protected synchronized CtClass getCached(String classname) {
+        CtClass ctClass = super.getCached(classname);
+        if (ctClass != null) {
+            // 更新访问顺序
+            lru.get(classname);
+        }
+        return ctClass;
+    }
+
+    @Override
+    protected synchronized void cacheCtClass(String classname, CtClass c, boolean dynamic) {
+        super.cacheCtClass(classname, c, dynamic);
+        lru.put(classname, c);
+        peakCachedClasses = Math.max(peakCachedClasses, lru.size());
+        trim();
+    }
+
+    @Override
+    protected synchronized CtClass removeCached(String classname) {
+        lru.remove(classname);
+        return super.removeCached(classname);
+    }
+
+    /**
+     * 超过上限时从最久没用的开始淘汰，修改过的类不能丢，跳过
+     */
+    private void trim() {
+        if (lru.size() <= maxCachedClasses) {
+            return;
+        }
+        Iterator<Map.Entry<String, CtClass>> iterator = lru.entrySet().iterator();
+        while (lru.size() > maxCachedClasses && iterator.hasNext()) {
+            Map.Entry<String, CtClass> entry = iterator.next();
+            if (entry.getValue().isModified()) {
+                continue;
+            }
+            iterator.remove();
+            super.removeCached(entry.getKey());
+            evictedClasses++;
+        }
+    }
+
+    /**
+     * 释放所有缓存的CtClass
+     */
+    public synchronized void detachAll() {
+        List<String> names = new ArrayList<>(lru.keySet());
+        for (String name : names) {
+            removeCached(name);
+        }
+    }
+
+    public synchronized int getCachedClassCount() {
+        return lru.size();
+    }
+
+    public synchronized int getPeakCachedClassCount() {
+        return peakCachedClasses;
+    }
+
+    public synchronized int getEvictedClassCount() {
+        return evictedClasses;
+    }
+
+    public synchronized int getClassPathCount() {
+        return classPaths.size();
+    }
+
+    /**
+     * 释放缓存的类和classpath，打开的jar也会被关闭
+     */
+    @Override
+    public synchronized void close() {
+        detachAll();
+        for (ClassPath classPath : classPaths.values()) {
+            removeClassPath(classPath);
+        }
+        classPaths.clear();
+        clearImportedPackages();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ScopedClassPool{classPaths=%d, cached=%d, peakCached=%d, evicted=%d}",
+                classPaths.size(), lru.size(), peakCachedClasses, evictedClasses);
+    }
+
+    private static String canonicalPath(String pathname) {
+        try {
+            return new File(pathname).getCanonicalPath();
+        } catch (IOException e) {
+            return new File(pathname).getAbsolutePath();
+        }
+    }
+}